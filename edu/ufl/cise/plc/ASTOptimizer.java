@@ -0,0 +1,555 @@
+package edu.ufl.cise.plc;
+
+import edu.ufl.cise.plc.ast.*;
+import edu.ufl.cise.plc.runtime.ColorTuple;
+import edu.ufl.cise.plc.runtime.ImageOps;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.List;
+
+import static edu.ufl.cise.plc.ast.Types.Type;
+import static edu.ufl.cise.plc.ast.Types.Type.*;
+
+/**
+ * Simplifies a type checked AST before code generation.  Each visit method returns the node
+ * that replaces the visited node, which is the node itself if nothing could be simplified, and
+ * visitProgram returns the simplified Program.
+ *
+ * The pass
+ * <ul>
+ * <li>folds operations on int, float, boolean and color literals and color constants, with the
+ * same results as the generated code, including int overflow, int to float coercion and the
+ * unclamped component arithmetic of ColorTuple,</li>
+ * <li>replaces conditionals with a literal condition by the selected case, except an image
+ * variable assigned to an image variable, which would be copied where the conditional is not,</li>
+ * <li>removes identities such as x + 0, x * 1, x / 1, !!b and - -x, also for images where the
+ * value is copied anyway, i.e. operands of image operations and values assigned to image
+ * variables, so that img * 1 does not compute a new image pixel by pixel.  A returned or
+ * written image operation still gives a new image, and</li>
+ * <li>replaces float division by a power of two with multiplication by its reciprocal.</li>
+ * </ul>
+ * Operations that fail at run time, such as integer division by zero, are never folded, and
+ * expressions that read input are never removed.  Folded values that cannot be written as a
+ * literal of the language, e.g. negative numbers, are left unfolded.
+ *
+ * Pixel selectors on the left side of assignments and dimensions are not changed, since the
+ * code generator uses their text.
+ */
+public class ASTOptimizer implements ASTVisitor {
+
+    /*
+     * How an image value is used, which is passed as the arg of the visit methods of expressions.
+     * The value of an expression is used as it is, an operand of an image operation is only read
+     * to compute a new image, and an image assigned to an image variable is copied if it is the
+     * value of another variable.
+     */
+    enum Use {
+        VALUE, OPERAND, ASSIGNED
+    }
+
+    Expr optimize(Expr expr) throws Exception {
+        return optimize(expr, Use.VALUE);
+    }
+
+    Expr optimize(Expr expr, Use use) throws Exception {
+        return expr == null ? null : (Expr) expr.visit(this, use);
+    }
+
+    @Override
+    public Object visitBooleanLitExpr(BooleanLitExpr booleanLitExpr, Object arg) throws Exception {
+        return booleanLitExpr;
+    }
+
+    @Override
+    public Object visitStringLitExpr(StringLitExpr stringLitExpr, Object arg) throws Exception {
+        return stringLitExpr;
+    }
+
+    @Override
+    public Object visitIntLitExpr(IntLitExpr intLitExpr, Object arg) throws Exception {
+        return intLitExpr;
+    }
+
+    @Override
+    public Object visitFloatLitExpr(FloatLitExpr floatLitExpr, Object arg) throws Exception {
+        return floatLitExpr;
+    }
+
+    @Override
+    public Object visitColorConstExpr(ColorConstExpr colorConstExpr, Object arg) throws Exception {
+        return colorConstExpr;
+    }
+
+    @Override
+    public Object visitConsoleExpr(ConsoleExpr consoleExpr, Object arg) throws Exception {
+        return consoleExpr;
+    }
+
+    @Override
+    public Object visitIdentExpr(IdentExpr identExpr, Object arg) throws Exception {
+        return identExpr;
+    }
+
+    @Override
+    public Object visitColorExpr(ColorExpr colorExpr, Object arg) throws Exception {
+        Expr red = optimize(colorExpr.getRed());
+        Expr green = optimize(colorExpr.getGreen());
+        Expr blue = optimize(colorExpr.getBlue());
+        if (red == colorExpr.getRed() && green == colorExpr.getGreen() && blue == colorExpr.getBlue()) {
+            return colorExpr;
+        }
+        return typed(new ColorExpr(colorExpr.getFirstToken(), red, green, blue), colorExpr);
+    }
+
+    @Override
+    public Object visitUnaryExpr(UnaryExpr unaryExpr, Object arg) throws Exception {
+        Expr e = optimize(unaryExpr.getExpr());
+        IToken.Kind kind = unaryExpr.getOp().getKind();
+        Expr result = null;
+
+        if (kind == IToken.Kind.BANG && e instanceof BooleanLitExpr literal) {
+            result = booleanLiteral(unaryExpr, !literal.getValue());
+        } else if ((kind == IToken.Kind.BANG || kind == IToken.Kind.MINUS) && e instanceof UnaryExpr inner
+                && inner.getOp().getKind() == kind) {
+            // !!b and - -x, where -x wraps around for the smallest int in the same way both times
+            result = inner.getExpr();
+        } else if (kind == IToken.Kind.COLOR_OP && e.getType() != IMAGE) {
+            int[] color = colorValue(e);
+            if (color != null) {
+                int component = switch (unaryExpr.getOp().getText()) {
+                    case "getRed" -> color[0];
+                    case "getGreen" -> color[1];
+                    default -> color[2];
+                };
+                result = intLiteral(unaryExpr, component);
+            } else if (e instanceof IntLitExpr literal && isUncoerced(literal)) {
+                int packed = literal.getValue();
+                result = intLiteral(unaryExpr, switch (unaryExpr.getOp().getText()) {
+                    case "getRed" -> ColorTuple.getRed(packed);
+                    case "getGreen" -> ColorTuple.getGreen(packed);
+                    default -> ColorTuple.getBlue(packed);
+                });
+            }
+        }
+
+        if (result != null) {
+            Expr replaced = replace(unaryExpr, result);
+            if (replaced != unaryExpr) return replaced;
+        }
+        if (e == unaryExpr.getExpr()) {
+            return unaryExpr;
+        }
+        return typed(new UnaryExpr(unaryExpr.getFirstToken(), unaryExpr.getOp(), e), unaryExpr);
+    }
+
+    @Override
+    public Object visitBinaryExpr(BinaryExpr binaryExpr, Object arg) throws Exception {
+        // the result of an image operation is a new image, so its operands are not used as values
+        boolean imageOperation = binaryExpr.getType() == IMAGE;
+        Expr left = optimize(binaryExpr.getLeft(), imageOperation ? Use.OPERAND : Use.VALUE);
+        Expr right = optimize(binaryExpr.getRight(), imageOperation ? Use.OPERAND : Use.VALUE);
+
+        Expr result = fold(binaryExpr, left, right);
+        // an image operation gives a new image, so it is only replaced by its operand if it is copied
+        if (result == null && (!imageOperation || arg == Use.OPERAND || arg == Use.ASSIGNED)) {
+            result = simplify(binaryExpr, left, right);
+        }
+        if (result != null) {
+            Expr replaced = replace(binaryExpr, result);
+            if (replaced != binaryExpr) return replaced;
+        }
+        if (left == binaryExpr.getLeft() && right == binaryExpr.getRight()) {
+            return binaryExpr;
+        }
+        return typed(new BinaryExpr(binaryExpr.getFirstToken(), left, binaryExpr.getOp(), right), binaryExpr);
+    }
+
+    /*
+     * Returns the literal value of the operation if both operands are literals, or null.
+     */
+    Expr fold(BinaryExpr binaryExpr, Expr left, Expr right) {
+        IToken.Kind kind = binaryExpr.getOp().getKind();
+        Type type = binaryExpr.getType();
+
+        if (type == COLOR && isArithmetic(kind)) {
+            int[] leftColor = colorValue(left);
+            int[] rightColor = colorValue(right);
+            if (leftColor == null || rightColor == null) return null;
+            ColorTuple color;
+            try {
+                color = ImageOps.binaryTupleOp(ImageOps.OP.valueOf(kind.name()),
+                        new ColorTuple(leftColor[0], leftColor[1], leftColor[2]),
+                        new ColorTuple(rightColor[0], rightColor[1], rightColor[2]));
+            } catch (ArithmeticException e) {
+                return null;
+            }
+            return colorLiteral(binaryExpr, color.red, color.green, color.blue);
+        }
+
+        if (left instanceof BooleanLitExpr leftLiteral && right instanceof BooleanLitExpr rightLiteral) {
+            boolean a = leftLiteral.getValue();
+            boolean b = rightLiteral.getValue();
+            return switch (kind) {
+                case AND -> booleanLiteral(binaryExpr, a & b);
+                case OR -> booleanLiteral(binaryExpr, a | b);
+                case EQUALS -> booleanLiteral(binaryExpr, a == b);
+                case NOT_EQUALS -> booleanLiteral(binaryExpr, a != b);
+                default -> null;
+            };
+        }
+
+        if (!isNumericLiteral(left) || !isNumericLiteral(right)) return null;
+        boolean isFloat = effectiveType(left) == FLOAT || effectiveType(right) == FLOAT;
+        if (isFloat) {
+            float a = floatValue(left);
+            float b = floatValue(right);
+            return switch (kind) {
+                case PLUS -> floatLiteral(binaryExpr, a + b);
+                case MINUS -> floatLiteral(binaryExpr, a - b);
+                case TIMES -> floatLiteral(binaryExpr, a * b);
+                case DIV -> floatLiteral(binaryExpr, a / b);
+                case MOD -> floatLiteral(binaryExpr, a % b);
+                case LT -> booleanLiteral(binaryExpr, a < b);
+                case LE -> booleanLiteral(binaryExpr, a <= b);
+                case GT -> booleanLiteral(binaryExpr, a > b);
+                case GE -> booleanLiteral(binaryExpr, a >= b);
+                case EQUALS -> booleanLiteral(binaryExpr, a == b);
+                case NOT_EQUALS -> booleanLiteral(binaryExpr, a != b);
+                default -> null;
+            };
+        }
+        if (!(left instanceof IntLitExpr leftInt) || !(right instanceof IntLitExpr rightInt)) return null;
+        int a = leftInt.getValue();
+        int b = rightInt.getValue();
+        return switch (kind) {
+            case PLUS -> intLiteral(binaryExpr, a + b);
+            case MINUS -> intLiteral(binaryExpr, a - b);
+            case TIMES -> intLiteral(binaryExpr, a * b);
+            case DIV -> b == 0 ? null : intLiteral(binaryExpr, a / b);
+            case MOD -> b == 0 ? null : intLiteral(binaryExpr, a % b);
+            case LT -> booleanLiteral(binaryExpr, a < b);
+            case LE -> booleanLiteral(binaryExpr, a <= b);
+            case GT -> booleanLiteral(binaryExpr, a > b);
+            case GE -> booleanLiteral(binaryExpr, a >= b);
+            case EQUALS -> booleanLiteral(binaryExpr, a == b);
+            case NOT_EQUALS -> booleanLiteral(binaryExpr, a != b);
+            default -> null;
+        };
+    }
+
+    /*
+     * Returns an equivalent, cheaper expression for an operation with one literal operand, or
+     * null.  Only int, float, boolean and image operations whose operands have the type of the
+     * result are simplified.  An image operation is only simplified if its value is copied.
+     */
+    Expr simplify(BinaryExpr binaryExpr, Expr left, Expr right) {
+        IToken.Kind kind = binaryExpr.getOp().getKind();
+        Type type = binaryExpr.getType();
+
+        if (type == BOOLEAN && (kind == IToken.Kind.AND || kind == IToken.Kind.OR)) {
+            // the generated & and | evaluate both operands, so an operand is only dropped if it has no effect
+            boolean identity = kind == IToken.Kind.AND;
+            if (left instanceof BooleanLitExpr literal) {
+                if (literal.getValue() == identity) return right;
+                if (!Exprs.hasSideEffects(right)) return literal;
+            } else if (right instanceof BooleanLitExpr literal) {
+                if (literal.getValue() == identity) return left;
+                if (!Exprs.hasSideEffects(left)) return literal;
+            }
+            return null;
+        }
+
+        if (type != INT && type != FLOAT && type != IMAGE) return null;
+        boolean leftSameType = left.getType() == type && isUncoerced(left);
+        boolean rightSameType = right.getType() == type && isUncoerced(right);
+
+        if (type == IMAGE) {
+            // the scalar operand of an image operation is always on the right
+            if (!leftSameType || !(right instanceof IntLitExpr literal) || !isUncoerced(right)) return null;
+            int value = literal.getValue();
+            return switch (kind) {
+                case PLUS, MINUS -> value == 0 ? left : null;
+                case TIMES, DIV -> value == 1 ? left : null;
+                default -> null;
+            };
+        }
+
+        if (isNumericLiteral(right) && effectiveType(right) == type) {
+            float value = floatValue(right);
+            switch (kind) {
+                case PLUS:
+                    // for floats, -0.0 + 0.0 is 0.0
+                    if (value == 0 && type == INT && leftSameType) return left;
+                    break;
+                case MINUS:
+                    if (value == 0 && leftSameType) return left;
+                    break;
+                case TIMES:
+                    if (value == 1 && leftSameType) return left;
+                    if (value == 0 && type == INT && !Exprs.hasSideEffects(left)) return right;
+                    break;
+                case DIV:
+                    if (value == 1 && leftSameType) return left;
+                    if (type == FLOAT && isPowerOfTwo(value)) {
+                        FloatLitExpr reciprocal = floatLiteral(right, 1 / value);
+                        if (reciprocal != null) {
+                            IToken.SourceLocation location = binaryExpr.getOp().getSourceLocation();
+                            IToken times = new Token(IToken.Kind.TIMES, "*", location.line(), location.column(), 1);
+                            BinaryExpr product = new BinaryExpr(binaryExpr.getFirstToken(), left, times, reciprocal);
+                            product.setType(FLOAT);
+                            return product;
+                        }
+                    }
+                    break;
+                case MOD:
+                    if (value == 1 && type == INT && !Exprs.hasSideEffects(left)) return intLiteral(binaryExpr, 0);
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (isNumericLiteral(left) && effectiveType(left) == type && rightSameType) {
+            float value = floatValue(left);
+            if (kind == IToken.Kind.PLUS && value == 0 && type == INT) return right;
+            if (kind == IToken.Kind.TIMES && value == 1) return right;
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitConditionalExpr(ConditionalExpr conditionalExpr, Object arg) throws Exception {
+        Expr condition = optimize(conditionalExpr.getCondition());
+        Expr trueCase = optimize(conditionalExpr.getTrueCase());
+        Expr falseCase = optimize(conditionalExpr.getFalseCase());
+        if (condition instanceof BooleanLitExpr literal) {
+            Expr selected = literal.getValue() ? trueCase : falseCase;
+            // the assigned value of a conditional is the image of the variable itself, not a copy
+            if (!(arg == Use.ASSIGNED && selected instanceof IdentExpr && selected.getType() == IMAGE)) {
+                Expr replaced = replace(conditionalExpr, selected);
+                if (replaced != conditionalExpr) return replaced;
+            }
+        }
+        if (condition == conditionalExpr.getCondition() && trueCase == conditionalExpr.getTrueCase()
+                && falseCase == conditionalExpr.getFalseCase()) {
+            return conditionalExpr;
+        }
+        return typed(new ConditionalExpr(conditionalExpr.getFirstToken(), condition, trueCase, falseCase),
+                conditionalExpr);
+    }
+
+    @Override
+    public Object visitDimension(Dimension dimension, Object arg) throws Exception {
+        return dimension;
+    }
+
+    @Override
+    public Object visitPixelSelector(PixelSelector pixelSelector, Object arg) throws Exception {
+        Expr x = optimize(pixelSelector.getX());
+        Expr y = optimize(pixelSelector.getY());
+        if (x == pixelSelector.getX() && y == pixelSelector.getY()) {
+            return pixelSelector;
+        }
+        return new PixelSelector(pixelSelector.getFirstToken(), x, y);
+    }
+
+    @Override
+    public Object visitUnaryExprPostfix(UnaryExprPostfix unaryExprPostfix, Object arg) throws Exception {
+        PixelSelector selector = (PixelSelector) unaryExprPostfix.getSelector().visit(this, arg);
+        if (selector == unaryExprPostfix.getSelector()) {
+            return unaryExprPostfix;
+        }
+        return typed(new UnaryExprPostfix(unaryExprPostfix.getFirstToken(), unaryExprPostfix.getExpr(), selector),
+                unaryExprPostfix);
+    }
+
+    @Override
+    public Object visitAssignmentStatement(AssignmentStatement assignmentStatement, Object arg) throws Exception {
+        // an image assigned to an image variable is copied or computed into a new image
+        Expr expr = optimize(assignmentStatement.getExpr(),
+                assignmentStatement.getTargetDec().getType() == IMAGE ? Use.ASSIGNED : Use.VALUE);
+        if (expr == assignmentStatement.getExpr()) {
+            return assignmentStatement;
+        }
+        AssignmentStatement statement = new AssignmentStatement(assignmentStatement.getFirstToken(),
+                assignmentStatement.getName(), assignmentStatement.getSelector(), expr);
+        statement.setTargetDec(assignmentStatement.getTargetDec());
+        return statement;
+    }
+
+    @Override
+    public Object visitWriteStatement(WriteStatement writeStatement, Object arg) throws Exception {
+        Expr source = optimize(writeStatement.getSource());
+        if (source == writeStatement.getSource()) {
+            return writeStatement;
+        }
+        return new WriteStatement(writeStatement.getFirstToken(), source, writeStatement.getDest());
+    }
+
+    @Override
+    public Object visitReadStatement(ReadStatement readStatement, Object arg) throws Exception {
+        return readStatement;
+    }
+
+    @Override
+    public Object visitProgram(Program program, Object arg) throws Exception {
+        List<ASTNode> decsAndStatements = new ArrayList<>();
+        for (ASTNode node : program.getDecsAndStatements()) {
+            decsAndStatements.add((ASTNode) node.visit(this, arg));
+        }
+        return new Program(program.getFirstToken(), program.getReturnType(), program.getName(), program.getParams(),
+                decsAndStatements);
+    }
+
+    @Override
+    public Object visitNameDef(NameDef nameDef, Object arg) throws Exception {
+        return nameDef;
+    }
+
+    @Override
+    public Object visitNameDefWithDim(NameDefWithDim nameDefWithDim, Object arg) throws Exception {
+        return nameDefWithDim;
+    }
+
+    @Override
+    public Object visitReturnStatement(ReturnStatement returnStatement, Object arg) throws Exception {
+        Expr expr = optimize(returnStatement.getExpr());
+        if (expr == returnStatement.getExpr()) {
+            return returnStatement;
+        }
+        return new ReturnStatement(returnStatement.getFirstToken(), expr);
+    }
+
+    @Override
+    public Object visitVarDeclaration(VarDeclaration declaration, Object arg) throws Exception {
+        boolean assigned = declaration.getOp() != null && declaration.getOp().getKind() == IToken.Kind.ASSIGN;
+        Expr expr = optimize(declaration.getExpr(), assigned && declaration.getType() == IMAGE ? Use.ASSIGNED : Use.VALUE);
+        if (expr == declaration.getExpr()) {
+            return declaration;
+        }
+        VarDeclaration optimized = new VarDeclaration(declaration.getFirstToken(), declaration.getNameDef(),
+                declaration.getOp(), expr);
+        optimized.setInitialized(declaration.isInitialized());
+        return optimized;
+    }
+
+    /*
+     * Returns replacement, which has the value of original in the type of original, with the
+     * coercion of original, or original if the code generated for replacement with that
+     * coercion would differ.
+     */
+    Expr replace(Expr original, Expr replacement) {
+        if (replacement.getType() != original.getType() || !isUncoerced(replacement)) {
+            return original;
+        }
+        Type coerceTo = original.getCoerceTo();
+        if (coerceTo == COLORFLOAT && !(replacement instanceof ColorExpr)) {
+            return original;
+        }
+        replacement.setCoerceTo(coerceTo);
+        return replacement;
+    }
+
+    static <T extends Expr> T typed(T expr, Expr original) {
+        expr.setType(original.getType());
+        expr.setCoerceTo(original.getCoerceTo());
+        return expr;
+    }
+
+    static boolean isUncoerced(Expr expr) {
+        return expr.getCoerceTo() == null || expr.getCoerceTo() == expr.getType();
+    }
+
+    static boolean isArithmetic(IToken.Kind kind) {
+        return kind == IToken.Kind.PLUS || kind == IToken.Kind.MINUS || kind == IToken.Kind.TIMES
+                || kind == IToken.Kind.DIV || kind == IToken.Kind.MOD;
+    }
+
+    static boolean isPowerOfTwo(float value) {
+        return value > 0 && Float.isFinite(value) && value == Math.scalb(1f, Math.getExponent(value));
+    }
+
+    static Type effectiveType(Expr expr) {
+        return expr.getCoerceTo() != null ? expr.getCoerceTo() : expr.getType();
+    }
+
+    // int or float literal whose value is used as an int or float
+    static boolean isNumericLiteral(Expr expr) {
+        Type type = effectiveType(expr);
+        return (expr instanceof IntLitExpr || expr instanceof FloatLitExpr) && (type == INT || type == FLOAT);
+    }
+
+    // value of an int or float literal, converted as in the generated code
+    static float floatValue(Expr expr) {
+        if (expr instanceof IntLitExpr literal) return (float) literal.getValue();
+        float value = ((FloatLitExpr) expr).getValue();
+        return effectiveType(expr) == INT ? (float) (int) value : value;
+    }
+
+    /*
+     * Returns the components of a color literal, a color constant, or an int literal coerced to
+     * a color, or null for other expressions.
+     */
+    static int[] colorValue(Expr expr) {
+        if (expr instanceof ColorExpr colorExpr && expr.getType() == COLOR) {
+            Expr[] components = { colorExpr.getRed(), colorExpr.getGreen(), colorExpr.getBlue() };
+            int[] color = new int[3];
+            for (int i = 0; i < 3; i++) {
+                if (!(components[i] instanceof IntLitExpr literal) || !isUncoerced(literal)) return null;
+                color[i] = literal.getValue();
+            }
+            return color;
+        } else if (expr instanceof ColorConstExpr && isUncoerced(expr)) {
+            int packed;
+            try {
+                packed = ((Color) Color.class.getField(expr.getText()).get(null)).getRGB();
+            } catch (ReflectiveOperationException e) {
+                return null;
+            }
+            return new int[] { ColorTuple.getRed(packed), ColorTuple.getGreen(packed), ColorTuple.getBlue(packed) };
+        } else if (expr instanceof IntLitExpr literal && expr.getCoerceTo() == COLOR) {
+            int value = literal.getValue();
+            return new int[] { value, value, value };
+        }
+        return null;
+    }
+
+    /*
+     * Literals replacing a folded expression.  Negative and non-finite values have no literal
+     * form, so null is returned for them.
+     */
+    static IntLitExpr intLiteral(Expr original, int value) {
+        if (value < 0) return null;
+        IntLitExpr literal = new IntLitExpr(token(original, IToken.Kind.INT_LIT, Integer.toString(value)));
+        literal.setType(INT);
+        return literal;
+    }
+
+    static FloatLitExpr floatLiteral(Expr original, float value) {
+        if (!Float.isFinite(value) || Math.copySign(1f, value) < 0) return null;
+        FloatLitExpr literal = new FloatLitExpr(token(original, IToken.Kind.FLOAT_LIT, Float.toString(value)));
+        literal.setType(FLOAT);
+        return literal;
+    }
+
+    static BooleanLitExpr booleanLiteral(Expr original, boolean value) {
+        BooleanLitExpr literal = new BooleanLitExpr(token(original, IToken.Kind.BOOLEAN_LIT, Boolean.toString(value)));
+        literal.setType(BOOLEAN);
+        return literal;
+    }
+
+    static ColorExpr colorLiteral(Expr original, int red, int green, int blue) {
+        IntLitExpr redLiteral = intLiteral(original, red);
+        IntLitExpr greenLiteral = intLiteral(original, green);
+        IntLitExpr blueLiteral = intLiteral(original, blue);
+        if (redLiteral == null || greenLiteral == null || blueLiteral == null) return null;
+        ColorExpr literal = new ColorExpr(original.getFirstToken(), redLiteral, greenLiteral, blueLiteral);
+        literal.setType(COLOR);
+        return literal;
+    }
+
+    static IToken token(Expr original, IToken.Kind kind, String text) {
+        IToken.SourceLocation location = original.getSourceLoc();
+        return new Token(kind, text, location.line(), location.column(), text.length());
+    }
+}
@@ -0,0 +1,790 @@
+package edu.ufl.cise.plc;
+
+import edu.ufl.cise.plc.ast.*;
+import edu.ufl.cise.plc.runtime.ImageOps;
+
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static edu.ufl.cise.plc.ClassFileWriter.*;
+import static edu.ufl.cise.plc.ast.Types.Type;
+import static edu.ufl.cise.plc.ast.Types.Type.*;
+
+/**
+ * Generates the class file of a program directly, instead of Java code that has to be compiled
+ * by javac.  The class has the same public static apply method as the class compiled from the
+ * code of CodeGenVisitor, and computes the same results.
+ *
+ * The code of an expression leaves its value on the stack, represented by the Java type
+ * CodeGenVisitor uses for its type, and is then converted to the type required where it is
+ * used, e.g. to the type coerced to by the type checker.  A pixel read is a packed color, which
+ * is unpacked when it is used as a color.  Image, color and I/O operations call the same
+ * runtime methods as the generated Java code.  Pixel loops are serial, and are visited row by
+ * row unless the value of a pixel reads other pixels of the image being assigned, as in the
+ * serial loops of CodeGenVisitor.
+ *
+ * None of the other optimizations of CodeGenVisitor are done: no parallel loops or statements,
+ * image reuse, loop fusion, stencil splitting or unchecked color packing.  The class is only
+ * faster to get, as it needs no javac.
+ */
+public class BytecodeGenVisitor implements ASTVisitor {
+
+    private static final String RUNTIME = "edu/ufl/cise/plc/runtime/";
+    private static final String COLOR_TUPLE = RUNTIME + "ColorTuple";
+    private static final String COLOR_TUPLE_FLOAT = RUNTIME + "ColorTupleFloat";
+    private static final String IMAGE_OPS = RUNTIME + "ImageOps";
+    private static final String OP = IMAGE_OPS + "$OP";
+    private static final String EDGE_POLICY = IMAGE_OPS + "$EdgePolicy";
+    private static final String FILE_URL_IO = RUNTIME + "FileURLIO";
+    private static final String CONSOLE_IO = RUNTIME + "ConsoleIO";
+    private static final String BUFFERED_IMAGE = "java/awt/image/BufferedImage";
+    private static final String IMAGE_DESCRIPTOR = "L" + BUFFERED_IMAGE + ";";
+    private static final String STRING_DESCRIPTOR = "Ljava/lang/String;";
+
+    private final String packageName;
+    private ClassFileWriter writer;
+    // the local of each variable
+    private final Map<String, Integer> locals = new HashMap<>();
+    private Type returnType;
+    private ImageOps.EdgePolicy edgePolicy = ImageOps.EdgePolicy.ERROR;
+
+    public BytecodeGenVisitor(String packageName) {
+        this.packageName = packageName;
+    }
+
+    /**
+     * Sets what reading a pixel outside an image gives.  See ImageOps.EdgePolicy.
+     */
+    public void setEdgePolicy(ImageOps.EdgePolicy edgePolicy) {
+        this.edgePolicy = edgePolicy;
+    }
+
+    /**
+     * Returns the class file of the program.
+     */
+    @Override
+    public Object visitProgram(Program program, Object arg) throws Exception {
+        returnType = program.getReturnType();
+        StringBuilder descriptor = new StringBuilder("(");
+        for (NameDef param : program.getParams()) {
+            descriptor.append(descriptor(param.getType()));
+        }
+        descriptor.append(")").append(descriptor(returnType));
+        String className = packageName.isEmpty() ? program.getName()
+                : packageName.replace('.', '/') + "/" + program.getName();
+        writer = new ClassFileWriter(className, "apply", descriptor.toString());
+        locals.clear();
+        for (int i = 0; i < program.getParams().size(); i++) {
+            locals.put(program.getParams().get(i).getName(), i);
+        }
+
+        boolean returned = false;
+        for (ASTNode node : program.getDecsAndStatements()) {
+            node.visit(this, arg);
+            if (node instanceof ReturnStatement) {
+                returned = true;
+                break;
+            }
+        }
+        if (!returned) {
+            if (returnType != VOID) {
+                throw new PLCException("missing return statement", program.getSourceLoc());
+            }
+            writer.op(RETURN, 0);
+        }
+        return writer.toByteArray();
+    }
+
+    @Override
+    public Object visitNameDef(NameDef nameDef, Object arg) throws Exception {
+        return null;
+    }
+
+    @Override
+    public Object visitNameDefWithDim(NameDefWithDim nameDefWithDim, Object arg) throws Exception {
+        return null;
+    }
+
+    @Override
+    public Object visitVarDeclaration(VarDeclaration declaration, Object arg) throws Exception {
+        String name = declaration.getName();
+        Type type = declaration.getType();
+        Expr expr = declaration.getExpr();
+        Dimension dim = declaration.getDim();
+        locals.computeIfAbsent(name, n -> writer.newLocal());
+
+        if (declaration.getOp() == null) {
+            if (type == IMAGE && dim != null) {
+                newImage(dim);
+                store(name, IMAGE);
+            }
+        } else if (declaration.getOp().getKind() == IToken.Kind.LARROW) {
+            read(name, type, dim, expr);
+        } else if (declaration.getOp().getKind() != IToken.Kind.ASSIGN) {
+            throw unsupported(declaration);
+        } else if (type == IMAGE && dim != null && expr.getType() != IMAGE) {
+            newImage(dim);
+            store(name, IMAGE);
+            pixelLoop(name, "$$x", "$$y", expr);
+        } else {
+            assign(name, type, dim != null ? dim.getWidth() : null, dim != null ? dim.getHeight() : null, expr);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitAssignmentStatement(AssignmentStatement assignmentStatement, Object arg) throws Exception {
+        String name = assignmentStatement.getName();
+        Type targetType = assignmentStatement.getTargetDec().getType();
+        PixelSelector selector = assignmentStatement.getSelector();
+        Expr expr = assignmentStatement.getExpr();
+
+        if (targetType == IMAGE && expr.getType() != IMAGE) {
+            pixelLoop(name, selector != null ? selector.getX().getText() : "$$x",
+                    selector != null ? selector.getY().getText() : "$$y", expr);
+        } else {
+            assign(name, targetType, selector != null ? selector.getX() : null,
+                    selector != null ? selector.getY() : null, expr);
+        }
+        return null;
+    }
+
+    /*
+     * Assigns the value of expr to a variable.  An image is resized if width and height are not
+     * null, and copied if it is the value of another variable.
+     */
+    void assign(String name, Type targetType, Expr width, Expr height, Expr expr) throws Exception {
+        if (targetType == IMAGE) {
+            value(expr, IMAGE);
+            if (width != null) {
+                value(width, INT);
+                value(height, INT);
+                writer.invoke(INVOKESTATIC, IMAGE_OPS, "resize", "(" + IMAGE_DESCRIPTOR + "II)" + IMAGE_DESCRIPTOR);
+            } else if (expr instanceof IdentExpr) {
+                writer.invoke(INVOKESTATIC, IMAGE_OPS, "clone", "(" + IMAGE_DESCRIPTOR + ")" + IMAGE_DESCRIPTOR);
+            }
+        } else {
+            value(expr, targetType);
+        }
+        store(name, targetType);
+    }
+
+    /*
+     * Sets each pixel name[xVar,yVar] of an image to the value of expr.  The value is computed
+     * once if it does not depend on the pixel.  Without a pixel selector, the coordinates are
+     * not variables of the program, so xVar and yVar are names expr cannot use.  The pixels are
+     * set row by row unless expr reads other pixels of the image.  Another image read at other
+     * pixels may be the same object as the image at run time, so the row-major loop only runs if
+     * they differ, and the column-major loop runs otherwise, as in the generated source.
+     */
+    void pixelLoop(String name, String xVar, String yVar, Expr expr) throws Exception {
+        int width = writer.newLocal();
+        int height = writer.newLocal();
+        load(name, IMAGE);
+        writer.invoke(INVOKEVIRTUAL, BUFFERED_IMAGE, "getWidth", "()I");
+        writer.store(ISTORE, width);
+        load(name, IMAGE);
+        writer.invoke(INVOKEVIRTUAL, BUFFERED_IMAGE, "getHeight", "()I");
+        writer.store(ISTORE, height);
+
+        int color = -1;
+        if (Exprs.isInvariant(expr, Set.of(name, xVar, yVar))) {
+            color = writer.newLocal();
+            packedColor(expr);
+            writer.store(ISTORE, color);
+        }
+
+        if (Exprs.readsOtherPixels(expr, name, xVar, yVar)) {
+            pixelLoop(name, xVar, yVar, expr, color, width, height, false);
+            return;
+        }
+        Set<String> sources = new LinkedHashSet<>();
+        Exprs.collectPixelSources(expr, sources);
+        ClassFileWriter.Label columnMajor = writer.newLabel();
+        boolean aliased = false;
+        for (String source : sources) {
+            if (!source.equals(name) && Exprs.readsOtherPixels(expr, source, xVar, yVar)) {
+                load(source, IMAGE);
+                load(name, IMAGE);
+                writer.jump(IF_ACMPEQ, columnMajor);
+                aliased = true;
+            }
+        }
+        pixelLoop(name, xVar, yVar, expr, color, width, height, true);
+        if (aliased) {
+            ClassFileWriter.Label end = writer.newLabel();
+            writer.jump(GOTO, end);
+            writer.mark(columnMajor);
+            pixelLoop(name, xVar, yVar, expr, color, width, height, false);
+            writer.mark(end);
+        }
+    }
+
+    /*
+     * Emits the loop of pixelLoop over the pixels of name, whose width and height are in the
+     * given locals, as is the color if it is not -1.
+     */
+    private void pixelLoop(String name, String xVar, String yVar, Expr expr, int color, int width, int height,
+            boolean rowMajor) throws Exception {
+        Integer savedX = locals.get(xVar);
+        Integer savedY = locals.get(yVar);
+        String outer = rowMajor ? yVar : xVar;
+        String inner = rowMajor ? xVar : yVar;
+        int outerIndex = writer.newLocal();
+        int innerIndex = writer.newLocal();
+        locals.put(outer, outerIndex);
+        locals.put(inner, innerIndex);
+
+        ClassFileWriter.Label outerBody = writer.newLabel();
+        ClassFileWriter.Label outerTest = writer.newLabel();
+        ClassFileWriter.Label innerBody = writer.newLabel();
+        ClassFileWriter.Label innerTest = writer.newLabel();
+        writer.intConstant(0);
+        writer.store(ISTORE, outerIndex);
+        writer.jump(GOTO, outerTest);
+        writer.mark(outerBody);
+        writer.intConstant(0);
+        writer.store(ISTORE, innerIndex);
+        writer.jump(GOTO, innerTest);
+        writer.mark(innerBody);
+        load(name, IMAGE);
+        load(xVar, INT);
+        load(yVar, INT);
+        if (color >= 0) {
+            writer.load(ILOAD, color);
+        } else {
+            packedColor(expr);
+        }
+        writer.invoke(INVOKESTATIC, IMAGE_OPS, "setColor", "(" + IMAGE_DESCRIPTOR + "III)V");
+        writer.iinc(innerIndex, 1);
+        writer.mark(innerTest);
+        writer.load(ILOAD, innerIndex);
+        writer.load(ILOAD, rowMajor ? width : height);
+        writer.jump(IF_ICMPLT, innerBody);
+        writer.iinc(outerIndex, 1);
+        writer.mark(outerTest);
+        writer.load(ILOAD, outerIndex);
+        writer.load(ILOAD, rowMajor ? height : width);
+        writer.jump(IF_ICMPLT, outerBody);
+
+        restore(xVar, savedX);
+        restore(yVar, savedY);
+    }
+
+    private void restore(String name, Integer local) {
+        if (local != null) {
+            locals.put(name, local);
+        } else {
+            locals.remove(name);
+        }
+    }
+
+    // pushes the value of expr as a packed color
+    void packedColor(Expr expr) throws Exception {
+        if (expr instanceof UnaryExprPostfix) {
+            expr.visit(this, null);
+        } else {
+            value(expr, COLOR);
+            writer.invoke(INVOKEVIRTUAL, COLOR_TUPLE, "pack", "()I");
+        }
+    }
+
+    // pushes a new TYPE_INT_RGB image with the given dimension
+    void newImage(Dimension dim) throws Exception {
+        writer.type(NEW, BUFFERED_IMAGE);
+        writer.op(DUP, 1);
+        value(dim.getWidth(), INT);
+        value(dim.getHeight(), INT);
+        writer.intConstant(BufferedImage.TYPE_INT_RGB);
+        writer.invoke(INVOKESPECIAL, BUFFERED_IMAGE, "<init>", "(III)V");
+    }
+
+    @Override
+    public Object visitReadStatement(ReadStatement readStatement, Object arg) throws Exception {
+        read(readStatement.getName(), readStatement.getTargetDec().getType(), readStatement.getTargetDec().getDim(),
+                readStatement.getSource());
+        return null;
+    }
+
+    /*
+     * Reads a value from a file, or from the console, into a variable.  An image is read from
+     * a file or URL, whose name is read from the console for a console source, and is resized to
+     * the dimension of its declaration, if it has one.
+     */
+    void read(String name, Type targetType, Dimension dim, Expr source) throws Exception {
+        if (source.getType() == STRING || targetType == IMAGE && source.getType() == CONSOLE) {
+            if (source.getType() == CONSOLE) {
+                writer.stringConstant(STRING.name());
+                writer.stringConstant("Enter Image URL: ");
+                writer.invoke(INVOKESTATIC, CONSOLE_IO, "readValueFromConsole",
+                        "(" + STRING_DESCRIPTOR + STRING_DESCRIPTOR + ")Ljava/lang/Object;");
+                unbox(STRING, source);
+            } else {
+                value(source, STRING);
+            }
+            if (targetType == IMAGE && dim != null) {
+                value(dim.getWidth(), INT);
+                box(INT);
+                value(dim.getHeight(), INT);
+                box(INT);
+                writer.invoke(INVOKESTATIC, FILE_URL_IO, "readImage",
+                        "(" + STRING_DESCRIPTOR + "Ljava/lang/Integer;Ljava/lang/Integer;)" + IMAGE_DESCRIPTOR);
+            } else if (targetType == IMAGE) {
+                writer.invoke(INVOKESTATIC, FILE_URL_IO, "readImage", "(" + STRING_DESCRIPTOR + ")" + IMAGE_DESCRIPTOR);
+            } else {
+                writer.invoke(INVOKESTATIC, FILE_URL_IO, "readValueFromFile",
+                        "(" + STRING_DESCRIPTOR + ")Ljava/lang/Object;");
+                unbox(targetType, source);
+            }
+        } else if (source.getType() == CONSOLE) {
+            String prompt = switch (targetType) {
+                case INT -> "integer";
+                case COLOR -> "colortuple";
+                default -> targetType.name().toLowerCase();
+            };
+            writer.stringConstant(targetType.name());
+            writer.stringConstant("Enter " + prompt + ":");
+            writer.invoke(INVOKESTATIC, CONSOLE_IO, "readValueFromConsole",
+                    "(" + STRING_DESCRIPTOR + STRING_DESCRIPTOR + ")Ljava/lang/Object;");
+            unbox(targetType, source);
+        } else {
+            throw unsupported(source);
+        }
+        store(name, targetType);
+    }
+
+    @Override
+    public Object visitWriteStatement(WriteStatement writeStatement, Object arg) throws Exception {
+        Expr source = writeStatement.getSource();
+        Type sourceType = source.getType();
+        if (writeStatement.getDest().getType() == STRING) {
+            value(source, sourceType);
+            if (sourceType == IMAGE) {
+                value(writeStatement.getDest(), STRING);
+                writer.invoke(INVOKESTATIC, FILE_URL_IO, "writeImage", "(" + IMAGE_DESCRIPTOR + STRING_DESCRIPTOR + ")V");
+            } else {
+                box(sourceType);
+                value(writeStatement.getDest(), STRING);
+                writer.invoke(INVOKESTATIC, FILE_URL_IO, "writeValue",
+                        "(Ljava/io/Serializable;" + STRING_DESCRIPTOR + ")V");
+            }
+        } else if (sourceType == IMAGE) {
+            value(source, IMAGE);
+            writer.invoke(INVOKESTATIC, CONSOLE_IO, "displayImageOnScreen", "(" + IMAGE_DESCRIPTOR + ")V");
+        } else {
+            writer.getStatic(CONSOLE_IO, "console", "Ljava/io/PrintStream;");
+            value(source, sourceType);
+            String argument = switch (sourceType) {
+                case INT, FLOAT, BOOLEAN, STRING -> descriptor(sourceType);
+                default -> "Ljava/lang/Object;";
+            };
+            writer.invoke(INVOKEVIRTUAL, "java/io/PrintStream", "println", "(" + argument + ")V");
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitReturnStatement(ReturnStatement returnStatement, Object arg) throws Exception {
+        value(returnStatement.getExpr(), returnType);
+        writer.op(switch (returnType) {
+            case INT, BOOLEAN -> IRETURN;
+            case FLOAT -> FRETURN;
+            default -> ARETURN;
+        }, -1);
+        return null;
+    }
+
+    /*
+     * Pushes the value of expr converted to the given type.
+     */
+    void value(Expr expr, Type type) throws Exception {
+        expr.visit(this, null);
+        convert(expr, type);
+    }
+
+    /*
+     * Converts the value of expr on the stack to the given type.  An int is a packed color if
+     * expr is a pixel read, and the same value for each component otherwise.
+     */
+    void convert(Expr expr, Type type) throws Exception {
+        Type from = expr.getType();
+        if (expr instanceof UnaryExprPostfix && (type == COLOR || type == COLORFLOAT)) {
+            writer.invoke(INVOKESTATIC, COLOR_TUPLE, "unpack", "(I)L" + COLOR_TUPLE + ";");
+            from = COLOR;
+        }
+        if (from == type) {
+            return;
+        }
+        switch (from) {
+            case INT -> {
+                switch (type) {
+                    case FLOAT -> writer.op(I2F, 0);
+                    case COLOR -> construct(COLOR_TUPLE, "I");
+                    case COLORFLOAT -> {
+                        writer.op(I2F, 0);
+                        construct(COLOR_TUPLE_FLOAT, "F");
+                    }
+                    default -> throw unsupported(expr);
+                }
+            }
+            case FLOAT -> {
+                switch (type) {
+                    case INT -> writer.op(F2I, 0);
+                    case COLORFLOAT -> construct(COLOR_TUPLE_FLOAT, "F");
+                    case COLOR -> {
+                        construct(COLOR_TUPLE_FLOAT, "F");
+                        construct(COLOR_TUPLE, "L" + COLOR_TUPLE_FLOAT + ";");
+                    }
+                    default -> throw unsupported(expr);
+                }
+            }
+            case COLOR -> {
+                switch (type) {
+                    case INT -> writer.invoke(INVOKEVIRTUAL, COLOR_TUPLE, "pack", "()I");
+                    case COLORFLOAT -> construct(COLOR_TUPLE_FLOAT, "L" + COLOR_TUPLE + ";");
+                    default -> throw unsupported(expr);
+                }
+            }
+            case COLORFLOAT -> {
+                switch (type) {
+                    case INT -> writer.invoke(INVOKEVIRTUAL, COLOR_TUPLE_FLOAT, "pack", "()I");
+                    case COLOR -> construct(COLOR_TUPLE, "L" + COLOR_TUPLE_FLOAT + ";");
+                    default -> throw unsupported(expr);
+                }
+            }
+            default -> throw unsupported(expr);
+        }
+    }
+
+    // replaces the value on the stack by a new object of the given class created from it
+    private void construct(String owner, String argumentDescriptor) {
+        writer.type(NEW, owner);
+        writer.op(DUP_X1, 1);
+        writer.op(SWAP, 0);
+        writer.invoke(INVOKESPECIAL, owner, "<init>", "(" + argumentDescriptor + ")V");
+    }
+
+    private void box(Type type) {
+        switch (type) {
+            case INT -> writer.invoke(INVOKESTATIC, "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;");
+            case FLOAT -> writer.invoke(INVOKESTATIC, "java/lang/Float", "valueOf", "(F)Ljava/lang/Float;");
+            case BOOLEAN -> writer.invoke(INVOKESTATIC, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;");
+            default -> {
+            }
+        }
+    }
+
+    private void unbox(Type type, Expr source) throws PLCException {
+        switch (type) {
+            case INT -> {
+                writer.type(CHECKCAST, "java/lang/Integer");
+                writer.invoke(INVOKEVIRTUAL, "java/lang/Integer", "intValue", "()I");
+            }
+            case FLOAT -> {
+                writer.type(CHECKCAST, "java/lang/Float");
+                writer.invoke(INVOKEVIRTUAL, "java/lang/Float", "floatValue", "()F");
+            }
+            case BOOLEAN -> {
+                writer.type(CHECKCAST, "java/lang/Boolean");
+                writer.invoke(INVOKEVIRTUAL, "java/lang/Boolean", "booleanValue", "()Z");
+            }
+            case STRING -> writer.type(CHECKCAST, "java/lang/String");
+            case COLOR -> writer.type(CHECKCAST, COLOR_TUPLE);
+            default -> throw unsupported(source);
+        }
+    }
+
+    private void load(String name, Type type) {
+        writer.load(switch (type) {
+            case INT, BOOLEAN -> ILOAD;
+            case FLOAT -> FLOAD;
+            default -> ALOAD;
+        }, locals.get(name));
+    }
+
+    private void store(String name, Type type) {
+        writer.store(switch (type) {
+            case INT, BOOLEAN -> ISTORE;
+            case FLOAT -> FSTORE;
+            default -> ASTORE;
+        }, locals.computeIfAbsent(name, n -> writer.newLocal()));
+    }
+
+    static String descriptor(Type type) {
+        return switch (type) {
+            case INT -> "I";
+            case FLOAT -> "F";
+            case BOOLEAN -> "Z";
+            case VOID -> "V";
+            case STRING -> STRING_DESCRIPTOR;
+            case COLOR -> "L" + COLOR_TUPLE + ";";
+            case COLORFLOAT -> "L" + COLOR_TUPLE_FLOAT + ";";
+            default -> IMAGE_DESCRIPTOR;
+        };
+    }
+
+    private PLCException unsupported(ASTNode node) {
+        return new PLCException("cannot generate bytecode for " + node.getText(), node.getSourceLoc());
+    }
+
+    @Override
+    public Object visitBooleanLitExpr(BooleanLitExpr booleanLitExpr, Object arg) throws Exception {
+        writer.intConstant(booleanLitExpr.getValue() ? 1 : 0);
+        return null;
+    }
+
+    @Override
+    public Object visitStringLitExpr(StringLitExpr stringLitExpr, Object arg) throws Exception {
+        writer.stringConstant(stringLitExpr.getValue());
+        return null;
+    }
+
+    @Override
+    public Object visitIntLitExpr(IntLitExpr intLitExpr, Object arg) throws Exception {
+        writer.intConstant(intLitExpr.getValue());
+        return null;
+    }
+
+    @Override
+    public Object visitFloatLitExpr(FloatLitExpr floatLitExpr, Object arg) throws Exception {
+        writer.floatConstant(floatLitExpr.getValue());
+        return null;
+    }
+
+    @Override
+    public Object visitColorConstExpr(ColorConstExpr colorConstExpr, Object arg) throws Exception {
+        writer.getStatic("java/awt/Color", colorConstExpr.getText(), "Ljava/awt/Color;");
+        writer.invoke(INVOKEVIRTUAL, "java/awt/Color", "getRGB", "()I");
+        writer.invoke(INVOKESTATIC, COLOR_TUPLE, "unpack", "(I)L" + COLOR_TUPLE + ";");
+        return null;
+    }
+
+    @Override
+    public Object visitConsoleExpr(ConsoleExpr consoleExpr, Object arg) throws Exception {
+        throw unsupported(consoleExpr);
+    }
+
+    @Override
+    public Object visitColorExpr(ColorExpr colorExpr, Object arg) throws Exception {
+        boolean floats = colorExpr.getType() == COLORFLOAT;
+        String owner = floats ? COLOR_TUPLE_FLOAT : COLOR_TUPLE;
+        Type componentType = floats ? FLOAT : INT;
+        writer.type(NEW, owner);
+        writer.op(DUP, 1);
+        value(colorExpr.getRed(), componentType);
+        value(colorExpr.getGreen(), componentType);
+        value(colorExpr.getBlue(), componentType);
+        writer.invoke(INVOKESPECIAL, owner, "<init>", floats ? "(FFF)V" : "(III)V");
+        return null;
+    }
+
+    @Override
+    public Object visitUnaryExpr(UnaryExpr unaryExpression, Object arg) throws Exception {
+        Expr expr = unaryExpression.getExpr();
+        Type exprType = expr.getType();
+        String op = unaryExpression.getOp().getText();
+        switch (unaryExpression.getOp().getKind()) {
+            case MINUS -> {
+                value(expr, unaryExpression.getType());
+                writer.op(unaryExpression.getType() == FLOAT ? FNEG : INEG, 0);
+            }
+            case BANG -> {
+                value(expr, BOOLEAN);
+                writer.intConstant(1);
+                writer.op(IXOR, -1);
+            }
+            case COLOR_OP -> {
+                expr.visit(this, arg);
+                if (exprType == IMAGE) {
+                    String extract = "extract" + op.substring("get".length());
+                    writer.invoke(INVOKESTATIC, IMAGE_OPS, extract, "(" + IMAGE_DESCRIPTOR + ")" + IMAGE_DESCRIPTOR);
+                } else {
+                    writer.invoke(INVOKESTATIC, COLOR_TUPLE, op, "(" + descriptor(exprType) + ")I");
+                }
+            }
+            case IMAGE_OP -> {
+                value(expr, IMAGE);
+                writer.invoke(INVOKEVIRTUAL, BUFFERED_IMAGE, op, "()I");
+            }
+            default -> throw unsupported(unaryExpression);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitBinaryExpr(BinaryExpr binaryExpr, Object arg) throws Exception {
+        Expr left = binaryExpr.getLeft();
+        Expr right = binaryExpr.getRight();
+        Type type = binaryExpr.getType();
+        IToken.Kind kind = binaryExpr.getOp().getKind();
+        switch (kind) {
+            case AND, OR -> {
+                value(left, BOOLEAN);
+                value(right, BOOLEAN);
+                writer.op(kind == IToken.Kind.AND ? IAND : IOR, -1);
+            }
+            case EQUALS, NOT_EQUALS -> equality(binaryExpr, kind == IToken.Kind.EQUALS);
+            case LT, GT, LE, GE -> {
+                Type operandType = left.getType() == FLOAT || right.getType() == FLOAT ? FLOAT : INT;
+                value(left, operandType);
+                value(right, operandType);
+                if (operandType == FLOAT) {
+                    writer.op(kind == IToken.Kind.LT || kind == IToken.Kind.LE ? FCMPG : FCMPL, -1);
+                    booleanResult(switch (kind) {
+                        case LT -> IFLT;
+                        case GT -> IFGT;
+                        case LE -> IFLE;
+                        default -> IFGE;
+                    });
+                } else {
+                    booleanResult(switch (kind) {
+                        case LT -> IF_ICMPLT;
+                        case GT -> IF_ICMPGT;
+                        case LE -> IF_ICMPLE;
+                        default -> IF_ICMPGE;
+                    });
+                }
+            }
+            default -> arithmetic(binaryExpr, type, kind);
+        }
+        return null;
+    }
+
+    private void arithmetic(BinaryExpr binaryExpr, Type type, IToken.Kind kind) throws Exception {
+        Expr left = binaryExpr.getLeft();
+        Expr right = binaryExpr.getRight();
+        switch (type) {
+            case INT, FLOAT -> {
+                value(left, type);
+                value(right, type);
+                int opcode = switch (kind) {
+                    case PLUS -> IADD;
+                    case MINUS -> ISUB;
+                    case TIMES -> IMUL;
+                    case DIV -> IDIV;
+                    default -> IREM;
+                };
+                // the float instruction follows the int instruction of each operation
+                writer.op(type == FLOAT ? opcode + 2 : opcode, -1);
+            }
+            case COLOR, COLORFLOAT -> {
+                writer.getStatic(OP, kind.name(), "L" + OP + ";");
+                value(left, type);
+                value(right, type);
+                writer.invoke(INVOKESTATIC, IMAGE_OPS, "binaryTupleOp",
+                        "(L" + OP + ";" + descriptor(type) + descriptor(type) + ")" + descriptor(type));
+            }
+            case IMAGE -> {
+                Type rightType = right.getType();
+                if (rightType != IMAGE && rightType != INT) {
+                    throw unsupported(binaryExpr);
+                }
+                writer.getStatic(OP, kind.name(), "L" + OP + ";");
+                value(left, IMAGE);
+                value(right, rightType);
+                writer.invoke(INVOKESTATIC, IMAGE_OPS,
+                        rightType == IMAGE ? "binaryImageImageOp" : "binaryImageScalarOp",
+                        "(L" + OP + ";" + IMAGE_DESCRIPTOR + descriptor(rightType) + ")" + IMAGE_DESCRIPTOR);
+            }
+            default -> throw unsupported(binaryExpr);
+        }
+    }
+
+    /*
+     * Compares the operands of binaryExpr.  Operands of the same type are compared as they are,
+     * so pixel reads are compared as packed colors, and a pixel read compared with a color is
+     * unpacked.
+     */
+    private void equality(BinaryExpr binaryExpr, boolean equals) throws Exception {
+        Type leftType = binaryExpr.getLeft().getType();
+        Type rightType = binaryExpr.getRight().getType();
+        Type type;
+        if (leftType == rightType) {
+            type = leftType;
+        } else if (leftType == COLORFLOAT || rightType == COLORFLOAT) {
+            type = COLORFLOAT;
+        } else if (leftType == COLOR || rightType == COLOR) {
+            type = COLOR;
+        } else if (leftType == FLOAT || rightType == FLOAT) {
+            type = FLOAT;
+        } else {
+            throw unsupported(binaryExpr);
+        }
+        value(binaryExpr.getLeft(), type);
+        value(binaryExpr.getRight(), type);
+        switch (type) {
+            case INT, BOOLEAN -> booleanResult(equals ? IF_ICMPEQ : IF_ICMPNE);
+            case FLOAT -> {
+                writer.op(FCMPL, -1);
+                booleanResult(equals ? IFEQ : IFNE);
+            }
+            case STRING, COLOR, COLORFLOAT -> {
+                String owner = type == STRING ? "java/lang/String" : type == COLOR ? COLOR_TUPLE : COLOR_TUPLE_FLOAT;
+                writer.invoke(INVOKEVIRTUAL, owner, "equals", "(Ljava/lang/Object;)Z");
+                if (!equals) {
+                    writer.intConstant(1);
+                    writer.op(IXOR, -1);
+                }
+            }
+            default -> throw unsupported(binaryExpr);
+        }
+    }
+
+    // pushes 1 if the jump with the given opcode is taken, and 0 otherwise
+    private void booleanResult(int jumpOpcode) {
+        ClassFileWriter.Label isTrue = writer.newLabel();
+        ClassFileWriter.Label end = writer.newLabel();
+        writer.jump(jumpOpcode, isTrue);
+        writer.intConstant(0);
+        writer.jump(GOTO, end);
+        writer.mark(isTrue);
+        writer.intConstant(1);
+        writer.mark(end);
+    }
+
+    @Override
+    public Object visitIdentExpr(IdentExpr identExpr, Object arg) throws Exception {
+        load(identExpr.getText(), identExpr.getType());
+        return null;
+    }
+
+    @Override
+    public Object visitConditionalExpr(ConditionalExpr conditionalExpr, Object arg) throws Exception {
+        ClassFileWriter.Label falseCase = writer.newLabel();
+        ClassFileWriter.Label end = writer.newLabel();
+        value(conditionalExpr.getCondition(), BOOLEAN);
+        writer.jump(IFEQ, falseCase);
+        value(conditionalExpr.getTrueCase(), conditionalExpr.getType());
+        writer.jump(GOTO, end);
+        writer.mark(falseCase);
+        value(conditionalExpr.getFalseCase(), conditionalExpr.getType());
+        writer.mark(end);
+        return null;
+    }
+
+    @Override
+    public Object visitDimension(Dimension dimension, Object arg) throws Exception {
+        value(dimension.getWidth(), INT);
+        value(dimension.getHeight(), INT);
+        return null;
+    }
+
+    @Override
+    public Object visitPixelSelector(PixelSelector pixelSelector, Object arg) throws Exception {
+        value(pixelSelector.getX(), INT);
+        value(pixelSelector.getY(), INT);
+        return null;
+    }
+
+    @Override
+    public Object visitUnaryExprPostfix(UnaryExprPostfix unaryExprPostfix, Object arg) throws Exception {
+        value(unaryExprPostfix.getExpr(), IMAGE);
+        unaryExprPostfix.getSelector().visit(this, arg);
+        writer.getStatic(EDGE_POLICY, edgePolicy.name(), "L" + EDGE_POLICY + ";");
+        writer.invoke(INVOKESTATIC, IMAGE_OPS, "getPixel", "(" + IMAGE_DESCRIPTOR + "IIL" + EDGE_POLICY + ";)I");
+        return null;
+    }
+}
@@ -0,0 +1,434 @@
+package edu.ufl.cise.plc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assembles a class file containing a single public static method, for BytecodeGenVisitor.
+ *
+ * The class file has version 49, which the JVM verifies by inferring the types of the
+ * locals and the stack, so the method needs no stack map frames.  The maximum depth of the
+ * stack is tracked as instructions are added.  Branches use 16 bit offsets, so the code of
+ * the method is limited to 32K bytes.
+ */
+class ClassFileWriter {
+
+    static final int ICONST_0 = 0x03;
+    static final int FCONST_0 = 0x0b;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC = 0x12;
+    static final int LDC_W = 0x13;
+    static final int ILOAD = 0x15;
+    static final int FLOAD = 0x17;
+    static final int ALOAD = 0x19;
+    static final int ISTORE = 0x36;
+    static final int FSTORE = 0x38;
+    static final int ASTORE = 0x3a;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int DUP_X1 = 0x5a;
+    static final int SWAP = 0x5f;
+    static final int IADD = 0x60;
+    static final int FADD = 0x62;
+    static final int ISUB = 0x64;
+    static final int FSUB = 0x66;
+    static final int IMUL = 0x68;
+    static final int FMUL = 0x6a;
+    static final int IDIV = 0x6c;
+    static final int FDIV = 0x6e;
+    static final int IREM = 0x70;
+    static final int FREM = 0x72;
+    static final int INEG = 0x74;
+    static final int FNEG = 0x76;
+    static final int IAND = 0x7e;
+    static final int IOR = 0x80;
+    static final int IXOR = 0x82;
+    static final int IINC = 0x84;
+    static final int I2F = 0x86;
+    static final int F2I = 0x8b;
+    static final int FCMPL = 0x95;
+    static final int FCMPG = 0x96;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int IF_ICMPEQ = 0x9f;
+    static final int IF_ICMPNE = 0xa0;
+    static final int IF_ICMPLT = 0xa1;
+    static final int IF_ICMPGE = 0xa2;
+    static final int IF_ICMPGT = 0xa3;
+    static final int IF_ICMPLE = 0xa4;
+    static final int IF_ACMPEQ = 0xa5;
+    static final int GOTO = 0xa7;
+    static final int IRETURN = 0xac;
+    static final int FRETURN = 0xae;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int NEW = 0xbb;
+    static final int CHECKCAST = 0xc0;
+    static final int WIDE = 0xc4;
+
+    private static final int VERSION = 49;
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_STATIC = 0x0008;
+    private static final int ACC_SUPER = 0x0020;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    /**
+     * A position in the code, which may be the target of jumps added before it is marked.
+     */
+    static class Label {
+        int position = -1;
+        // depth of the stack at the label, -1 until known
+        int stack = -1;
+        // positions of the jump instructions to the label, and of their offsets
+        final List<int[]> jumps = new ArrayList<>();
+    }
+
+    private final String className;
+    private final String methodName;
+    private final String descriptor;
+
+    private final ByteArrayOutputStream constants = new ByteArrayOutputStream();
+    private final DataOutputStream constantPool = new DataOutputStream(constants);
+    private final Map<String, Integer> constantIndices = new HashMap<>();
+    private int constantCount = 1;
+
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+    private final List<Label> labels = new ArrayList<>();
+    private int stack = 0;
+    private int maxStack = 0;
+    private int maxLocals;
+
+    /**
+     * Creates a writer for the class with the given internal name, e.g. "pkg/Name", and its
+     * method with the given name and descriptor.  The parameters of the method are the first
+     * locals.
+     */
+    ClassFileWriter(String className, String methodName, String descriptor) {
+        this.className = className;
+        this.methodName = methodName;
+        this.descriptor = descriptor;
+        this.maxLocals = argumentSlots(descriptor);
+    }
+
+    /**
+     * Returns the index of a new local variable.
+     */
+    int newLocal() {
+        return maxLocals++;
+    }
+
+    Label newLabel() {
+        Label label = new Label();
+        labels.add(label);
+        return label;
+    }
+
+    /**
+     * Adds an instruction without operands that changes the depth of the stack by stackChange.
+     */
+    void op(int opcode, int stackChange) {
+        code.write(opcode);
+        adjustStack(stackChange);
+    }
+
+    void intConstant(int value) {
+        if (value >= -1 && value <= 5) {
+            code.write(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.write(BIPUSH);
+            code.write(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.write(SIPUSH);
+            writeShort(value);
+        } else {
+            ldc(constant(CONSTANT_INTEGER, value));
+            return;
+        }
+        adjustStack(1);
+    }
+
+    void floatConstant(float value) {
+        if (Float.floatToRawIntBits(value) == 0 || value == 1.0f || value == 2.0f) {
+            code.write(FCONST_0 + (int) value);
+            adjustStack(1);
+        } else {
+            ldc(constant(CONSTANT_FLOAT, Float.floatToRawIntBits(value)));
+        }
+    }
+
+    void stringConstant(String value) {
+        ldc(reference(CONSTANT_STRING, utf8(value)));
+    }
+
+    /**
+     * Adds ILOAD, FLOAD or ALOAD of the given local.
+     */
+    void load(int opcode, int local) {
+        local(opcode, local);
+        adjustStack(1);
+    }
+
+    /**
+     * Adds ISTORE, FSTORE or ASTORE of the given local.
+     */
+    void store(int opcode, int local) {
+        local(opcode, local);
+        adjustStack(-1);
+    }
+
+    void iinc(int local, int increment) {
+        if (local > 255) {
+            code.write(WIDE);
+            code.write(IINC);
+            writeShort(local);
+            writeShort(increment);
+        } else {
+            code.write(IINC);
+            code.write(local);
+            code.write(increment);
+        }
+    }
+
+    /**
+     * Adds an INVOKESTATIC, INVOKEVIRTUAL or INVOKESPECIAL of the given method.
+     */
+    void invoke(int opcode, String owner, String name, String methodDescriptor) {
+        code.write(opcode);
+        writeShort(member(CONSTANT_METHODREF, owner, name, methodDescriptor));
+        int change = -argumentSlots(methodDescriptor) + (methodDescriptor.endsWith(")V") ? 0 : 1);
+        adjustStack(opcode == INVOKESTATIC ? change : change - 1);
+    }
+
+    void getStatic(String owner, String name, String fieldDescriptor) {
+        code.write(GETSTATIC);
+        writeShort(member(CONSTANT_FIELDREF, owner, name, fieldDescriptor));
+        adjustStack(1);
+    }
+
+    /**
+     * Adds NEW or CHECKCAST of the class with the given internal name.
+     */
+    void type(int opcode, String internalName) {
+        code.write(opcode);
+        writeShort(classConstant(internalName));
+        if (opcode == NEW) adjustStack(1);
+    }
+
+    /**
+     * Adds a GOTO, or a conditional jump, which pops its operands, to label.
+     */
+    void jump(int opcode, Label label) {
+        int position = code.size();
+        code.write(opcode);
+        writeShort(0);
+        if (opcode >= IF_ICMPEQ && opcode <= IF_ICMPLE) {
+            adjustStack(-2);
+        } else if (opcode != GOTO) {
+            adjustStack(-1);
+        }
+        label.stack = stack;
+        label.jumps.add(new int[]{position, position + 1});
+    }
+
+    /**
+     * Sets the position of label to the next instruction.  Code following an unconditional
+     * jump is only reached through labels, so the depth of the stack is the one at the jumps
+     * to the label.
+     */
+    void mark(Label label) {
+        label.position = code.size();
+        if (label.stack >= 0) {
+            stack = label.stack;
+        }
+    }
+
+    /**
+     * Returns the class file.
+     */
+    byte[] toByteArray() throws IOException {
+        byte[] bytes = code.toByteArray();
+        if (bytes.length > Short.MAX_VALUE) {
+            throw new IOException("method " + methodName + " is too large");
+        }
+        for (Label label : labels) {
+            for (int[] jump : label.jumps) {
+                int offset = label.position - jump[0];
+                bytes[jump[1]] = (byte) (offset >> 8);
+                bytes[jump[1] + 1] = (byte) offset;
+            }
+        }
+
+        int thisClass = classConstant(className);
+        int superClass = classConstant("java/lang/Object");
+        int name = utf8(methodName);
+        int type = utf8(descriptor);
+        int codeAttribute = utf8("Code");
+
+        ByteArrayOutputStream classFile = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(classFile);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(VERSION);
+        out.writeShort(constantCount);
+        constantPool.flush();
+        out.write(constants.toByteArray());
+        out.writeShort(ACC_PUBLIC | ACC_SUPER);
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(0); // interfaces
+        out.writeShort(0); // fields
+        out.writeShort(1); // methods
+        out.writeShort(ACC_PUBLIC | ACC_STATIC);
+        out.writeShort(name);
+        out.writeShort(type);
+        out.writeShort(1); // attributes of the method
+        out.writeShort(codeAttribute);
+        out.writeInt(12 + bytes.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes of the code
+        out.writeShort(0); // attributes of the class
+        out.flush();
+        return classFile.toByteArray();
+    }
+
+    private void local(int opcode, int local) {
+        if (local > 255) {
+            code.write(WIDE);
+            code.write(opcode);
+            writeShort(local);
+        } else {
+            code.write(opcode);
+            code.write(local);
+        }
+    }
+
+    private void ldc(int index) {
+        if (index > 255) {
+            code.write(LDC_W);
+            writeShort(index);
+        } else {
+            code.write(LDC);
+            code.write(index);
+        }
+        adjustStack(1);
+    }
+
+    private void adjustStack(int change) {
+        stack += change;
+        maxStack = Math.max(maxStack, stack);
+    }
+
+    private void writeShort(int value) {
+        code.write(value >> 8);
+        code.write(value);
+    }
+
+    // the number of locals taken by the arguments of a method, which are never long or double
+    private static int argumentSlots(String methodDescriptor) {
+        int slots = 0;
+        int i = 1;
+        while (methodDescriptor.charAt(i) != ')') {
+            char c = methodDescriptor.charAt(i);
+            while (c == '[') {
+                c = methodDescriptor.charAt(++i);
+            }
+            if (c == 'L') {
+                i = methodDescriptor.indexOf(';', i);
+            }
+            slots++;
+            i++;
+        }
+        return slots;
+    }
+
+    private int utf8(String value) {
+        Integer index = constantIndices.get("U" + value);
+        if (index == null) {
+            index = add("U" + value);
+            try {
+                constantPool.writeByte(CONSTANT_UTF8);
+                constantPool.writeUTF(value);
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+        return index;
+    }
+
+    private int constant(int tag, int value) {
+        String key = tag + ":" + value;
+        Integer index = constantIndices.get(key);
+        if (index == null) {
+            index = add(key);
+            try {
+                constantPool.writeByte(tag);
+                constantPool.writeInt(value);
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+        return index;
+    }
+
+    // a constant referring to other constants
+    private int reference(int tag, int... referenced) {
+        StringBuilder key = new StringBuilder().append(tag);
+        for (int i : referenced) {
+            key.append(':').append(i);
+        }
+        Integer index = constantIndices.get(key.toString());
+        if (index == null) {
+            index = add(key.toString());
+            try {
+                constantPool.writeByte(tag);
+                for (int i : referenced) {
+                    constantPool.writeShort(i);
+                }
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+        return index;
+    }
+
+    private int classConstant(String internalName) {
+        return reference(CONSTANT_CLASS, utf8(internalName));
+    }
+
+    private int member(int tag, String owner, String name, String memberDescriptor) {
+        int nameAndType = reference(CONSTANT_NAME_AND_TYPE, utf8(name), utf8(memberDescriptor));
+        return reference(tag, classConstant(owner), nameAndType);
+    }
+
+    private int add(String key) {
+        int index = constantCount++;
+        constantIndices.put(key, index);
+        return index;
+    }
+}
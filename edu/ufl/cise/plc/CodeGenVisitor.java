@@ -3,8 +3,20 @@ package edu.ufl.cise.plc;
 import edu.ufl.cise.plc.ast.*;
 
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static edu.ufl.cise.plc.ast.Types.Type;
 import static edu.ufl.cise.plc.ast.Types.Type.*;
@@ -16,11 +28,106 @@ import javax.management.StringValueExp;
 public class CodeGenVisitor implements ASTVisitor {
 
     private String packageName;
+    private boolean scheduleImageStatements = false;
+    private boolean parallelPixelLoops = true;
+    private boolean reuseDeadImages = true;
+    private boolean fusePixelLoops = true;
+
+    // static methods added to the generated class, and the number of pixel kernels, pixel loops
+    // and statement segments among them
+    private StringBuilder classMembers = new StringBuilder();
+    private int kernelCount = 0;
+    private int loopCount = 0;
+    private int segmentCount = 0;
+
+    // the end of each run of pixel assignments computed in one loop, by the index of its first
+    private Map<Integer, Integer> fusedRuns = new HashMap<>();
+
+    // bounds of the values of the expressions of the program
+    private RangeAnalysis ranges;
+
+    // estimated bytecode size above which the statements of apply are split into segment
+    // methods, which is below HotSpot's limit of 8000 bytes for methods it compiles
+    static final int MAX_METHOD_SIZE = 6000;
+
+    // named colors used by the program, each generated as a static final packed int
+    private Set<String> colorConstants = new LinkedHashSet<>();
+
+    // subexpressions of the pixel loop being generated that are computed into local variables,
+    // and their variables
+    private Map<Expr, String> hoisted = new LinkedHashMap<>();
+
+    // variables of the loop-invariant subexpressions, declared before the loop, and their types
+    private Map<String, String> invariantLocals = new LinkedHashMap<>();
+
+    // code of the colors in hoisted computed into a local for each component, and those locals
+    private Map<String, String[]> componentLocals = new HashMap<>();
+    private int componentCount = 0;
+
+    // indexes of the images read by the pixel loop being generated, whose pixels are read from
+    // arrays, the variable of its rows if it is row by row, and the images read in that row
+    private Map<String, Integer> pixelSources;
+    private String rowVar;
+    private Set<Integer> rowSources = new LinkedHashSet<>();
+
+    // the variable of the columns of a row by row pixel loop, and whether the pixel value being
+    // generated is that of the interior of a stencil loop, whose reads are unchecked
+    private String columnVar;
+    private boolean interiorReads;
+
+    // what pixel reads outside an image give
+    private ImageOps.EdgePolicy edgePolicy = ImageOps.EdgePolicy.ERROR;
+
+    // the image operation assigned by the statement being generated, and an operand image whose
+    // pixels it may overwrite, or null
+    private Expr reuseRoot;
+    private String reuseImage;
 
     public CodeGenVisitor(String packageName) {
         this.packageName = packageName;
     }
 
+    /**
+     * If true, image statements chosen by DataflowScheduler are run as concurrent tasks
+     * by the generated code.
+     */
+    public void setScheduleImageStatements(boolean scheduleImageStatements) {
+        this.scheduleImageStatements = scheduleImageStatements;
+    }
+
+    /**
+     * If true, pixel assignments whose value only reads the pixel being assigned are computed
+     * in parallel bands of rows by RowBandExecutor.  If false, all pixel loops are serial.
+     */
+    public void setParallelPixelLoops(boolean parallelPixelLoops) {
+        this.parallelPixelLoops = parallelPixelLoops;
+    }
+
+    /**
+     * If true, images that are no longer used are released after their last use, and image
+     * operations write their result into an operand that is no longer used.  See
+     * LivenessAnalysis.  This is not done when image statements are scheduled as tasks.
+     */
+    public void setReuseDeadImages(boolean reuseDeadImages) {
+        this.reuseDeadImages = reuseDeadImages;
+    }
+
+    /**
+     * If true, consecutive pixel assignments that only read the pixel being assigned of the
+     * images they assign are computed in one loop when the images have the same size.  This is
+     * not done when image statements are scheduled as tasks.
+     */
+    public void setFusePixelLoops(boolean fusePixelLoops) {
+        this.fusePixelLoops = fusePixelLoops;
+    }
+
+    /**
+     * Sets what reading a pixel outside an image gives.  See ImageOps.EdgePolicy.
+     */
+    public void setEdgePolicy(ImageOps.EdgePolicy edgePolicy) {
+        this.edgePolicy = edgePolicy;
+    }
+
     class StringBuilderDelegate {
         StringBuilder str;
 
@@ -161,10 +268,15 @@ public class CodeGenVisitor implements ASTVisitor {
     @Override
     public Object visitColorConstExpr(ColorConstExpr colorConstExpr, Object arg) throws Exception {
         StringBuilderDelegate res = new StringBuilderDelegate(arg);
+        if (hoisted.containsKey(colorConstExpr)) {
+            res.add(hoisted.get(colorConstExpr));
+            return res.str;
+        }
 
-        res.add("ColorTuple.unpack(Color.");
+        colorConstants.add(colorConstExpr.getText());
+        res.add("ColorTuple.unpack($$");
         res.add(colorConstExpr.getText());
-        res.add(".getRGB())");
+        res.add(")");
 
         return res.getString();
     }
@@ -179,6 +291,10 @@ public class CodeGenVisitor implements ASTVisitor {
     @Override
     public Object visitColorExpr(ColorExpr colorExpr, Object arg) throws Exception {
         StringBuilderDelegate res = new StringBuilderDelegate(arg);
+        if (hoisted.containsKey(colorExpr)) {
+            res.add(hoisted.get(colorExpr));
+            return res.str;
+        }
 
         if (colorExpr.getRed().getType() == FLOAT || colorExpr.getRed().getCoerceTo() == FLOAT) {
             res.add("new ColorTupleFloat(");
@@ -199,6 +315,14 @@ public class CodeGenVisitor implements ASTVisitor {
     @Override
     public Object visitUnaryExpr(UnaryExpr unaryExpression, Object arg) throws Exception {
         StringBuilderDelegate res = new StringBuilderDelegate(arg);
+        if (hoisted.containsKey(unaryExpression)) {
+            res.add(hoisted.get(unaryExpression));
+            return res.str;
+        }
+        if (countFusableImageOps(unaryExpression) > 1) {
+            res.add(fusedImageOp(unaryExpression));
+            return res.str;
+        }
         IToken op = unaryExpression.getOp();
         IToken.Kind opKind = unaryExpression.getOp().getKind();
         Type exprType = unaryExpression.getExpr().getType();
@@ -212,7 +336,15 @@ public class CodeGenVisitor implements ASTVisitor {
             res.add(unaryExpression.getOp().getText());
             unaryExpression.getExpr().visit(this, res.str);
         } else if (opKind == IToken.Kind.COLOR_OP) {
-            if (exprType == INT || exprType == COLOR) {
+            String[] components = exprType == COLOR ? colorComponents(unaryExpression.getExpr(), COLOR, null) : null;
+            if (components != null) {
+                int component = switch (op.getText()) {
+                    case "getRed" -> 0;
+                    case "getGreen" -> 1;
+                    default -> 2;
+                };
+                res.add("(" + components[component] + ")");
+            } else if (exprType == INT || exprType == COLOR) {
                 res.add("ColorTuple.get");
                 if (Objects.equals(op.getText(), "getRed")) {
                     res.add("Red(");
@@ -269,6 +401,10 @@ public class CodeGenVisitor implements ASTVisitor {
     @Override
     public Object visitConditionalExpr(ConditionalExpr conditionalExpr, Object arg) throws Exception {
         StringBuilderDelegate res = new StringBuilderDelegate(arg);
+        if (hoisted.containsKey(conditionalExpr)) {
+            res.add(hoisted.get(conditionalExpr));
+            return res.str;
+        }
         StringBuilder resString = res.getString();
 
         res.add("(");
@@ -326,23 +462,23 @@ public class CodeGenVisitor implements ASTVisitor {
         if (targetType == IMAGE && exprType == IMAGE) {
             res.add(equals);
             if (assignmentStatement.getSelector() != null) {
-                res.add(" ImageOps.clone(");
-                res.add(expr.getText() + ");\n");
-                res.add(equals);
+                // the value of the whole expression is resized, which makes a new image
                 PixelSelector selector = assignmentStatement.getSelector();
                 res.add(" ImageOps.resize(");
-                res.add(name + ",");
+                res.add(exprStr + ",");
                 res.add((StringBuilder) selector.visit(this, new StringBuilder("")));
                 res.add(")");
             } else {
                 if (expr instanceof IdentExpr) {
                     res.add(" ImageOps.clone(");
                     res.add(expr.getText() + ")");
+                } else if (expr instanceof BinaryExpr || expr instanceof UnaryExpr) {
+                    res.add(exprStr);
                 } else {
                     return null;
                 }
             }
-        } else if (targetType == IMAGE && expr.getCoerceTo() == COLOR) {
+        } else if (targetType == IMAGE) {
             String xVar;
             String yVar;
 
@@ -351,58 +487,19 @@ public class CodeGenVisitor implements ASTVisitor {
                 xVar = selector.getX().getText();
                 yVar = selector.getY().getText();
             } else {
-                xVar = "x";
-                yVar = "y";
-            }
-
-            res.add("for(int " + xVar + "=0; " + xVar + "<" + name +
-                    ".getWidth(); " + xVar + "++)\n");
-            res.add("for(int " + yVar + "=0; " + yVar + "<" + name +
-                    ".getHeight(); " + yVar + "++)\n");
-
-
-            res.add("\t\t\tImageOps.setColor(");
-            res.add(name + "," + xVar + "," + yVar + ",");
-
-            if (expr.getType() == INT) {
-                res.add("new ColorTuple(" + exprStr + "," + exprStr + "," + exprStr + ")");
-            } else {
-                if (exprStr.toString().contains("ColorTupleFloat")) {
-                    res.add("new ColorTuple(");
-                }
-                res.add(exprStr);
-                if (exprStr.toString().contains("ColorTupleFloat")) {
-                    res.add(")");
-                }
+                xVar = "$$x";
+                yVar = "$$y";
             }
 
-            res.add(")");
-        } else if (targetType == IMAGE && (expr.getType() == INT || expr.getCoerceTo() == INT)) {
-            PixelSelector selector = assignmentStatement.getSelector();
-            String xVar = selector.getX().getText();
-            String yVar = selector.getY().getText();
-
-            int val = Integer.parseInt(expr.getText());
-            val = val > 255 ? 255 : Math.max(val, 0);
-
-            res.add("for(int " + xVar + "=0; " + xVar + "<" + name +
-                    ".getWidth(); " + xVar + "++)\n");
-            res.add("for(int " + yVar + "=0; " + yVar + "<" + name +
-                    ".getHeight(); " + yVar + "++)\n");
-            res.add("\t\tImageOps.setColor(");
-            res.add(name + ",x,y,new ColorTuple(");
-            res.add(val + ",");
-            res.add(val + ",");
-            res.add(val + "))");
+            res.add(pixelLoop(name, xVar, yVar, expr));
         } else if (targetType == INT && expr.getType() == COLOR) {
             res.add(equals);
-            res.add(exprStr + ".pack()");
+            String[] components = colorComponents(expr, COLOR, null);
+            res.add(components != null ? packedComponents(components, COLOR, ranges.inComponentRange(expr))
+                    : exprStr + ".pack()");
         } else if (targetType == COLOR && expr.getType() == INT) {
             res.add(equals);
             res.add(exprStr);
-        } else if (targetType == INT && expr instanceof UnaryExpr) {
-            res.add(equals);
-            res.add("(" + ((UnaryExpr) expr).getExpr().getText() + ")." + expr.getFirstToken().getText() + "()");
         } else {
             res.add(equals);
             if (targetType != exprType) {
@@ -419,23 +516,24 @@ public class CodeGenVisitor implements ASTVisitor {
     public Object visitWriteStatement(WriteStatement writeStatement, Object arg) throws Exception {
         StringBuilderDelegate res = new StringBuilderDelegate(arg);
         String sourceText = writeStatement.getSource().getText();
-        String destText = writeStatement.getDest().getText();
         StringBuilder sourceStr = (StringBuilder) writeStatement.getSource().visit(this, new StringBuilder(""));
         Type sourceType = writeStatement.getSource().getType();
         Type destType = writeStatement.getDest().getType();
 
         if (destType == STRING) {
+            // the value of the whole source expression is written, as by the other backends
+            StringBuilder destStr = (StringBuilder) writeStatement.getDest().visit(this, new StringBuilder(""));
             if (sourceType == IMAGE) {
                 res.add("FileURLIO.writeImage(");
-                res.add(sourceText + "," + destText + ")");
+                res.add(sourceStr + "," + destStr + ")");
             } else {
                 res.add("FileURLIO.writeValue(");
-                res.add(sourceText + "," + destText + ")");
+                res.add(sourceStr + "," + destStr + ")");
             }
         } else {
             if (sourceType == IMAGE) {
                 res.add("ConsoleIO.displayImageOnScreen(");
-                res.add(sourceText + ")");
+                res.add(sourceStr + ")");
             } else if (writeStatement.getSource() instanceof StringLitExpr) {
 
                 res.print(writeStatement.getSource().getText().replace("\n", "\\n"), sourceText.contains("\n"));
@@ -535,8 +633,34 @@ public class CodeGenVisitor implements ASTVisitor {
     @Override
     public Object visitBinaryExpr(BinaryExpr binaryExpr, Object arg) throws Exception {
         StringBuilderDelegate res = new StringBuilderDelegate(arg);
+        if (hoisted.containsKey(binaryExpr)) {
+            res.add(hoisted.get(binaryExpr));
+            return res.str;
+        }
         Type type = binaryExpr.getType();
 
+        if (countFusableImageOps(binaryExpr) > 1) {
+            res.add(fusedImageOp(binaryExpr));
+            return res.str;
+        }
+        IToken.Kind kind = binaryExpr.getOp().getKind();
+        if ((type == COLOR || type == COLORFLOAT) && isArithmetic(kind)) {
+            String[] components = colorComponents(binaryExpr, type, null);
+            if (components != null) {
+                res.add(colorTuple(components, type));
+                return res.str;
+            }
+        } else if ((kind == IToken.Kind.EQUALS || kind == IToken.Kind.NOT_EQUALS)
+                && binaryExpr.getLeft().getType() == COLOR && binaryExpr.getRight().getType() == COLOR) {
+            String[] left = colorComponents(binaryExpr.getLeft(), COLOR, null);
+            String[] right = left == null ? null : colorComponents(binaryExpr.getRight(), COLOR, null);
+            if (right != null) {
+                res.add(kind == IToken.Kind.EQUALS ? "(" : "!(");
+                res.add(left[0] + "==" + right[0] + "&&" + left[1] + "==" + right[1] + "&&" + left[2] + "==" + right[2] + ")");
+                return res.str;
+            }
+        }
+
         res.add("(");
 
         StringBuilder leftStr = (StringBuilder) binaryExpr.getLeft().visit(this, new StringBuilder(""));
@@ -546,7 +670,7 @@ public class CodeGenVisitor implements ASTVisitor {
         String op = binaryExpr.getOp().getText();
 
         StringBuilder rightStr = (StringBuilder) binaryExpr.getRight().visit(this, new StringBuilder(""));
-        Expr right = binaryExpr.getLeft();
+        Expr right = binaryExpr.getRight();
         Type rightType = right.getType();
 
         if (leftType == IMAGE && rightType == IMAGE) {
@@ -557,8 +681,13 @@ public class CodeGenVisitor implements ASTVisitor {
             }
 
             res.add(binaryExpr.getOp().getKind().toString() + ",");
-            res.add(left.getText() + ",");
-            res.add(right.getText() + ")");
+            res.add(leftStr + ",");
+            res.add(rightStr + reuseArgument(binaryExpr) + ")");
+        } else if (type == COLOR) {
+            res.add(" ImageOps.binaryTupleOp(");
+            res.add(binaryExpr.getOp().getKind().toString() + ",");
+            res.add(colorOperand(left, leftStr) + ",");
+            res.add(colorOperand(right, rightStr) + ")");
         } else if (leftType == COLOR && rightType == COLOR) {
             res.add(" ImageOps.binaryTupleOp(");
             res.add(binaryExpr.getOp().getKind().toString() + ",");
@@ -568,7 +697,7 @@ public class CodeGenVisitor implements ASTVisitor {
             res.add(" ImageOps.binaryImageScalarOp(");
             res.add(binaryExpr.getOp().getKind().toString() + ",");
             res.add(leftStr + ",");
-            res.add(rightStr + ")");
+            res.add(rightStr + reuseArgument(binaryExpr) + ")");
         } else if (leftType == STRING && rightType == STRING) {
             if (binaryExpr.getOp().getKind() == IToken.Kind.NOT_EQUALS) res.add("!");
             res.add(leftStr);
@@ -585,6 +714,786 @@ public class CodeGenVisitor implements ASTVisitor {
         return res.str;
     }
 
+    boolean isPixelRead(Expr expr) {
+        return expr instanceof UnaryExprPostfix;
+    }
+
+    // pixel reads generate packed ints, which are unpacked when used as a color operand, and
+    // other int operands of color operations are used as the value of all color components
+    String colorOperand(Expr expr, StringBuilder exprStr) {
+        if (isPixelRead(expr)) {
+            return "ColorTuple.unpack(" + exprStr + ")";
+        } else if (expr.getType() == INT && !(expr instanceof IntLitExpr || expr instanceof IdentExpr)) {
+            return "new ColorTuple(" + exprStr + ")";
+        }
+        return exprStr.toString();
+    }
+
+    // operations on two pixel reads are computed on the packed ints without creating ColorTuples
+    boolean isPackedPixelOp(Expr expr) {
+        return expr instanceof BinaryExpr binaryExpr && expr.getType() == COLOR
+                && isPixelRead(binaryExpr.getLeft()) && isPixelRead(binaryExpr.getRight());
+    }
+
+    // image operations that can be computed in a fused per-pixel pass by ImageOps.fusedImageOp
+    boolean isFusableImageOp(Expr expr) {
+        if (expr.getType() != IMAGE) {
+            return false;
+        }
+        if (expr instanceof BinaryExpr binaryExpr) {
+            IToken.Kind kind = binaryExpr.getOp().getKind();
+            boolean arithmetic = kind == IToken.Kind.PLUS || kind == IToken.Kind.MINUS || kind == IToken.Kind.TIMES
+                    || kind == IToken.Kind.DIV || kind == IToken.Kind.MOD;
+            Type rightType = binaryExpr.getRight().getType();
+            return arithmetic && binaryExpr.getLeft().getType() == IMAGE && (rightType == IMAGE || rightType == INT);
+        }
+        return expr instanceof UnaryExpr unaryExpr && unaryExpr.getOp().getKind() == IToken.Kind.COLOR_OP;
+    }
+
+    int countFusableImageOps(Expr expr) {
+        if (!isFusableImageOp(expr)) {
+            return 0;
+        }
+        if (expr instanceof BinaryExpr binaryExpr) {
+            return 1 + countFusableImageOps(binaryExpr.getLeft()) + countFusableImageOps(binaryExpr.getRight());
+        }
+        return 1 + countFusableImageOps(((UnaryExpr) expr).getExpr());
+    }
+
+    /*
+     * Source images and scalar operands of a fused image expression.  An image variable used
+     * more than once is passed once, so its pixels are only read once.
+     */
+    class FusedOperands {
+        List<String> sources = new ArrayList<>();
+        Map<String, Integer> sourceIndex = new HashMap<>();
+        List<String> scalars = new ArrayList<>();
+
+        String source(Expr expr) throws Exception {
+            String source = ((StringBuilder) expr.visit(CodeGenVisitor.this, new StringBuilder(""))).toString();
+            Integer index = expr instanceof IdentExpr ? sourceIndex.get(source) : null;
+            if (index == null) {
+                index = sources.size();
+                sources.add(source);
+                if (expr instanceof IdentExpr) sourceIndex.put(source, index);
+            }
+            return "$$pixels[" + index + "]";
+        }
+
+        String scalar(Expr expr) throws Exception {
+            scalars.add(((StringBuilder) expr.visit(CodeGenVisitor.this, new StringBuilder(""))).toString());
+            return "$$scalars[" + (scalars.size() - 1) + "]";
+        }
+    }
+
+    // packed color of one pixel of a fused image expression
+    String fusedPixelExpr(Expr expr, FusedOperands operands) throws Exception {
+        if (!isFusableImageOp(expr)) {
+            return operands.source(expr);
+        }
+        if (expr instanceof BinaryExpr binaryExpr) {
+            String op = binaryExpr.getOp().getKind().toString();
+            String left = fusedPixelExpr(binaryExpr.getLeft(), operands);
+            if (binaryExpr.getRight().getType() == IMAGE) {
+                return "ImageOps.binaryPackedOp(" + op + "," + left + "," + fusedPixelExpr(binaryExpr.getRight(), operands) + ")";
+            }
+            String scalar = operands.scalar(binaryExpr.getRight());
+            return "ImageOps.binaryPackedOp(" + op + "," + left + "," + scalar + "," + scalar + "," + scalar + ")";
+        }
+        UnaryExpr unaryExpr = (UnaryExpr) expr;
+        String mask = switch (unaryExpr.getOp().getText()) {
+            case "getRed" -> "ColorTuple.SELECT_RED";
+            case "getGreen" -> "ColorTuple.SELECT_GRN";
+            default -> "ColorTuple.SELECT_BLU";
+        };
+        return "(" + fusedPixelExpr(unaryExpr.getExpr(), operands) + "&" + mask + ")";
+    }
+
+    // computes a tree of image operations in one pass without intermediate images
+    String fusedImageOp(Expr expr) throws Exception {
+        FusedOperands operands = new FusedOperands();
+        String pixelExpr = fusedPixelExpr(expr, operands);
+        String sources = String.join(",", operands.sources);
+        if (expr == reuseRoot) {
+            sources = reuseImage + ", new BufferedImage[]{" + sources + "}";
+        }
+        return " ImageOps.fusedImageOp(($$pixels, $$scalars) -> " + pixelExpr + ", new int[]{"
+                + String.join(",", operands.scalars) + "}, " + sources + ")";
+    }
+
+    // the argument passing the image that the image operation expr may overwrite, if any
+    String reuseArgument(Expr expr) {
+        return expr == reuseRoot ? "," + reuseImage : "";
+    }
+
+    /*
+     * Chooses an operand image of the image operation assigned to a whole image by the
+     * statement at index i whose pixels the operation may overwrite, i.e. one that is not
+     * used after the statement.  A single getRed, getGreen or getBlue has no such operand.
+     */
+    void chooseReusableImage(ASTNode node, int i, LivenessAnalysis liveness) {
+        reuseRoot = null;
+        reuseImage = null;
+        Expr expr = null;
+        if (node instanceof VarDeclaration declaration && declaration.getType() == IMAGE && declaration.getDim() == null
+                && declaration.getOp() != null && declaration.getOp().getKind() == IToken.Kind.ASSIGN) {
+            expr = declaration.getExpr();
+        } else if (node instanceof AssignmentStatement statement && statement.getTargetDec().getType() == IMAGE
+                && statement.getSelector() == null) {
+            expr = statement.getExpr();
+        }
+        if (expr == null || !isFusableImageOp(expr) || (expr instanceof UnaryExpr && countFusableImageOps(expr) == 1)) {
+            return;
+        }
+        List<String> operands = new ArrayList<>();
+        collectImageOperands(expr, operands);
+        for (String operand : operands) {
+            if (liveness.isReusable(operand, i)) {
+                reuseRoot = expr;
+                reuseImage = operand;
+                return;
+            }
+        }
+    }
+
+    // the image variables read by a tree of image operations
+    void collectImageOperands(Expr expr, List<String> operands) {
+        if (expr instanceof IdentExpr && expr.getType() == IMAGE) {
+            operands.add(expr.getText());
+        } else if (isFusableImageOp(expr)) {
+            for (Expr child : Exprs.children(expr)) {
+                collectImageOperands(child, operands);
+            }
+        }
+    }
+
+    // code for the value of expr in its own type, ignoring any coercion
+    String valueCode(Expr expr) throws Exception {
+        Type coerceTo = expr.getCoerceTo();
+        expr.setCoerceTo(expr.getType());
+        try {
+            return expr.visit(this, new StringBuilder("")).toString();
+        } finally {
+            expr.setCoerceTo(coerceTo);
+        }
+    }
+
+    /*
+     * Code for the packed color of a value assigned to a pixel.  Colors computed componentwise
+     * are packed without creating ColorTuples, with the locals they need added to locals.
+     */
+    String packedColor(Expr expr, StringBuilder locals) throws Exception {
+        if (isPixelRead(expr)) {
+            return valueCode(expr);
+        } else if (expr instanceof ColorConstExpr) {
+            colorConstants.add(expr.getText());
+            return "$$" + expr.getText();
+        } else if (isPackedPixelOp(expr)) {
+            BinaryExpr binaryExpr = (BinaryExpr) expr;
+            return "ImageOps.binaryPackedOp(" + binaryExpr.getOp().getKind() + ","
+                    + binaryExpr.getLeft().visit(this, new StringBuilder("")) + ","
+                    + binaryExpr.getRight().visit(this, new StringBuilder("")) + ")";
+        }
+        Type colorType = expr.getType() == COLORFLOAT ? COLORFLOAT : COLOR;
+        String[] components = colorComponents(expr, colorType, locals);
+        if (components != null) {
+            return packedComponents(components, colorType, colorType == COLOR && ranges.inComponentRange(expr));
+        }
+        String exprStr = valueCode(expr);
+        if (expr.getType() == INT) {
+            return "new ColorTuple(" + exprStr + ").pack()";
+        } else if (expr.getType() == COLORFLOAT || exprStr.contains("ColorTupleFloat")) {
+            return "new ColorTuple(" + exprStr + ").pack()";
+        }
+        return exprStr + ".pack()";
+    }
+
+    /*
+     * Returns the code of the red, green and blue components of the value of expr as a color of
+     * the given type, ints for COLOR and floats for COLORFLOAT, or null if it is not computed
+     * componentwise.  Color operations are computed on the components of their operands, so
+     * no ColorTuple is created for their results.  An operand whose components are not simple
+     * code, such as a pixel read or a scalar used for all three components, is computed once
+     * into a local added to locals, so expr is not computed componentwise if locals is null.
+     * Conditionals are operands, so locals are never computed for their cases.
+     */
+    String[] colorComponents(Expr expr, Type colorType, StringBuilder locals) throws Exception {
+        if (Exprs.hasSideEffects(expr)) {
+            return null;
+        }
+        Type type = expr.getType();
+        String hoistedCode = hoisted.get(expr);
+        String[] components;
+        if (hoistedCode != null && componentLocals.containsKey(hoistedCode)) {
+            components = componentLocals.get(hoistedCode).clone();
+        } else if (hoistedCode == null && expr instanceof ColorExpr colorExpr) {
+            components = new String[3];
+            List<Expr> children = Exprs.children(colorExpr);
+            for (int i = 0; i < 3; i++) {
+                components[i] = children.get(i).visit(this, new StringBuilder("")).toString();
+            }
+        } else if (hoistedCode == null && expr instanceof BinaryExpr binaryExpr && (type == COLOR || type == COLORFLOAT)
+                && isArithmetic(binaryExpr.getOp().getKind())) {
+            String[] left = colorComponents(binaryExpr.getLeft(), type, locals);
+            String[] right = left == null ? null : colorComponents(binaryExpr.getRight(), type, locals);
+            if (right == null) {
+                return null;
+            }
+            String op = binaryExpr.getOp().getText();
+            components = new String[3];
+            for (int i = 0; i < 3; i++) {
+                components[i] = "(" + left[i] + op + right[i] + ")";
+            }
+        } else if (hoistedCode == null && expr instanceof ColorConstExpr) {
+            colorConstants.add(expr.getText());
+            components = packedComponents("$$" + expr.getText());
+            type = COLOR;
+        } else {
+            String code = hoistedCode != null ? hoistedCode : valueCode(expr);
+            if (isPixelRead(expr)) {
+                code = componentLocal("int", code, locals);
+                components = code == null ? null : packedComponents(code);
+                type = COLOR;
+            } else if (type == INT || type == FLOAT) {
+                code = componentLocal(typeToString(type), code, locals);
+                components = code == null ? null : new String[]{code, code, code};
+            } else if (type == COLOR || type == COLORFLOAT) {
+                String fields = type == COLOR ? "" : "()";
+                code = componentLocal(javaType(expr), code, locals);
+                components = code == null ? null
+                        : new String[]{code + ".red" + fields, code + ".green" + fields, code + ".blue" + fields};
+            } else {
+                return null;
+            }
+        }
+        if (components == null || type == FLOAT && colorType == COLOR || type == COLORFLOAT && colorType == COLOR) {
+            return null;
+        }
+        if (colorType == COLORFLOAT && type != COLORFLOAT && type != FLOAT) {
+            for (int i = 0; i < 3; i++) {
+                components[i] = "(float)" + components[i];
+            }
+        }
+        return components;
+    }
+
+    boolean isArithmetic(IToken.Kind kind) {
+        return kind == IToken.Kind.PLUS || kind == IToken.Kind.MINUS || kind == IToken.Kind.TIMES
+                || kind == IToken.Kind.DIV || kind == IToken.Kind.MOD;
+    }
+
+    String[] packedComponents(String packed) {
+        return new String[]{"ColorTuple.getRed(" + packed + ")", "ColorTuple.getGreen(" + packed + ")",
+                "ColorTuple.getBlue(" + packed + ")"};
+    }
+
+    // code used by all three components of a color: simple code, or a new local holding its value
+    String componentLocal(String javaType, String code, StringBuilder locals) {
+        if (code.matches("[\\w$.]+")) {
+            return code;
+        }
+        if (locals == null) {
+            return null;
+        }
+        String local = "$$component" + componentCount++;
+        locals.append(javaType + " " + local + " = " + code + "; ");
+        return local;
+    }
+
+    // code for a color of the given type with the given components
+    String colorTuple(String[] components, Type colorType) {
+        String tuple = colorType == COLORFLOAT ? "new ColorTupleFloat(" : "new ColorTuple(";
+        return tuple + String.join(",", components) + ")";
+    }
+
+    // the components are not truncated if they are known to be in [0,255], see RangeAnalysis
+    String packedComponents(String[] components, Type colorType, boolean inRange) {
+        if (inRange) {
+            return "ColorTuple.makePackedColorUnchecked(" + String.join(",", components) + ")";
+        } else if (colorType == COLORFLOAT) {
+            return "ColorTuple.makePackedColor(Math.round(" + components[0] + "),Math.round(" + components[1]
+                    + "),Math.round(" + components[2] + "))";
+        }
+        return "ColorTuple.makePackedColor(" + String.join(",", components) + ")";
+    }
+
+    /*
+     * Assigns expr to every pixel of the image.  TYPE_INT_RGB images are written directly into
+     * their raster, in row-major order unless expr reads other pixels of the same image, with
+     * Arrays.fill if expr is constant.  Other images are computed in a copy of their pixels.
+     * Loop-invariant subexpressions are computed before the loop, and subexpressions occurring
+     * more than once are computed once per pixel.  A row-major stencil is computed without
+     * bounds checks in the interior of the image, and with the edge policy on its border.
+     *
+     * Another image read at other pixels may be the same object as the image at run time, so a
+     * row-major loop only runs if they differ, and the column-major loop runs otherwise.
+     */
+    String pixelLoop(String name, String xVar, String yVar, Expr expr) throws Exception {
+        if (Exprs.readsOtherPixels(expr, name, xVar, yVar)) {
+            return pixelLoop(List.of(name), xVar, yVar, List.of(expr), true);
+        }
+        Set<String> sources = new LinkedHashSet<>();
+        Exprs.collectPixelSources(expr, sources);
+        List<String> conditions = new ArrayList<>();
+        for (String source : sources) {
+            if (!source.equals(name) && Exprs.readsOtherPixels(expr, source, xVar, yVar)) {
+                conditions.add(source + " != " + name);
+            }
+        }
+        String loop = pixelLoop(List.of(name), xVar, yVar, List.of(expr), false);
+        if (conditions.isEmpty()) {
+            return loop;
+        }
+        return "if (" + String.join(" && ", conditions) + ") " + loop + "; else "
+                + pixelLoop(List.of(name), xVar, yVar, List.of(expr), true);
+    }
+
+    /*
+     * Assigns each of exprs to every pixel of the image of the same index in names, all in one
+     * loop, which computes the values of a pixel in order before going on to the next pixel.  The
+     * images must have the same size, and if there is more than one expr, they must read no pixel
+     * of these images but the one being assigned.  See fusedPixelLoops.
+     */
+    String pixelLoop(List<String> names, String xVar, String yVar, List<Expr> exprs) throws Exception {
+        return pixelLoop(names, xVar, yVar, exprs, false);
+    }
+
+    // loops over the columns and then the rows if columnMajor, as the value reads other pixels of
+    // the image being assigned, and over the rows otherwise
+    String pixelLoop(List<String> names, String xVar, String yVar, List<Expr> exprs, boolean columnMajor)
+            throws Exception {
+        String name = names.get(0);
+        Expr expr = exprs.get(0);
+        Set<String> varying = new HashSet<>(names);
+        varying.add(xVar);
+        varying.add(yVar);
+        ranges.setCoordinates(xVar, yVar);
+        boolean constant = exprs.size() == 1 && Exprs.isInvariant(expr, varying);
+        List<Expr> invariants = new ArrayList<>();
+        if (!constant) {
+            for (Expr value : exprs) {
+                Exprs.collectInvariants(value, varying, invariants);
+            }
+        }
+
+        StringBuilder loop = new StringBuilder();
+        loop.append("{\n");
+        Map<Exprs.Key, String> invariantKeys = new HashMap<>();
+        for (Expr invariant : invariants) {
+            Exprs.Key key = new Exprs.Key(invariant);
+            String local = invariantKeys.get(key);
+            if (local == null) {
+                String code = invariant.visit(this, new StringBuilder("")).toString();
+                local = "$$invariant" + invariantLocals.size();
+                loop.append("\t\t" + javaType(invariant) + " " + local + " = " + code + ";\n");
+                invariantLocals.put(local, javaType(invariant));
+                invariantKeys.put(key, local);
+            }
+            hoisted.put(invariant, local);
+        }
+        boolean rowMajor = !columnMajor;
+        boolean parallel = parallelPixelLoops && rowMajor && !constant
+                && exprs.stream().noneMatch(Exprs::hasSideEffects);
+
+        // the loop computes the pixels of each image in an int[], which is the raster data of the
+        // image or a copy that is set at the end, and reads the images of pixel reads from such arrays
+        Map<String, String> rasters = new LinkedHashMap<>();
+        for (String target : names) {
+            if (rasters.containsKey(target)) {
+                continue;
+            }
+            String suffix = rasters.isEmpty() ? "" : String.valueOf(rasters.size());
+            String raster = "$$raster" + suffix;
+            rasters.put(target, raster);
+            loop.append("\t\tint[] " + raster + " = ImageOps.getRasterData(" + target + ");\n");
+            if (suffix.isEmpty()) {
+                loop.append("\t\tint $$width = " + target + ".getWidth();\n");
+                loop.append("\t\tint $$height = " + target + ".getHeight();\n");
+            }
+            loop.append("\t\tboolean $$copy" + suffix + " = " + raster + " == null;\n");
+            loop.append("\t\tif ($$copy" + suffix + ") " + raster + " = ImageOps.getRGBPixels(" + target + ");\n");
+        }
+        Set<String> sources = new LinkedHashSet<>();
+        for (Expr value : exprs) {
+            Exprs.collectPixelSources(value, sources);
+        }
+        pixelSources = new HashMap<>();
+        for (String source : sources) {
+            int k = pixelSources.size();
+            pixelSources.put(source, k);
+            String pixels = rasters.get(source);
+            if (pixels == null) {
+                pixels = "ImageOps.getPixels(" + source + ")";
+                for (Map.Entry<String, String> raster : rasters.entrySet()) {
+                    pixels = source + " == " + raster.getKey() + " ? " + raster.getValue() + " : " + pixels;
+                }
+            }
+            loop.append("\t\tint[] $$pixels" + k + " = " + pixels + ";\n");
+            loop.append("\t\tint $$width" + k + " = " + source + ".getWidth();\n");
+            loop.append("\t\tint $$height" + k + " = " + source + ".getHeight();\n");
+            invariantLocals.put("$$pixels" + k, "int[]");
+            invariantLocals.put("$$width" + k, "int");
+            invariantLocals.put("$$height" + k, "int");
+        }
+        rowVar = rowMajor ? yVar : null;
+        columnVar = rowMajor ? xVar : null;
+        rowSources.clear();
+        Map<Integer, int[]> footprints = new LinkedHashMap<>();
+        boolean stencil = false;
+        if (rowMajor && !constant) {
+            for (Expr value : exprs) {
+                stencil |= collectFootprints(value, footprints);
+            }
+        }
+        if (stencil) {
+            stencilBounds(footprints, loop);
+        }
+
+        List<String> targetRasters = names.stream().map(rasters::get).toList();
+        Map<Expr, String> hoistedBefore = new LinkedHashMap<>(hoisted);
+        Map<String, String[]> componentLocalsBefore = new HashMap<>(componentLocals);
+        int componentCountBefore = componentCount;
+        StringBuilder locals = new StringBuilder();
+        String color = constant ? packedColor(expr, locals) : null;
+        String store = constant ? null
+                : pixelStores(targetRasters, exprs, rowMajor ? "$$index" : yVar + " * $$width + " + xVar);
+        StringBuilder rows = new StringBuilder();
+        for (int k : rowSources) {
+            rows.append("int $$row" + k + " = ImageOps.rowOffset" + edgeSuffix() + "(" + yVar + ", $$width" + k
+                    + ", $$height" + k + "); ");
+        }
+        List<String> rowBody = new ArrayList<>();
+        if (stencil) {
+            // the values are generated again with unchecked reads for the interior of the image
+            hoisted.clear();
+            hoisted.putAll(hoistedBefore);
+            componentLocals.clear();
+            componentLocals.putAll(componentLocalsBefore);
+            componentCount = componentCountBefore;
+            interiorReads = true;
+            String interiorStore = pixelStores(targetRasters, exprs, "$$index");
+            interiorReads = false;
+            for (int k : footprints.keySet()) {
+                rows.append("int $$base" + k + " = " + yVar + " * $$width" + k + "; ");
+            }
+            rowBody.add(rows.toString());
+            rowBody.add("boolean $$interior = " + yVar + " >= $$top && " + yVar + " < $$bottom;");
+            rowBody.add("int " + xVar + " = 0;");
+            rowBody.add("for (int $$to = $$interior ? $$left : $$width; " + xVar + " < $$to; " + xVar + "++, $$index++)");
+            rowBody.add("\t" + store);
+            rowBody.add("for (int $$to = $$interior ? $$right : $$width; " + xVar + " < $$to; " + xVar + "++, $$index++)");
+            rowBody.add("\t" + interiorStore);
+            rowBody.add("for (; " + xVar + " < $$width; " + xVar + "++, $$index++)");
+            rowBody.add("\t" + store);
+        } else {
+            if (!rows.isEmpty()) {
+                rowBody.add(rows.toString());
+            }
+            rowBody.add("for (int " + xVar + " = 0; " + xVar + " < $$width; " + xVar + "++, $$index++)");
+            rowBody.add("\t" + store);
+        }
+
+        if (constant) {
+            if (!locals.isEmpty()) {
+                loop.append("\t\t" + locals + "\n");
+            }
+            loop.append("\t\tint $$color = " + color + ";\n");
+            loop.append("\t\tjava.util.Arrays.fill($$raster, $$color & ImageOps.RGB_MASK);\n");
+        } else if (parallel) {
+            loop.append("\t\tRowBandExecutor.forEachBand($$width, $$height, "
+                    + pixelKernel(xVar, yVar, exprs, rasters.values(), rowBody) + ");\n");
+        } else if (rowMajor) {
+            loop.append("\t\tfor (int " + yVar + " = 0, $$index = 0; " + yVar + " < $$height; " + yVar + "++) {\n");
+            for (String line : rowBody) {
+                loop.append("\t\t\t" + line + "\n");
+            }
+            loop.append("\t\t}\n");
+        } else {
+            loop.append("\t\tfor (int " + xVar + " = 0; " + xVar + " < $$width; " + xVar + "++)\n");
+            loop.append("\t\t\tfor (int " + yVar + " = 0; " + yVar + " < $$height; " + yVar + "++)\n");
+            loop.append("\t\t\t\t" + store + "\n");
+        }
+        for (Map.Entry<String, String> raster : rasters.entrySet()) {
+            String copy = raster.getValue().replace("$$raster", "$$copy");
+            loop.append("\t\tif (" + copy + ") ImageOps.setRGBPixels(" + raster.getKey() + ", " + raster.getValue()
+                    + ");\n");
+        }
+        loop.append("\t}");
+        hoisted.clear();
+        invariantLocals.clear();
+        componentLocals.clear();
+        componentCount = 0;
+        pixelSources = null;
+        rowVar = null;
+        columnVar = null;
+        ranges.setCoordinates();
+        return pixelLoopMethod(names, xVar, yVar, exprs, loop.toString());
+    }
+
+    // the statements storing the value of each of exprs into the raster of the same index at index
+    String pixelStores(List<String> rasters, List<Expr> exprs, String index) throws Exception {
+        List<String> stores = new ArrayList<>();
+        for (int i = 0; i < exprs.size(); i++) {
+            StringBuilder locals = new StringBuilder(commonLocals(exprs.get(i)));
+            String color = packedColor(exprs.get(i), locals);
+            stores.add(pixelStatement(locals.toString(), rasters.get(i) + "[" + index + "] = " + color
+                    + " & ImageOps.RGB_MASK;"));
+        }
+        return stores.size() == 1 ? stores.get(0) : "{ " + String.join(" ", stores) + " }";
+    }
+
+    /*
+     * Adds a method whose body is the code of a pixel loop, with the image and the variables
+     * used by the value as parameters, and returns the code that calls it.  Each loop is compiled
+     * by HotSpot on its own, however large the program is.
+     */
+    String pixelLoopMethod(List<String> names, String xVar, String yVar, List<Expr> exprs, String body) {
+        Map<String, Type> used = new LinkedHashMap<>();
+        for (String name : names) {
+            used.put(name, IMAGE);
+        }
+        for (Expr expr : exprs) {
+            DataflowScheduler.collectNames(expr, used);
+        }
+        used.remove(xVar);
+        used.remove(yVar);
+        List<String> params = new ArrayList<>();
+        for (Map.Entry<String, Type> entry : used.entrySet()) {
+            params.add(typeToString(entry.getValue()) + " " + entry.getKey());
+        }
+        String method = "$$pixels" + loopCount++;
+        classMembers.append("\tprivate static void " + method + "(" + String.join(", ", params) + ")" + body + "\n");
+        return method + "(" + String.join(",", used.keySet()) + ")";
+    }
+
+    /*
+     * Adds the footprint of the pixel reads of expr whose coordinates are the coordinates of the
+     * pixel plus constants, such as img[x+1,y-1], to footprints: the least and greatest x and y
+     * offsets of the reads of each image.  Returns true if expr is a stencil, i.e. one of these
+     * reads is not at the pixel itself, so that its loop is split into an interior where all of
+     * them are inside their images and a border where they may not be.
+     */
+    boolean collectFootprints(Expr expr, Map<Integer, int[]> footprints) {
+        boolean stencil = false;
+        int[] offsets = hoisted.containsKey(expr) ? null : stencilOffsets(expr);
+        if (offsets != null) {
+            int source = pixelSources.get(((UnaryExprPostfix) expr).getExpr().getText());
+            int[] footprint = footprints.computeIfAbsent(source, k -> new int[4]);
+            footprint[0] = Math.min(footprint[0], offsets[0]);
+            footprint[1] = Math.max(footprint[1], offsets[0]);
+            footprint[2] = Math.min(footprint[2], offsets[1]);
+            footprint[3] = Math.max(footprint[3], offsets[1]);
+            stencil = offsets[0] != 0 || offsets[1] != 0;
+        }
+        for (Expr child : Exprs.children(expr)) {
+            stencil |= collectFootprints(child, footprints);
+        }
+        return stencil;
+    }
+
+    // the x and y offsets of a pixel read of a source image at constant offsets from the pixel, or null
+    int[] stencilOffsets(Expr expr) {
+        if (pixelSources == null || columnVar == null || !(expr instanceof UnaryExprPostfix unaryExprPostfix)
+                || !(unaryExprPostfix.getExpr() instanceof IdentExpr)
+                || !pixelSources.containsKey(unaryExprPostfix.getExpr().getText())) {
+            return null;
+        }
+        Integer dx = offset(unaryExprPostfix.getSelector().getX(), columnVar);
+        Integer dy = offset(unaryExprPostfix.getSelector().getY(), rowVar);
+        return dx == null || dy == null ? null : new int[]{dx, dy};
+    }
+
+    // c if coordinate is var, var + c, c + var or var - c for an int literal c, and null otherwise
+    Integer offset(Expr coordinate, String var) {
+        if (coordinate instanceof IdentExpr && coordinate.getText().equals(var)) {
+            return 0;
+        } else if (coordinate instanceof BinaryExpr binaryExpr) {
+            IToken.Kind kind = binaryExpr.getOp().getKind();
+            Expr left = binaryExpr.getLeft();
+            Expr right = binaryExpr.getRight();
+            boolean leftVar = left instanceof IdentExpr && left.getText().equals(var);
+            if (leftVar && right instanceof IntLitExpr intLitExpr && kind == IToken.Kind.PLUS) {
+                return intLitExpr.getValue();
+            } else if (leftVar && right instanceof IntLitExpr intLitExpr && kind == IToken.Kind.MINUS) {
+                return -intLitExpr.getValue();
+            } else if (left instanceof IntLitExpr intLitExpr && right instanceof IdentExpr
+                    && right.getText().equals(var) && kind == IToken.Kind.PLUS) {
+                return intLitExpr.getValue();
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Declares the interior of a stencil loop: the columns $$left to $$right and the rows $$top
+     * to $$bottom, excluded, of the image where all reads of footprints are inside their images.
+     */
+    void stencilBounds(Map<Integer, int[]> footprints, StringBuilder loop) {
+        int left = 0;
+        int top = 0;
+        String right = "$$width";
+        String bottom = "$$height";
+        for (Map.Entry<Integer, int[]> entry : footprints.entrySet()) {
+            int k = entry.getKey();
+            int[] footprint = entry.getValue();
+            left = Math.max(left, -footprint[0]);
+            top = Math.max(top, -footprint[2]);
+            right = "Math.min(" + right + ", " + plus("$$width" + k, -footprint[1]) + ")";
+            bottom = "Math.min(" + bottom + ", " + plus("$$height" + k, -footprint[3]) + ")";
+        }
+        loop.append("\t\tint $$left = Math.min(" + left + ", $$width);\n");
+        loop.append("\t\tint $$right = Math.max($$left, " + right + ");\n");
+        loop.append("\t\tint $$top = Math.min(" + top + ", $$height);\n");
+        loop.append("\t\tint $$bottom = Math.max($$top, " + bottom + ");\n");
+        for (String bound : List.of("$$left", "$$right", "$$top", "$$bottom")) {
+            invariantLocals.put(bound, "int");
+        }
+    }
+
+    String plus(String code, int c) {
+        return c == 0 ? code : code + (c > 0 ? " + " + c : " - " + -c);
+    }
+
+    // suffix of the ImageOps methods reading pixels with the edge policy of the program
+    String edgeSuffix() {
+        return switch (edgePolicy) {
+            case ERROR -> "";
+            case CLAMP -> "Clamped";
+            case WRAP -> "Wrapped";
+            case CONSTANT -> "OrEdge";
+        };
+    }
+
+    // body of a pixel loop computing the given locals and then executing statement
+    String pixelStatement(String locals, String statement) {
+        return locals.isEmpty() ? statement : "{ " + locals + statement + " }";
+    }
+
+    /*
+     * Returns the declarations of local variables for the subexpressions of a pixel value that
+     * occur more than once, and adds them to hoisted.  Only subexpressions that are evaluated for
+     * every pixel are considered, i.e. not the cases of conditionals.
+     */
+    String commonLocals(Expr expr) throws Exception {
+        Map<Exprs.Key, List<Expr>> occurrences = new LinkedHashMap<>();
+        Map<Expr, List<Expr>> groups = new IdentityHashMap<>();
+        collectOccurrences(expr, occurrences, groups);
+        StringBuilder declarations = new StringBuilder();
+        for (List<Expr> group : occurrences.values()) {
+            declareCommonLocal(group, groups, declarations);
+        }
+        return declarations.toString();
+    }
+
+    // records the occurrences of subexpressions, without searching repeated ones again
+    void collectOccurrences(Expr expr, Map<Exprs.Key, List<Expr>> occurrences, Map<Expr, List<Expr>> groups) {
+        if (hoisted.containsKey(expr)) {
+            return;
+        }
+        if (!Exprs.isLeaf(expr) && !(expr instanceof ColorConstExpr) && !Exprs.hasSideEffects(expr)) {
+            List<Expr> group = occurrences.computeIfAbsent(new Exprs.Key(expr), key -> new ArrayList<>());
+            group.add(expr);
+            groups.put(expr, group);
+            if (group.size() > 1) {
+                return;
+            }
+        }
+        for (Expr child : Exprs.children(expr)) {
+            if (expr instanceof ConditionalExpr conditionalExpr && child != conditionalExpr.getCondition()) {
+                continue;
+            }
+            collectOccurrences(child, occurrences, groups);
+        }
+    }
+
+    // declares the local of a repeated subexpression after those of the repeated subexpressions it uses
+    void declareCommonLocal(List<Expr> group, Map<Expr, List<Expr>> groups, StringBuilder declarations)
+            throws Exception {
+        Expr first = group.get(0);
+        if (group.size() < 2 || hoisted.containsKey(first)) {
+            return;
+        }
+        declareUsedLocals(first, groups, declarations);
+        String local = "$$common" + hoisted.size();
+        Type type = first.getType();
+        String[] components = isPixelRead(first) || (type != COLOR && type != COLORFLOAT) ? null
+                : colorComponents(first, type, declarations);
+        if (components != null) {
+            // a color is computed into a local for each component, and only created where needed
+            String[] names = {local + "Red", local + "Green", local + "Blue"};
+            for (int i = 0; i < 3; i++) {
+                declarations.append(typeToString(type == COLORFLOAT ? FLOAT : INT) + " " + names[i] + " = "
+                        + components[i] + "; ");
+            }
+            local = colorTuple(names, type);
+            componentLocals.put(local, names);
+        } else {
+            String code = first.visit(this, new StringBuilder("")).toString();
+            declarations.append(javaType(first) + " " + local + " = " + code + "; ");
+        }
+        for (Expr occurrence : group) {
+            hoisted.put(occurrence, local);
+        }
+    }
+
+    void declareUsedLocals(Expr expr, Map<Expr, List<Expr>> groups, StringBuilder declarations) throws Exception {
+        for (Expr child : Exprs.children(expr)) {
+            List<Expr> group = groups.get(child);
+            if (group != null && group.size() > 1) {
+                declareCommonLocal(group, groups, declarations);
+            } else {
+                declareUsedLocals(child, groups, declarations);
+            }
+        }
+    }
+
+    // Java type of the code generated for an expression that is not a literal or variable
+    String javaType(Expr expr) {
+        if (expr.getType() == COLORFLOAT) return "ColorTupleFloat";
+        return typeToString(expr.getType());
+    }
+
+    /*
+     * Adds a method that returns a RowKernel computing the given rows of a pixel assignment,
+     * with the variables used by the value as parameters, and returns the code that calls it.
+     */
+    String pixelKernel(String xVar, String yVar, List<Expr> exprs, Collection<String> rasters, List<String> rowBody) {
+        Map<String, Type> used = new LinkedHashMap<>();
+        for (Expr expr : exprs) {
+            DataflowScheduler.collectNames(expr, used);
+        }
+        used.remove(xVar);
+        used.remove(yVar);
+        List<String> params = new ArrayList<>();
+        for (Map.Entry<String, Type> entry : used.entrySet()) {
+            params.add(typeToString(entry.getValue()) + " " + entry.getKey());
+        }
+        for (Map.Entry<String, String> entry : invariantLocals.entrySet()) {
+            params.add(entry.getValue() + " " + entry.getKey());
+        }
+        for (String raster : rasters) {
+            params.add("int[] " + raster);
+        }
+        params.add("int $$width");
+        String kernel = "$$kernel" + kernelCount++;
+
+        classMembers.append("\tprivate static RowBandExecutor.RowKernel " + kernel + "(" + String.join(", ", params) + "){\n");
+        classMembers.append("\t\treturn ($$fromRow, $$toRow) -> {\n");
+        classMembers.append("\t\t\tfor (int " + yVar + " = $$fromRow, $$index = $$fromRow * $$width; " + yVar
+                + " < $$toRow; " + yVar + "++) {\n");
+        for (String line : rowBody) {
+            classMembers.append("\t\t\t\t" + line + "\n");
+        }
+        classMembers.append("\t\t\t}\n");
+        classMembers.append("\t\t};\n\t}\n");
+
+        List<String> args = new ArrayList<>(used.keySet());
+        args.addAll(invariantLocals.keySet());
+        args.addAll(rasters);
+        args.add("$$width");
+        return kernel + "(" + String.join(",", args) + ")";
+    }
+
     public Object bufferedImage(String name, Expr expr, Dimension dim, Object arg) throws Exception {
         StringBuilderDelegate res = new StringBuilderDelegate(arg);
 
@@ -601,10 +1510,10 @@ public class CodeGenVisitor implements ASTVisitor {
                     res.add("," + dim.getWidth().getText());
                     res.add("," + dim.getHeight().getText());
                     res.add(")");
-                } else if (expr.getType() == COLOR) {
+                } else if (expr.getType() != IMAGE) {
                     String xVar = dim.getWidth().getText();
                     String yVar = dim.getHeight().getText();
-                    res.add("new BufferedImage(" + xVar + "," + yVar + ",BufferedImage.TYPE_INT_RGB);");
+                    res.add("new BufferedImage(" + xVar + "," + yVar + ",BufferedImage.TYPE_INT_RGB)");
                 } else {
                     return null;
                 }
@@ -620,17 +1529,9 @@ public class CodeGenVisitor implements ASTVisitor {
                     } else {
                         return null;
                     }
-                } else if (expr instanceof BinaryExpr) {
-                    String op = ((BinaryExpr) expr).getOp().getKind().toString();
-                    StringBuilder leftStr = (StringBuilder) ((BinaryExpr) expr).getLeft().visit(this,
-                            new StringBuilder(""));
-                    StringBuilder rightStr = (StringBuilder) ((BinaryExpr) expr).getRight().visit(this,
-                            new StringBuilder(""));
-
-                    res.add(" ImageOps.binaryImageScalarOp(");
-                    res.add(op + ",");
-                    res.add(leftStr + ",");
-                    res.add(rightStr + ")");
+                } else if (expr instanceof BinaryExpr || expr instanceof UnaryExpr) {
+                    // generated by visitAssignmentStatement
+                    return null;
                 } else {
                     res.add(exprStr);
                 }
@@ -654,7 +1555,9 @@ public class CodeGenVisitor implements ASTVisitor {
         String name = declaration.getNameDef().getName();
         Type decType = declaration.getNameDef().getType();
 
-        PixelSelector pixelSelector = declaration.getDim() != null ?
+        // the dimension is only used as a selector to resize an image, other values fill the image
+        PixelSelector pixelSelector = declaration.getDim() != null && declaration.getExpr() != null
+                && declaration.getExpr().getType() == IMAGE ?
                 new PixelSelector(declaration.getDim().getFirstToken(),
                         declaration.getDim().getWidth(), declaration.getDim().getHeight()) : null;
 
@@ -712,13 +1615,320 @@ public class CodeGenVisitor implements ASTVisitor {
     @Override
     public Object visitUnaryExprPostfix(UnaryExprPostfix unaryExprPostfix, Object arg) throws Exception {
         StringBuilderDelegate res = new StringBuilderDelegate(arg);
-        StringBuilder exprStr = (StringBuilder) unaryExprPostfix.getExpr().visit(this, new StringBuilder(""));
+        if (hoisted.containsKey(unaryExprPostfix)) {
+            res.add(hoisted.get(unaryExprPostfix));
+            return res.str;
+        }
+        Expr image = unaryExprPostfix.getExpr();
+        Expr x = unaryExprPostfix.getSelector().getX();
+        Expr y = unaryExprPostfix.getSelector().getY();
+        String xStr = x.visit(this, new StringBuilder("")).toString();
+        String yStr = y.visit(this, new StringBuilder("")).toString();
+        Integer source = pixelSources != null && image instanceof IdentExpr ? pixelSources.get(image.getText()) : null;
+        int[] offsets = interiorReads ? stencilOffsets(unaryExprPostfix) : null;
+        if (offsets != null) {
+            // a read of the interior of a stencil loop, which is inside the image
+            String index = plus("$$base" + source + " + " + columnVar, offsets[0]);
+            if (offsets[1] != 0) {
+                index += (offsets[1] > 0 ? " + " : " - ") + (Math.abs(offsets[1]) == 1 ? "" : Math.abs(offsets[1]) + " * ")
+                        + "$$width" + source;
+            }
+            res.add("ImageOps.getPixelUnchecked($$pixels" + source + ", " + index + ")");
+        } else if (source == null) {
+            StringBuilder exprStr = (StringBuilder) image.visit(this, new StringBuilder(""));
+            res.add("ImageOps.getPixel(" + exprStr + ", " + xStr + ", " + yStr + ", ImageOps.EdgePolicy." + edgePolicy + ")");
+        } else if (rowVar != null && y instanceof IdentExpr && y.getText().equals(rowVar)) {
+            // the row of the pixel is the row of the loop, whose offset is computed once per row
+            rowSources.add(source);
+            res.add("ImageOps.getPixelInRow" + edgeSuffix() + "($$pixels" + source + ", $$row" + source + ", $$width"
+                    + source + ", $$height" + source + ", " + xStr + ", " + yStr + ")");
+        } else {
+            res.add("ImageOps.getPixel" + edgeSuffix() + "($$pixels" + source + ", $$width" + source + ", $$height"
+                    + source + ", " + xStr + ", " + yStr + ")");
+        }
+        return res.getString();
+    }
+
+    /*
+     * Adds a method that returns a Callable computing the image of the statement, with the
+     * variables it uses as parameters, and returns the code that submits it to DataflowExecutor.
+     */
+    String submitTask(ASTNode node, int index) throws Exception {
+        String imageCode;
+        if (node instanceof ReadStatement statement) {
+            imageCode = readImageCode(statement.getSource(), statement.getTargetDec().getDim());
+        } else if (node instanceof VarDeclaration declaration && declaration.getOp().getKind() == IToken.Kind.LARROW) {
+            imageCode = readImageCode(declaration.getExpr(), declaration.getDim());
+        } else {
+            Expr expr = node instanceof VarDeclaration declaration ? declaration.getExpr()
+                    : ((AssignmentStatement) node).getExpr();
+            imageCode = expr.visit(this, new StringBuilder("")).toString();
+        }
 
-        res.add(exprStr + ".getRGB(");
-        StringBuilder postfix = (StringBuilder) unaryExprPostfix.getSelector().visit(this, new StringBuilder(""));
-        res.add(postfix + ")");
+        Map<String, Type> used = DataflowScheduler.usedNames(node);
+        List<String> params = new ArrayList<>();
+        for (Map.Entry<String, Type> entry : used.entrySet()) {
+            params.add(typeToString(entry.getValue()) + " " + entry.getKey());
+        }
+        classMembers.append("\tprivate static java.util.concurrent.Callable<BufferedImage> $$task").append(index)
+                .append("(").append(String.join(", ", params)).append("){\n");
+        classMembers.append("\t\treturn () -> ").append(imageCode).append(";\n\t}\n");
 
-        return res.getString();
+        return "java.util.concurrent.ForkJoinTask<BufferedImage> $$future" + index + " = DataflowExecutor.submit($$task"
+                + index + "(" + String.join(",", used.keySet()) + "))";
+    }
+
+    String joinTask(ASTNode node, int index) {
+        String declare = node instanceof VarDeclaration ? "BufferedImage " : "";
+        return declare + DataflowScheduler.definedName(node) + " = DataflowExecutor.join($$future" + index + ")";
+    }
+
+    /*
+     * Returns a rough estimate of the size of the bytecode of the given Java code, counting
+     * names, literals and operators.  Most of them compile to one or two instructions of one to
+     * three bytes.
+     */
+    static int estimatedSize(String code) {
+        Matcher tokens = TOKEN.matcher(code);
+        int size = 0;
+        while (tokens.find()) {
+            size += 2;
+        }
+        return size;
+    }
+
+    private static final Pattern TOKEN = Pattern.compile("\"(\\\\.|[^\"\\\\])*\"|[\\w$.]+|[-+*/%<>=!&|?:]+");
+
+    /*
+     * Splits the statements of a program into segments of about MAX_METHOD_SIZE, adds a method
+     * for each segment, and returns the code of apply that calls them.  The variables used by
+     * more than one segment are elements of a frame array created by apply, which each segment
+     * copies into local variables of the same names before its statements, and copies back after
+     * them if a later segment uses them, so that the code of the statements does not change.  An
+     * array is used rather than a nested class, since only the class of the program is loaded.  A
+     * segment containing the return statement returns the result of the program.
+     */
+    String segments(Program program, List<String> statements) {
+        List<ASTNode> decsAndStatements = program.getDecsAndStatements();
+        Map<String, Type> variables = new LinkedHashMap<>();
+        for (NameDef param : program.getParams()) {
+            variables.put(param.getName(), param.getType());
+        }
+        List<Set<String>> used = new ArrayList<>();
+        for (ASTNode node : decsAndStatements) {
+            if (node instanceof VarDeclaration declaration) {
+                variables.put(declaration.getName(), declaration.getType());
+            }
+            Set<String> names = new LinkedHashSet<>(LivenessAnalysis.usedNames(node).keySet());
+            String defined = DataflowScheduler.definedName(node);
+            if (defined != null) names.add(defined);
+            used.add(names);
+        }
+        for (Set<String> names : used) {
+            names.retainAll(variables.keySet());
+        }
+        // the loop of a fused run is the code of its first statement
+        for (Map.Entry<Integer, Integer> run : fusedRuns.entrySet()) {
+            for (int i = run.getKey() + 1; i < run.getValue(); i++) {
+                used.get(run.getKey()).addAll(used.get(i));
+            }
+        }
+
+        List<Integer> starts = new ArrayList<>();
+        int size = 0;
+        for (int i = 0; i < statements.size(); i++) {
+            int statementSize = estimatedSize(statements.get(i));
+            if (i == 0 || size + statementSize > MAX_METHOD_SIZE) {
+                starts.add(i);
+                size = 0;
+            }
+            size += statementSize;
+        }
+        starts.add(statements.size());
+
+        Set<String> declared = new LinkedHashSet<>();
+        Set<String> assigned = new LinkedHashSet<>();
+        for (NameDef param : program.getParams()) {
+            declared.add(param.getName());
+            assigned.add(param.getName());
+        }
+        Map<String, Integer> slots = new LinkedHashMap<>();
+        StringBuilder apply = new StringBuilder();
+        StringBuilder methods = new StringBuilder();
+        for (int s = 0; s + 1 < starts.size(); s++) {
+            int from = starts.get(s);
+            int to = starts.get(s + 1);
+            Set<String> segmentNames = new LinkedHashSet<>();
+            Set<String> laterNames = new HashSet<>();
+            boolean returns = false;
+            for (int i = from; i < to; i++) {
+                segmentNames.addAll(used.get(i));
+                returns |= decsAndStatements.get(i) instanceof ReturnStatement;
+            }
+            for (int i = to; i < decsAndStatements.size(); i++) {
+                laterNames.addAll(used.get(i));
+            }
+
+            String method = "$$segment" + segmentCount++;
+            String returnType = returns ? typeToString(program.getReturnType()) : "void";
+            methods.append("\tprivate static " + returnType + " " + method + "(Object[] $$frame){\n");
+            Set<String> loaded = new LinkedHashSet<>();
+            for (String name : segmentNames) {
+                if (!declared.contains(name)) continue;
+                String type = typeToString(variables.get(name));
+                if (assigned.contains(name)) {
+                    methods.append("\t\t" + type + " " + name + " = (" + boxedType(variables.get(name)) + ") $$frame["
+                            + slots.computeIfAbsent(name, key -> slots.size()) + "];\n");
+                    loaded.add(name);
+                } else {
+                    methods.append("\t\t" + type + " " + name + ";\n");
+                }
+            }
+            Set<String> segmentAssigned = new HashSet<>();
+            for (int i = from; i < to; i++) {
+                if (!statements.get(i).isEmpty()) {
+                    methods.append("\t").append(statements.get(i)).append("\n");
+                }
+                ASTNode node = decsAndStatements.get(i);
+                if (node instanceof VarDeclaration declaration) {
+                    declared.add(declaration.getName());
+                }
+                if (isAssignment(node)) {
+                    segmentAssigned.add(DataflowScheduler.definedName(node));
+                }
+            }
+            assigned.addAll(segmentAssigned);
+            if (!returns) {
+                for (String name : segmentNames) {
+                    if (laterNames.contains(name) && segmentAssigned.contains(name)) {
+                        methods.append("\t\t$$frame[" + slots.computeIfAbsent(name, key -> slots.size()) + "] = " + name
+                                + ";\n");
+                    } else if (loaded.contains(name) && !laterNames.contains(name)) {
+                        methods.append("\t\t$$frame[" + slots.get(name) + "] = null;\n");
+                    }
+                }
+            }
+            methods.append("\t}\n");
+            apply.append("\t").append(returns ? "return " : "").append(method).append("($$frame);\n");
+        }
+
+        StringBuilder init = new StringBuilder("\tObject[] $$frame = new Object[" + slots.size() + "];\n");
+        for (NameDef param : program.getParams()) {
+            if (slots.containsKey(param.getName())) {
+                init.append("\t$$frame[" + slots.get(param.getName()) + "] = " + param.getName() + ";\n");
+            }
+        }
+        classMembers.append(methods);
+        apply.insert(0, init);
+        return apply.substring(0, apply.length() - 1);
+    }
+
+    /*
+     * Returns the index after the longest run of consecutive pixel assignments starting at i that
+     * can be computed in one loop: all have the same coordinate variables, have non-constant
+     * values without side effects, and read no pixel of the images assigned by the run but the
+     * one being assigned.  Each pixel is then computed by the statements in order, and the
+     * values they read are those they read if each statement is a loop of its own.
+     */
+    static int fusedRunEnd(List<ASTNode> decsAndStatements, int i) {
+        List<String> targets = new ArrayList<>();
+        List<Expr> exprs = new ArrayList<>();
+        String[] vars = null;
+        int end = i;
+        for (; end < decsAndStatements.size(); end++) {
+            if (!(decsAndStatements.get(end) instanceof AssignmentStatement statement)
+                    || statement.getTargetDec().getType() != IMAGE || statement.getExpr().getType() == IMAGE) {
+                break;
+            }
+            String[] statementVars = pixelVars(statement);
+            String target = statement.getName();
+            Expr expr = statement.getExpr();
+            if (vars != null && !Arrays.equals(vars, statementVars) || Exprs.hasSideEffects(expr)
+                    || Exprs.isInvariant(expr, Set.of(target, statementVars[0], statementVars[1]))) {
+                break;
+            }
+            List<String> runTargets = new ArrayList<>(targets);
+            runTargets.add(target);
+            List<Expr> runExprs = new ArrayList<>(exprs);
+            runExprs.add(expr);
+            boolean independent = true;
+            for (String runTarget : runTargets) {
+                for (Expr runExpr : runExprs) {
+                    independent &= !Exprs.readsOtherPixels(runExpr, runTarget, statementVars[0], statementVars[1]);
+                }
+            }
+            if (!independent) {
+                break;
+            }
+            vars = statementVars;
+            targets = runTargets;
+            exprs = runExprs;
+        }
+        return end;
+    }
+
+    // the coordinate variables of a pixel assignment
+    static String[] pixelVars(AssignmentStatement statement) {
+        PixelSelector selector = statement.getSelector();
+        return selector == null ? new String[]{"$$x", "$$y"}
+                : new String[]{selector.getX().getText(), selector.getY().getText()};
+    }
+
+    /*
+     * Returns the code of a run of pixel assignments: a single loop computing them all if their
+     * images have the same size and the images they read at other pixels are not among them,
+     * and a loop for each statement otherwise.
+     */
+    String fusedPixelLoops(List<AssignmentStatement> run) throws Exception {
+        List<String> names = run.stream().map(AssignmentStatement::getName).toList();
+        List<Expr> exprs = run.stream().map(AssignmentStatement::getExpr).toList();
+        String[] vars = pixelVars(run.get(0));
+        String fused = pixelLoop(names, vars[0], vars[1], exprs);
+
+        List<String> conditions = new ArrayList<>();
+        Set<String> targets = new LinkedHashSet<>(names);
+        String first = names.get(0);
+        for (String target : targets) {
+            if (!target.equals(first)) {
+                conditions.add(first + ".getWidth() == " + target + ".getWidth() && " + first + ".getHeight() == "
+                        + target + ".getHeight()");
+            }
+        }
+        Set<String> sources = new LinkedHashSet<>();
+        for (Expr expr : exprs) {
+            Exprs.collectPixelSources(expr, sources);
+        }
+        sources.removeAll(targets);
+        for (String source : sources) {
+            for (String target : targets) {
+                conditions.add(source + " != " + target);
+            }
+        }
+        if (conditions.isEmpty()) {
+            return fused;
+        }
+        StringBuilder separate = new StringBuilder();
+        for (AssignmentStatement statement : run) {
+            separate.append(" ").append(pixelLoop(statement.getName(), vars[0], vars[1], statement.getExpr())).append(";");
+        }
+        return "if (" + String.join(" && ", conditions) + ") " + fused + "; else {" + separate + " }";
+    }
+
+    // true if node assigns a value to the variable it defines
+    static boolean isAssignment(ASTNode node) {
+        if (node instanceof VarDeclaration declaration) {
+            return declaration.getOp() != null || declaration.getDim() != null && declaration.getType() == IMAGE;
+        }
+        return node instanceof AssignmentStatement || node instanceof ReadStatement;
+    }
+
+    String boxedType(Type type) {
+        return type == IMAGE ? "BufferedImage" : capitalizedType(type);
+    }
+
+    String readImageCode(Expr source, Dimension dim) {
+        String size = dim != null ? "," + dim.getWidth().getText() + "," + dim.getHeight().getText() : "";
+        return "FileURLIO.readImage(" + source.getText() + size + ")";
     }
 
     @Override
@@ -746,14 +1956,88 @@ public class CodeGenVisitor implements ASTVisitor {
         str.append("){\n");
 
         List<ASTNode> decsAndStatements = program.getDecsAndStatements();
+        DataflowScheduler scheduler = scheduleImageStatements ? new DataflowScheduler(decsAndStatements) : null;
+        LivenessAnalysis liveness = reuseDeadImages && scheduler == null ? new LivenessAnalysis(program) : null;
+        classMembers = new StringBuilder();
+        kernelCount = 0;
+        loopCount = 0;
+        segmentCount = 0;
+        colorConstants.clear();
+        fusedRuns.clear();
+        ranges = new RangeAnalysis(program);
+        List<String> statements = new ArrayList<>();
+        int fusedEnd = 0;
         for (int i = 0; i < decsAndStatements.size(); i++) {
-            str.append("\t");
-            decsAndStatements.get(i).visit(this, str);
-            str.append(";");
-            if (i != decsAndStatements.size() - 1) str.append("\n");
+            StringBuilder statement = new StringBuilder();
+            if (i < fusedEnd) {
+                // computed by the loop of its run, after which the images dead after it are too
+                if (liveness != null) {
+                    for (String name : liveness.deadImagesAfter(i)) {
+                        statement.append("\t").append(name).append(" = null;");
+                    }
+                }
+                statements.add(statement.toString());
+                continue;
+            }
+            if (fusePixelLoops && scheduler == null && fusedRunEnd(decsAndStatements, i) > i + 1) {
+                fusedEnd = fusedRunEnd(decsAndStatements, i);
+                fusedRuns.put(i, fusedEnd);
+                List<AssignmentStatement> run = new ArrayList<>();
+                for (int j = i; j < fusedEnd; j++) {
+                    run.add((AssignmentStatement) decsAndStatements.get(j));
+                }
+                statement.append("\t").append(fusedPixelLoops(run)).append(";");
+                if (liveness != null) {
+                    for (String name : liveness.deadImagesAfter(i)) {
+                        statement.append(" ").append(name).append(" = null;");
+                    }
+                }
+                statements.add(statement.toString());
+                continue;
+            }
+            if (scheduler != null) {
+                for (int task : scheduler.joinsBefore(i)) {
+                    statement.append("\t").append(joinTask(decsAndStatements.get(task), task)).append(";\n");
+                }
+            }
+            statement.append("\t");
+            if (scheduler != null && scheduler.isTask(i)) {
+                statement.append(submitTask(decsAndStatements.get(i), i));
+            } else {
+                if (liveness != null) {
+                    chooseReusableImage(decsAndStatements.get(i), i, liveness);
+                }
+                decsAndStatements.get(i).visit(this, statement);
+                reuseRoot = null;
+                reuseImage = null;
+            }
+            statement.append(";");
+            if (liveness != null && i != decsAndStatements.size() - 1
+                    && !(decsAndStatements.get(i) instanceof ReturnStatement)) {
+                for (String name : liveness.deadImagesAfter(i)) {
+                    statement.append(" ").append(name).append(" = null;");
+                }
+            }
+            statements.add(statement.toString());
+        }
+        // the futures of scheduled tasks are local variables of apply, so apply is not split then
+        if (scheduler == null && estimatedSize(String.join("\n", statements)) > MAX_METHOD_SIZE) {
+            str.append(segments(program, statements));
+        } else {
+            str.append(String.join("\n", statements.stream().filter(statement -> !statement.isEmpty()).toList()));
+        }
+        if (scheduler != null) {
+            for (int task : scheduler.joinsAtEnd()) {
+                str.append("\n\t").append(joinTask(decsAndStatements.get(task), task)).append(";");
+            }
         }
 
-        str.append("\n\t}\n}");
+        str.append("\n\t}\n");
+        for (String color : colorConstants) {
+            str.append("\tprivate static final int $$" + color + " = Color." + color + ".getRGB();\n");
+        }
+        str.append(classMembers);
+        str.append("}");
 
         return str.toString();
     }
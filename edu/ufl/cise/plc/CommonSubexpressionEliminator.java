@@ -0,0 +1,246 @@
+package edu.ufl.cise.plc;
+
+import edu.ufl.cise.plc.ast.*;
+
+import java.util.*;
+
+import static edu.ufl.cise.plc.ast.Types.Type;
+import static edu.ufl.cise.plc.ast.Types.Type.*;
+
+/**
+ * Computes expressions that occur more than once in a program only once.
+ *
+ * The statements are scanned in order, keeping the expressions computed so far that are
+ * still available, i.e. no variable they use has been given a new value since, where pixel
+ * assignments give a new value to their image.  An expression equal to an available one
+ * (see Exprs.sameExpr) is replaced by a variable holding its value: the variable assigned by
+ * the statement that computed it, if that statement assigns the whole expression, or else a
+ * new variable $$cseN declared just before the first occurrence.  This also applies to image
+ * operations, so an image computed twice is only computed once.
+ *
+ * Only expressions that are evaluated whenever their statement is executed are considered,
+ * so the branches of conditionals are not searched.  Pixel assignments, which evaluate their
+ * value once per pixel, are left to the code generator, as are pixel reads, dimensions,
+ * reads and the images of writes to files.
+ */
+public class CommonSubexpressionEliminator {
+
+    /*
+     * An available expression and its later occurrences.
+     */
+    static class Occurrence {
+        final Expr first;
+        final int statement;
+        final Set<String> uses;
+        int count = 1;
+        // variable holding the value, null until known
+        String name;
+        boolean assigned;
+
+        Occurrence(Expr first, int statement) {
+            this.first = first;
+            this.statement = statement;
+            Map<String, Type> names = new HashMap<>();
+            DataflowScheduler.collectNames(first, names);
+            this.uses = names.keySet();
+        }
+    }
+
+    private final Map<Expr, Occurrence> occurrences = new IdentityHashMap<>();
+    private int tempCount = 0;
+
+    /**
+     * Returns a program computing the same results as program, with common subexpressions
+     * replaced by variables.
+     */
+    public Program eliminate(Program program) {
+        List<ASTNode> decsAndStatements = program.getDecsAndStatements();
+        Map<Exprs.Key, Occurrence> available = new HashMap<>();
+        for (int i = 0; i < decsAndStatements.size(); i++) {
+            ASTNode node = decsAndStatements.get(i);
+            Expr root = candidateRoot(node);
+            if (root != null) {
+                scan(root, i, available);
+            }
+            String defined = DataflowScheduler.definedName(node);
+            if (defined != null) {
+                available.values().removeIf(occurrence -> occurrence.uses.contains(defined)
+                        || defined.equals(occurrence.name));
+            }
+            Occurrence occurrence = root != null ? occurrences.get(root) : null;
+            if (occurrence != null && occurrence.first == root && assignsWholeValue(node, root)
+                    && available.containsValue(occurrence)) {
+                occurrence.name = defined;
+                occurrence.assigned = true;
+            }
+        }
+
+        List<ASTNode> result = new ArrayList<>();
+        for (ASTNode node : decsAndStatements) {
+            Expr root = candidateRoot(node);
+            if (root == null) {
+                result.add(node);
+                continue;
+            }
+            Expr rewritten = rewrite(root, result);
+            result.add(rewritten == root ? node : withExpr(node, rewritten));
+        }
+        return new Program(program.getFirstToken(), program.getReturnType(), program.getName(), program.getParams(),
+                result);
+    }
+
+    /*
+     * Returns the expression of a statement searched for common subexpressions, or null.
+     */
+    static Expr candidateRoot(ASTNode node) {
+        if (node instanceof VarDeclaration declaration) {
+            if (declaration.getOp() == null || declaration.getOp().getKind() != IToken.Kind.ASSIGN) return null;
+            boolean pixels = declaration.getType() == IMAGE
+                    && (declaration.getExpr().getType() != IMAGE || declaration.getDim() != null);
+            return pixels ? null : declaration.getExpr();
+        } else if (node instanceof AssignmentStatement statement) {
+            boolean pixels = statement.getTargetDec().getType() == IMAGE
+                    && (statement.getSelector() != null || statement.getExpr().getType() != IMAGE);
+            return pixels ? null : statement.getExpr();
+        } else if (node instanceof WriteStatement statement) {
+            return statement.getDest().getType() == STRING && statement.getSource().getType() == IMAGE ? null
+                    : statement.getSource();
+        } else if (node instanceof ReturnStatement statement) {
+            return statement.getExpr();
+        }
+        return null;
+    }
+
+    // true if the variable assigned by node holds the value of root afterwards
+    static boolean assignsWholeValue(ASTNode node, Expr root) {
+        if (node instanceof VarDeclaration declaration) {
+            return declaration.getType() == root.getType();
+        }
+        return node instanceof AssignmentStatement statement && statement.getTargetDec().getType() == root.getType();
+    }
+
+    static boolean isCandidate(Expr expr) {
+        Type type = expr.getType();
+        boolean operation = expr instanceof BinaryExpr || expr instanceof UnaryExpr || expr instanceof ConditionalExpr
+                || expr instanceof ColorExpr;
+        return operation && (type == INT || type == FLOAT || type == BOOLEAN || type == COLOR || type == IMAGE)
+                && expr.getCoerceTo() != COLORFLOAT && !Exprs.hasSideEffects(expr);
+    }
+
+    // children that are evaluated whenever expr is
+    static List<Expr> evaluatedChildren(Expr expr) {
+        if (expr instanceof ConditionalExpr conditionalExpr) {
+            return List.of(conditionalExpr.getCondition());
+        }
+        return Exprs.children(expr);
+    }
+
+    /*
+     * Records the occurrences of candidate expressions in expr, in evaluation order.  The
+     * subexpressions of an occurrence of an available expression are not searched, since they
+     * are not evaluated once the occurrence is replaced.  Repeated image operations in a
+     * single statement are left to the fused image code.
+     */
+    void scan(Expr expr, int statement, Map<Exprs.Key, Occurrence> available) {
+        if (isCandidate(expr)) {
+            Exprs.Key key = new Exprs.Key(expr);
+            Occurrence occurrence = available.get(key);
+            if (occurrence == null) {
+                occurrence = new Occurrence(expr, statement);
+                available.put(key, occurrence);
+                occurrences.put(expr, occurrence);
+            } else if (expr.getType() != IMAGE || occurrence.statement != statement) {
+                occurrence.count++;
+                occurrences.put(expr, occurrence);
+                return;
+            }
+        }
+        for (Expr child : evaluatedChildren(expr)) {
+            scan(child, statement, available);
+        }
+    }
+
+    /*
+     * Returns expr with repeated expressions replaced by their variables.  Declarations of new
+     * variables are added to declarations.
+     */
+    Expr rewrite(Expr expr, List<ASTNode> declarations) {
+        Occurrence occurrence = occurrences.get(expr);
+        if (occurrence == null || occurrence.count < 2) {
+            return rewriteChildren(expr, declarations);
+        }
+        if (occurrence.first == expr) {
+            Expr value = rewriteChildren(expr, declarations);
+            if (occurrence.assigned) {
+                return value;
+            }
+            occurrence.name = "$$cse" + tempCount++;
+            Expr variable = variable(occurrence.name, expr);
+            declarations.add(declaration(occurrence.name, value));
+            return variable;
+        }
+        return variable(occurrence.name, expr);
+    }
+
+    Expr rewriteChildren(Expr expr, List<ASTNode> declarations) {
+        if (expr instanceof BinaryExpr binaryExpr) {
+            Expr left = rewrite(binaryExpr.getLeft(), declarations);
+            Expr right = rewrite(binaryExpr.getRight(), declarations);
+            if (left == binaryExpr.getLeft() && right == binaryExpr.getRight()) return expr;
+            return ASTOptimizer.typed(new BinaryExpr(expr.getFirstToken(), left, binaryExpr.getOp(), right), expr);
+        } else if (expr instanceof UnaryExpr unaryExpr) {
+            Expr e = rewrite(unaryExpr.getExpr(), declarations);
+            if (e == unaryExpr.getExpr()) return expr;
+            return ASTOptimizer.typed(new UnaryExpr(expr.getFirstToken(), unaryExpr.getOp(), e), expr);
+        } else if (expr instanceof ConditionalExpr conditionalExpr) {
+            Expr condition = rewrite(conditionalExpr.getCondition(), declarations);
+            if (condition == conditionalExpr.getCondition()) return expr;
+            return ASTOptimizer.typed(new ConditionalExpr(expr.getFirstToken(), condition,
+                    conditionalExpr.getTrueCase(), conditionalExpr.getFalseCase()), expr);
+        } else if (expr instanceof ColorExpr colorExpr) {
+            Expr red = rewrite(colorExpr.getRed(), declarations);
+            Expr green = rewrite(colorExpr.getGreen(), declarations);
+            Expr blue = rewrite(colorExpr.getBlue(), declarations);
+            if (red == colorExpr.getRed() && green == colorExpr.getGreen() && blue == colorExpr.getBlue()) return expr;
+            return ASTOptimizer.typed(new ColorExpr(expr.getFirstToken(), red, green, blue), expr);
+        }
+        return expr;
+    }
+
+    // a variable with the value of expr, with the coercion of expr
+    static IdentExpr variable(String name, Expr expr) {
+        IdentExpr variable = new IdentExpr(ASTOptimizer.token(expr, IToken.Kind.IDENT, name));
+        variable.setType(expr.getType());
+        variable.setCoerceTo(expr.getCoerceTo());
+        return variable;
+    }
+
+    static VarDeclaration declaration(String name, Expr value) {
+        IToken nameToken = ASTOptimizer.token(value, IToken.Kind.IDENT, name);
+        NameDef nameDef = new NameDef(nameToken, value.getType().name().toLowerCase(), name);
+        VarDeclaration declaration = new VarDeclaration(nameToken, nameDef,
+                ASTOptimizer.token(value, IToken.Kind.ASSIGN, "="), value);
+        if (value.getType() != IMAGE) {
+            value.setCoerceTo(value.getType());
+        }
+        declaration.setInitialized(true);
+        return declaration;
+    }
+
+    static ASTNode withExpr(ASTNode node, Expr expr) {
+        if (node instanceof VarDeclaration declaration) {
+            VarDeclaration result = new VarDeclaration(declaration.getFirstToken(), declaration.getNameDef(),
+                    declaration.getOp(), expr);
+            result.setInitialized(declaration.isInitialized());
+            return result;
+        } else if (node instanceof AssignmentStatement statement) {
+            AssignmentStatement result = new AssignmentStatement(statement.getFirstToken(), statement.getName(),
+                    statement.getSelector(), expr);
+            result.setTargetDec(statement.getTargetDec());
+            return result;
+        } else if (node instanceof WriteStatement statement) {
+            return new WriteStatement(statement.getFirstToken(), expr, statement.getDest());
+        }
+        return new ReturnStatement(node.getFirstToken(), expr);
+    }
+}
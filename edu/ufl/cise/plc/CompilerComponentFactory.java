@@ -1,8 +1,257 @@
 package edu.ufl.cise.plc;
 
 import edu.ufl.cise.plc.ast.ASTVisitor;
+import edu.ufl.cise.plc.runtime.ImageOps;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.Stream;
 
 public class CompilerComponentFactory {
+	/**
+	 * Version of the code generated for programs.  It should be changed whenever the code 
+	 * generated for a program changes, so that class files cached by PLCLangExec with an 
+	 * earlier version are not used.  version() adds a hash of the class files of the compiler 
+	 * and runtime, so a change that is not recorded here does not reuse stale class files 
+	 * either.
+	 */
+	public static final String VERSION = "2";
+
+	/**
+	 * Returns VERSION followed by a hash of the class files of the edu.ufl.cise.plc packages, 
+	 * except the tests, as loaded by this JVM.  It is computed once, when first needed.
+	 */
+	public static String version() {
+		return VersionHolder.VERSION;
+	}
+
+	private static final class VersionHolder {
+		static final String VERSION = CompilerComponentFactory.VERSION + "-" + classFilesHash();
+	}
+
+	private static String classFilesHash() {
+		try {
+			Path location = Path.of(CompilerComponentFactory.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+			FileSystem jar = Files.isDirectory(location) ? null : FileSystems.newFileSystem(location, (ClassLoader) null);
+			try {
+				Path root = jar != null ? jar.getPath("/") : location;
+				Path packageRoot = root.resolve(CompilerComponentFactory.class.getPackageName().replace('.', '/'));
+				List<Path> classFiles;
+				try (Stream<Path> files = Files.walk(packageRoot)) {
+					classFiles = files.filter(file -> file.toString().endsWith(".class"))
+							.filter(file -> !root.relativize(file).toString().contains("/test/"))
+							.sorted(Comparator.comparing(file -> root.relativize(file).toString())).toList();
+				}
+				MessageDigest digest = MessageDigest.getInstance("SHA-256");
+				for (Path file : classFiles) {
+					digest.update(root.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+					digest.update(Files.readAllBytes(file));
+				}
+				return HexFormat.of().formatHex(digest.digest(), 0, 8);
+			} finally {
+				if (jar != null) {
+					jar.close();
+				}
+			}
+		} catch (Exception e) {
+			// without a hash, class files are only cached for this JVM
+			return "unhashed-" + ProcessHandle.current().pid() + "-" + System.nanoTime();
+		}
+	}
+
+	/**
+	 * If true, the generated code runs independent image statements, such as reading 
+	 * several images, concurrently.  See DataflowScheduler. 
+	 */
+	private static volatile boolean scheduleImageStatements = false;
+
+	public static boolean getScheduleImageStatements() {
+		return scheduleImageStatements;
+	}
+
+	public static void setScheduleImageStatements(boolean scheduleImageStatements) {
+		CompilerComponentFactory.scheduleImageStatements = scheduleImageStatements;
+	}
+
+	/**
+	 * If true, the generated code computes pixel assignments that only read the pixel being 
+	 * assigned in parallel.  Set to false to force serial pixel loops, e.g. for debugging.
+	 */
+	private static volatile boolean parallelPixelLoops = true;
+
+	public static boolean getParallelPixelLoops() {
+		return parallelPixelLoops;
+	}
+
+	public static void setParallelPixelLoops(boolean parallelPixelLoops) {
+		CompilerComponentFactory.parallelPixelLoops = parallelPixelLoops;
+	}
+
+	/**
+	 * If true, the generated code releases images that are no longer used, and writes the 
+	 * result of an image operation into an operand that is no longer used instead of a new 
+	 * image.  See LivenessAnalysis.
+	 */
+	private static volatile boolean reuseDeadImages = true;
+
+	public static boolean getReuseDeadImages() {
+		return reuseDeadImages;
+	}
+
+	public static void setReuseDeadImages(boolean reuseDeadImages) {
+		CompilerComponentFactory.reuseDeadImages = reuseDeadImages;
+	}
+
+	/**
+	 * If true, the generated code computes consecutive pixel assignments to images of the same 
+	 * size in one loop when each only reads the pixel being assigned of the images of the others.
+	 */
+	private static volatile boolean fusePixelLoops = true;
+
+	public static boolean getFusePixelLoops() {
+		return fusePixelLoops;
+	}
+
+	public static void setFusePixelLoops(boolean fusePixelLoops) {
+		CompilerComponentFactory.fusePixelLoops = fusePixelLoops;
+	}
+
+	/**
+	 * What the generated code gives for a pixel read outside its image: an error, the nearest 
+	 * pixel, the pixel of the image repeated in each direction, or ImageOps.EDGE_COLOR.
+	 */
+	private static volatile ImageOps.EdgePolicy pixelEdgePolicy = ImageOps.EdgePolicy.ERROR;
+
+	public static ImageOps.EdgePolicy getPixelEdgePolicy() {
+		return pixelEdgePolicy;
+	}
+
+	public static void setPixelEdgePolicy(ImageOps.EdgePolicy pixelEdgePolicy) {
+		CompilerComponentFactory.pixelEdgePolicy = pixelEdgePolicy;
+	}
+
+	/**
+	 * If true, PLCLangExec simplifies the type checked AST with ASTOptimizer before generating 
+	 * code.
+	 */
+	private static volatile boolean optimizeAST = true;
+
+	public static boolean getOptimizeAST() {
+		return optimizeAST;
+	}
+
+	public static void setOptimizeAST(boolean optimizeAST) {
+		CompilerComponentFactory.optimizeAST = optimizeAST;
+	}
+
+	/**
+	 * If true, PLCLangExec computes repeated expressions of a program only once.  See 
+	 * CommonSubexpressionEliminator.
+	 */
+	private static volatile boolean eliminateCommonSubexpressions = true;
+
+	public static boolean getEliminateCommonSubexpressions() {
+		return eliminateCommonSubexpressions;
+	}
+
+	public static void setEliminateCommonSubexpressions(boolean eliminateCommonSubexpressions) {
+		CompilerComponentFactory.eliminateCommonSubexpressions = eliminateCommonSubexpressions;
+	}
+
+	/**
+	 * If true, PLCLangExec generates the class file of a program directly with 
+	 * BytecodeGenVisitor, instead of generating Java code and compiling it with javac.  This 
+	 * shortens the time to the first result, but the code skips the optimizations of 
+	 * CodeGenVisitor: its pixel loops are serial, and it does not schedule image statements, 
+	 * reuse dead images, fuse pixel loops, split stencils or pack colors without truncation.  
+	 * ASTOptimizer and CommonSubexpressionEliminator still apply.  See 
+	 * BytecodeGenTests.timeToFirstResult for a comparison with javac.
+	 */
+	private static volatile boolean generateBytecode = false;
+
+	public static boolean getGenerateBytecode() {
+		return generateBytecode;
+	}
+
+	public static void setGenerateBytecode(boolean generateBytecode) {
+		CompilerComponentFactory.generateBytecode = generateBytecode;
+	}
+
+	/**
+	 * If true, PLCLangExec executes a program with Interpreter at first, and compiles it in the 
+	 * background once it has been executed compileAfterCalls times or has run for 
+	 * compileAfterMillis in total.  Later executions run the compiled program.
+	 */
+	private static volatile boolean interpretFirst = false;
+	private static volatile int compileAfterCalls = 2;
+	private static volatile long compileAfterMillis = 50;
+
+	public static boolean getInterpretFirst() {
+		return interpretFirst;
+	}
+
+	public static void setInterpretFirst(boolean interpretFirst) {
+		CompilerComponentFactory.interpretFirst = interpretFirst;
+	}
+
+	public static int getCompileAfterCalls() {
+		return compileAfterCalls;
+	}
+
+	public static long getCompileAfterMillis() {
+		return compileAfterMillis;
+	}
+
+	public static void setCompileAfter(int compileAfterCalls, long compileAfterMillis) {
+		CompilerComponentFactory.compileAfterCalls = compileAfterCalls;
+		CompilerComponentFactory.compileAfterMillis = compileAfterMillis;
+	}
+
+	/**
+	 * The values of the settings above that change the class generated for a program.  
+	 * PLCLangExec takes them when it prepares a program and compiles the program with them, so 
+	 * that a program compiled later, e.g. by a TieredProgram, matches its cache key even if the 
+	 * settings have changed since.  Settings added above must be added here.
+	 */
+	public record Settings(boolean scheduleImageStatements, boolean parallelPixelLoops, boolean reuseDeadImages,
+			boolean fusePixelLoops, ImageOps.EdgePolicy pixelEdgePolicy, boolean optimizeAST,
+			boolean eliminateCommonSubexpressions, boolean generateBytecode) {
+
+		/**
+		 * Returns the settings as a string, so that compiled programs can be cached per 
+		 * configuration.
+		 */
+		public String configuration() {
+			return "scheduleImageStatements=" + scheduleImageStatements
+					+ ",parallelPixelLoops=" + parallelPixelLoops
+					+ ",reuseDeadImages=" + reuseDeadImages
+					+ ",fusePixelLoops=" + fusePixelLoops
+					+ ",pixelEdgePolicy=" + pixelEdgePolicy
+					+ ",optimizeAST=" + optimizeAST
+					+ ",eliminateCommonSubexpressions=" + eliminateCommonSubexpressions
+					+ ",generateBytecode=" + generateBytecode;
+		}
+	}
+
+	/**
+	 * Returns the current values of the settings above.
+	 */
+	public static Settings settings() {
+		return new Settings(scheduleImageStatements, parallelPixelLoops, reuseDeadImages, fusePixelLoops,
+				pixelEdgePolicy, optimizeAST, eliminateCommonSubexpressions, generateBytecode);
+	}
+
+	public static String configuration() {
+		return settings().configuration();
+	}
+
 	public static ILexer getLexer(String input) {
 		return new Lexer(input);
 	}
@@ -15,9 +264,47 @@ public class CompilerComponentFactory {
 		return new TypeCheckVisitor();
 	}
 
+	public static ASTVisitor getOptimizer() {
+		return new ASTOptimizer();
+	}
+
+	public static CommonSubexpressionEliminator getCommonSubexpressionEliminator() {
+		return new CommonSubexpressionEliminator();
+	}
+
 	public static ASTVisitor getCodeGenerator(String packageName) {
+		return getCodeGenerator(packageName, settings());
+	}
+
+	public static ASTVisitor getCodeGenerator(String packageName, Settings settings) {
+
+		CodeGenVisitor codeGenerator = new CodeGenVisitor(packageName);
+		codeGenerator.setScheduleImageStatements(settings.scheduleImageStatements());
+		codeGenerator.setParallelPixelLoops(settings.parallelPixelLoops());
+		codeGenerator.setReuseDeadImages(settings.reuseDeadImages());
+		codeGenerator.setFusePixelLoops(settings.fusePixelLoops());
+		codeGenerator.setEdgePolicy(settings.pixelEdgePolicy());
+		return codeGenerator;
+
+	}
 
-		return new CodeGenVisitor(packageName);
+	public static ASTVisitor getBytecodeGenerator(String packageName) {
+		return getBytecodeGenerator(packageName, settings());
+	}
+
+	public static ASTVisitor getBytecodeGenerator(String packageName, Settings settings) {
+		BytecodeGenVisitor bytecodeGenerator = new BytecodeGenVisitor(packageName);
+		bytecodeGenerator.setEdgePolicy(settings.pixelEdgePolicy());
+		return bytecodeGenerator;
+	}
+
+	public static ASTVisitor getInterpreter() {
+		return getInterpreter(settings());
+	}
 
+	public static ASTVisitor getInterpreter(Settings settings) {
+		Interpreter interpreter = new Interpreter();
+		interpreter.setEdgePolicy(settings.pixelEdgePolicy());
+		return interpreter;
 	}
 }
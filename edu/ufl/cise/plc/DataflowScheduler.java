@@ -0,0 +1,163 @@
+package edu.ufl.cise.plc;
+
+import edu.ufl.cise.plc.ast.*;
+
+import java.util.*;
+
+import static edu.ufl.cise.plc.ast.Types.Type;
+import static edu.ufl.cise.plc.ast.Types.Type.*;
+
+/**
+ * Decides which statements of a program are run as concurrent tasks, and where each task
+ * is joined, from the names defined and used by each statement.
+ *
+ * A task computes a whole image: an image read from a file or URL, or an image expression
+ * assigned to an image variable.  It is started at its position in the program and joined
+ * before the first later statement that
+ * <ul>
+ * <li>uses or redefines the image it computes,</li>
+ * <li>redefines a name used by the task (pixel assignments change images in place), or</li>
+ * <li>writes to a file or returns.</li>
+ * </ul>
+ * A task is started after the tasks computing its own inputs have been joined.  All other
+ * statements, including console input and output, run in program order.
+ */
+public class DataflowScheduler {
+
+    private final List<ASTNode> decsAndStatements;
+    private final boolean[] tasks;
+    private final List<List<Integer>> joinsBefore = new ArrayList<>();
+    private final List<Integer> joinsAtEnd = new ArrayList<>();
+
+    public DataflowScheduler(List<ASTNode> decsAndStatements) {
+        this.decsAndStatements = decsAndStatements;
+        this.tasks = new boolean[decsAndStatements.size()];
+
+        // indices of started tasks that have not been joined yet, in the order they were started
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < decsAndStatements.size(); i++) {
+            ASTNode node = decsAndStatements.get(i);
+            String defined = definedName(node);
+            Set<String> used = usedNames(node).keySet();
+            boolean barrier = node instanceof ReturnStatement || writesFile(node);
+
+            List<Integer> joins = new ArrayList<>();
+            for (int task : pending) {
+                ASTNode taskNode = decsAndStatements.get(task);
+                String taskDefined = definedName(taskNode);
+                if (barrier || used.contains(taskDefined) || taskDefined.equals(defined)
+                        || usedNames(taskNode).containsKey(defined)) {
+                    joins.add(task);
+                }
+            }
+            pending.removeAll(joins);
+            joinsBefore.add(joins);
+
+            if (isTaskCandidate(node)) {
+                tasks[i] = true;
+                pending.add(i);
+            }
+        }
+        joinsAtEnd.addAll(pending);
+    }
+
+    /**
+     * Returns true if the statement at index i is run as a task.
+     */
+    public boolean isTask(int i) {
+        return tasks[i];
+    }
+
+    /**
+     * Returns the indices of the tasks that must be joined before the statement at index i.
+     */
+    public List<Integer> joinsBefore(int i) {
+        return joinsBefore.get(i);
+    }
+
+    /**
+     * Returns the indices of the tasks that are still running after the last statement.
+     */
+    public List<Integer> joinsAtEnd() {
+        return joinsAtEnd;
+    }
+
+    static boolean isTaskCandidate(ASTNode node) {
+        if (node instanceof VarDeclaration declaration) {
+            if (declaration.getType() != IMAGE || declaration.getOp() == null) return false;
+            Expr expr = declaration.getExpr();
+            return switch (declaration.getOp().getKind()) {
+                case LARROW -> expr.getType() == STRING;
+                case ASSIGN -> declaration.getDim() == null && isImageExpr(expr);
+                default -> false;
+            };
+        } else if (node instanceof ReadStatement statement) {
+            return statement.getTargetDec().getType() == IMAGE && statement.getSelector() == null
+                    && statement.getSource().getType() == STRING;
+        } else if (node instanceof AssignmentStatement statement) {
+            return statement.getTargetDec().getType() == IMAGE && statement.getSelector() == null
+                    && isImageExpr(statement.getExpr());
+        }
+        return false;
+    }
+
+    static boolean isImageExpr(Expr expr) {
+        return expr.getType() == IMAGE && (expr instanceof BinaryExpr || expr instanceof UnaryExpr);
+    }
+
+    static boolean writesFile(ASTNode node) {
+        if (node instanceof WriteStatement statement) {
+            return statement.getDest().getType() == STRING;
+        }
+        return node instanceof VarDeclaration declaration && declaration.getOp() != null
+                && declaration.getOp().getKind() == IToken.Kind.RARROW && declaration.getExpr().getType() == STRING;
+    }
+
+    /**
+     * Returns the name given a new value by the node, or null.
+     */
+    static String definedName(ASTNode node) {
+        if (node instanceof VarDeclaration declaration) return declaration.getName();
+        if (node instanceof AssignmentStatement statement) return statement.getName();
+        if (node instanceof ReadStatement statement) return statement.getName();
+        return null;
+    }
+
+    /**
+     * Returns the names, with their types, of the variables read by the node.
+     */
+    static Map<String, Type> usedNames(ASTNode node) {
+        Map<String, Type> names = new LinkedHashMap<>();
+        if (node instanceof VarDeclaration declaration) {
+            if (declaration.getDim() != null) {
+                collectNames(declaration.getDim().getWidth(), names);
+                collectNames(declaration.getDim().getHeight(), names);
+            }
+            collectNames(declaration.getExpr(), names);
+        } else if (node instanceof AssignmentStatement statement) {
+            collectNames(statement.getExpr(), names);
+        } else if (node instanceof ReadStatement statement) {
+            Dimension dim = statement.getTargetDec().getDim();
+            if (dim != null) {
+                collectNames(dim.getWidth(), names);
+                collectNames(dim.getHeight(), names);
+            }
+            collectNames(statement.getSource(), names);
+        } else if (node instanceof WriteStatement statement) {
+            collectNames(statement.getSource(), names);
+            collectNames(statement.getDest(), names);
+        } else if (node instanceof ReturnStatement statement) {
+            collectNames(statement.getExpr(), names);
+        }
+        return names;
+    }
+
+    static void collectNames(Expr expr, Map<String, Type> names) {
+        if (expr instanceof IdentExpr) {
+            names.putIfAbsent(expr.getText(), expr.getType());
+        }
+        for (Expr child : Exprs.children(expr)) {
+            collectNames(child, names);
+        }
+    }
+}
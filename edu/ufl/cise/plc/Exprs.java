@@ -0,0 +1,188 @@
+package edu.ufl.cise.plc;
+
+import edu.ufl.cise.plc.ast.*;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Structural queries on expression trees used by the code generator and its analyses.
+ */
+class Exprs {
+
+    private Exprs() {
+    }
+
+    /**
+     * Returns the direct subexpressions of expr, in evaluation order.
+     */
+    static List<Expr> children(Expr expr) {
+        if (expr instanceof BinaryExpr binaryExpr) {
+            return List.of(binaryExpr.getLeft(), binaryExpr.getRight());
+        } else if (expr instanceof UnaryExpr unaryExpr) {
+            return List.of(unaryExpr.getExpr());
+        } else if (expr instanceof UnaryExprPostfix unaryExprPostfix) {
+            return List.of(unaryExprPostfix.getExpr(), unaryExprPostfix.getSelector().getX(),
+                    unaryExprPostfix.getSelector().getY());
+        } else if (expr instanceof ConditionalExpr conditionalExpr) {
+            return List.of(conditionalExpr.getCondition(), conditionalExpr.getTrueCase(),
+                    conditionalExpr.getFalseCase());
+        } else if (expr instanceof ColorExpr colorExpr) {
+            return List.of(colorExpr.getRed(), colorExpr.getGreen(), colorExpr.getBlue());
+        }
+        return List.of();
+    }
+
+    /**
+     * Returns true if the value of expr does not change while the variables in varying
+     * change, i.e. expr uses none of them and reads no input.
+     */
+    static boolean isInvariant(Expr expr, Set<String> varying) {
+        if (expr instanceof IdentExpr) {
+            return !varying.contains(expr.getText());
+        }
+        if (expr instanceof ConsoleExpr) {
+            return false;
+        }
+        for (Expr child : children(expr)) {
+            if (!isInvariant(child, varying)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds the maximal subexpressions of expr that are invariant with respect to varying and
+     * are worth computing once, i.e. are not literals or variables.  The branches of a
+     * conditional are not searched, since they may not be evaluated at all.
+     */
+    static void collectInvariants(Expr expr, Set<String> varying, List<Expr> invariants) {
+        for (Expr child : children(expr)) {
+            if (expr instanceof ConditionalExpr conditionalExpr && child != conditionalExpr.getCondition()) {
+                continue;
+            }
+            if (isInvariant(child, varying)) {
+                if (!isLeaf(child)) {
+                    invariants.add(child);
+                }
+            } else {
+                collectInvariants(child, varying, invariants);
+            }
+        }
+    }
+
+    /**
+     * Returns true if a and b are structurally equal: nodes of the same class with the same
+     * text, operator and type, and equal subexpressions with the same coercions.  The coercions
+     * of a and b themselves, which depend on where they are used, are not compared.  Expressions
+     * reading input are never equal.
+     */
+    static boolean sameExpr(Expr a, Expr b) {
+        if (a == b) {
+            return !(a instanceof ConsoleExpr);
+        }
+        if (a.getClass() != b.getClass() || a instanceof ConsoleExpr || a.getType() != b.getType()
+                || !operator(a).equals(operator(b))) {
+            return false;
+        }
+        List<Expr> aChildren = children(a);
+        List<Expr> bChildren = children(b);
+        for (int i = 0; i < aChildren.size(); i++) {
+            if (aChildren.get(i).getCoerceTo() != bChildren.get(i).getCoerceTo()
+                    || !sameExpr(aChildren.get(i), bChildren.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hash code consistent with sameExpr.
+     */
+    static int exprHash(Expr expr) {
+        int hash = 31 * expr.getClass().hashCode() + operator(expr).hashCode();
+        hash = 31 * hash + Objects.hashCode(expr.getType());
+        for (Expr child : children(expr)) {
+            hash = 31 * hash + exprHash(child);
+        }
+        return hash;
+    }
+
+    // the operator of an operation, or the text of a literal or variable
+    private static String operator(Expr expr) {
+        if (expr instanceof BinaryExpr binaryExpr) return binaryExpr.getOp().getText();
+        if (expr instanceof UnaryExpr unaryExpr) return unaryExpr.getOp().getText();
+        return children(expr).isEmpty() ? expr.getText() : "";
+    }
+
+    /**
+     * An expression used as a map key, equal to the keys of all structurally equal expressions.
+     */
+    record Key(Expr expr) {
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key key && sameExpr(expr, key.expr);
+        }
+
+        @Override
+        public int hashCode() {
+            return exprHash(expr);
+        }
+    }
+
+    static boolean isLeaf(Expr expr) {
+        return expr instanceof IdentExpr || expr instanceof IntLitExpr || expr instanceof FloatLitExpr
+                || expr instanceof BooleanLitExpr || expr instanceof StringLitExpr;
+    }
+
+    /**
+     * Returns true if evaluating expr reads input.
+     */
+    static boolean hasSideEffects(Expr expr) {
+        if (expr instanceof ConsoleExpr) {
+            return true;
+        }
+        for (Expr child : children(expr)) {
+            if (hasSideEffects(child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the names of the image variables read by the pixel reads of expr to sources.
+     */
+    static void collectPixelSources(Expr expr, Set<String> sources) {
+        if (expr instanceof UnaryExprPostfix unaryExprPostfix && unaryExprPostfix.getExpr() instanceof IdentExpr) {
+            sources.add(unaryExprPostfix.getExpr().getText());
+        }
+        for (Expr child : children(expr)) {
+            collectPixelSources(child, sources);
+        }
+    }
+
+    /**
+     * Returns true if expr uses the image with the given name other than by reading the
+     * pixel name[xVar,yVar].
+     */
+    static boolean readsOtherPixels(Expr expr, String name, String xVar, String yVar) {
+        if (expr instanceof UnaryExprPostfix unaryExprPostfix && unaryExprPostfix.getExpr() instanceof IdentExpr
+                && unaryExprPostfix.getExpr().getText().equals(name)) {
+            PixelSelector selector = unaryExprPostfix.getSelector();
+            return !(selector.getX() instanceof IdentExpr && selector.getX().getText().equals(xVar)
+                    && selector.getY() instanceof IdentExpr && selector.getY().getText().equals(yVar));
+        }
+        if (expr instanceof IdentExpr) {
+            return expr.getText().equals(name);
+        }
+        for (Expr child : children(expr)) {
+            if (readsOtherPixels(child, name, xVar, yVar)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,556 @@
+package edu.ufl.cise.plc;
+
+import edu.ufl.cise.plc.ast.*;
+import edu.ufl.cise.plc.runtime.ColorTuple;
+import edu.ufl.cise.plc.runtime.ColorTupleFloat;
+import edu.ufl.cise.plc.runtime.ConsoleIO;
+import edu.ufl.cise.plc.runtime.FileURLIO;
+import edu.ufl.cise.plc.runtime.ImageOps;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static edu.ufl.cise.plc.ast.Types.Type;
+import static edu.ufl.cise.plc.ast.Types.Type.*;
+
+/**
+ * Executes a type checked program by walking its AST, without generating and compiling code.
+ * visitProgram takes the parameters of the program as an Object[] and returns its result,
+ * boxed as by Method.invoke, or null for a void program.
+ *
+ * The results are the same as those of the code generated by CodeGenVisitor.  Each value is
+ * represented by the Java type the generated code uses for its type, and is converted to the
+ * type required where it is used, as in BytecodeGenVisitor: a pixel read is a packed color,
+ * which is unpacked when it is used as a color.  Image, color and I/O operations call the same
+ * runtime methods as the generated code.  Pixel loops are visited row by row unless the value
+ * of a pixel reads other pixels of the image being assigned, as in the serial loops of the
+ * generated code.
+ *
+ * An Interpreter holds the variables of one execution, so concurrent executions need separate
+ * instances.
+ */
+public class Interpreter implements ASTVisitor {
+
+    private final Map<String, Object> variables = new HashMap<>();
+    private ImageOps.EdgePolicy edgePolicy = ImageOps.EdgePolicy.ERROR;
+
+    /**
+     * Sets what reading a pixel outside an image gives.  See ImageOps.EdgePolicy.
+     */
+    public void setEdgePolicy(ImageOps.EdgePolicy edgePolicy) {
+        this.edgePolicy = edgePolicy;
+    }
+
+    @Override
+    public Object visitProgram(Program program, Object arg) throws Exception {
+        Object[] params = arg != null ? (Object[]) arg : new Object[0];
+        List<ASTNode> decsAndStatements = program.getDecsAndStatements();
+        Type returnType = program.getReturnType();
+        // a program without a return statement is rejected by javac before it runs
+        if (returnType != VOID && decsAndStatements.stream().noneMatch(node -> node instanceof ReturnStatement)) {
+            throw new PLCException("missing return statement", program.getSourceLoc());
+        }
+        variables.clear();
+        for (int i = 0; i < program.getParams().size(); i++) {
+            variables.put(program.getParams().get(i).getName(), params[i]);
+        }
+        for (ASTNode node : decsAndStatements) {
+            if (node instanceof ReturnStatement returnStatement) {
+                return value(returnStatement.getExpr(), returnType);
+            }
+            node.visit(this, arg);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitNameDef(NameDef nameDef, Object arg) throws Exception {
+        return null;
+    }
+
+    @Override
+    public Object visitNameDefWithDim(NameDefWithDim nameDefWithDim, Object arg) throws Exception {
+        return null;
+    }
+
+    @Override
+    public Object visitVarDeclaration(VarDeclaration declaration, Object arg) throws Exception {
+        String name = declaration.getName();
+        Type type = declaration.getType();
+        Expr expr = declaration.getExpr();
+        Dimension dim = declaration.getDim();
+
+        if (declaration.getOp() == null) {
+            if (type == IMAGE && dim != null) {
+                variables.put(name, newImage(dim));
+            }
+        } else if (declaration.getOp().getKind() == IToken.Kind.LARROW) {
+            read(name, type, dim, expr);
+        } else if (declaration.getOp().getKind() != IToken.Kind.ASSIGN) {
+            throw unsupported(declaration);
+        } else if (type == IMAGE && dim != null && expr.getType() != IMAGE) {
+            variables.put(name, newImage(dim));
+            pixelLoop(name, "$$x", "$$y", expr);
+        } else {
+            assign(name, type, dim != null ? dim.getWidth() : null, dim != null ? dim.getHeight() : null, expr);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitAssignmentStatement(AssignmentStatement assignmentStatement, Object arg) throws Exception {
+        String name = assignmentStatement.getName();
+        Type targetType = assignmentStatement.getTargetDec().getType();
+        PixelSelector selector = assignmentStatement.getSelector();
+        Expr expr = assignmentStatement.getExpr();
+
+        if (targetType == IMAGE && expr.getType() != IMAGE) {
+            pixelLoop(name, selector != null ? selector.getX().getText() : "$$x",
+                    selector != null ? selector.getY().getText() : "$$y", expr);
+        } else {
+            assign(name, targetType, selector != null ? selector.getX() : null,
+                    selector != null ? selector.getY() : null, expr);
+        }
+        return null;
+    }
+
+    /*
+     * Assigns the value of expr to a variable.  An image is resized if width and height are not
+     * null, and copied if it is the value of another variable.
+     */
+    void assign(String name, Type targetType, Expr width, Expr height, Expr expr) throws Exception {
+        Object value = value(expr, targetType);
+        if (targetType == IMAGE) {
+            if (width != null) {
+                value = ImageOps.resize((BufferedImage) value, (int) value(width, INT), (int) value(height, INT));
+            } else if (expr instanceof IdentExpr) {
+                value = ImageOps.clone((BufferedImage) value);
+            }
+        }
+        variables.put(name, value);
+    }
+
+    /*
+     * Sets each pixel name[xVar,yVar] of an image to the value of expr.  The value is computed
+     * once if it does not depend on the pixel.  Without a pixel selector, the coordinates are
+     * not variables of the program, so xVar and yVar are names expr cannot use.  The pixels are
+     * computed row by row unless expr reads other pixels of the image, also through another
+     * variable referring to the same image, as the compiled code does.
+     */
+    void pixelLoop(String name, String xVar, String yVar, Expr expr) throws Exception {
+        BufferedImage image = (BufferedImage) variables.get(name);
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Integer color = Exprs.isInvariant(expr, Set.of(name, xVar, yVar)) ? packedColor(expr) : null;
+
+        Object savedX = variables.get(xVar);
+        Object savedY = variables.get(yVar);
+        boolean rowMajor = true;
+        for (Map.Entry<String, Object> variable : variables.entrySet()) {
+            if (variable.getValue() == image) {
+                rowMajor &= !Exprs.readsOtherPixels(expr, variable.getKey(), xVar, yVar);
+            }
+        }
+        String outer = rowMajor ? yVar : xVar;
+        String inner = rowMajor ? xVar : yVar;
+        int outerSize = rowMajor ? height : width;
+        int innerSize = rowMajor ? width : height;
+        for (int i = 0; i < outerSize; i++) {
+            variables.put(outer, i);
+            for (int j = 0; j < innerSize; j++) {
+                variables.put(inner, j);
+                int x = rowMajor ? j : i;
+                int y = rowMajor ? i : j;
+                ImageOps.setColor(image, x, y, color != null ? color : packedColor(expr));
+            }
+        }
+        restore(xVar, savedX);
+        restore(yVar, savedY);
+    }
+
+    private void restore(String name, Object value) {
+        if (value != null) {
+            variables.put(name, value);
+        } else {
+            variables.remove(name);
+        }
+    }
+
+    // the value of expr as a packed color
+    int packedColor(Expr expr) throws Exception {
+        if (expr instanceof UnaryExprPostfix) {
+            return (int) expr.visit(this, null);
+        }
+        return ((ColorTuple) value(expr, COLOR)).pack();
+    }
+
+    // a new TYPE_INT_RGB image with the given dimension
+    BufferedImage newImage(Dimension dim) throws Exception {
+        return new BufferedImage((int) value(dim.getWidth(), INT), (int) value(dim.getHeight(), INT),
+                BufferedImage.TYPE_INT_RGB);
+    }
+
+    @Override
+    public Object visitReadStatement(ReadStatement readStatement, Object arg) throws Exception {
+        read(readStatement.getName(), readStatement.getTargetDec().getType(), readStatement.getTargetDec().getDim(),
+                readStatement.getSource());
+        return null;
+    }
+
+    /*
+     * Reads a value from a file, or from the console, into a variable.  An image is read from
+     * a file or URL, whose name is read from the console for a console source, and is resized to
+     * the dimension of its declaration, if it has one.
+     */
+    void read(String name, Type targetType, Dimension dim, Expr source) throws Exception {
+        Object value;
+        if (source.getType() == STRING || targetType == IMAGE && source.getType() == CONSOLE) {
+            String file = source.getType() == CONSOLE
+                    ? (String) ConsoleIO.readValueFromConsole(STRING.name(), "Enter Image URL: ")
+                    : (String) value(source, STRING);
+            if (targetType == IMAGE && dim != null) {
+                value = FileURLIO.readImage(file, (Integer) value(dim.getWidth(), INT),
+                        (Integer) value(dim.getHeight(), INT));
+            } else if (targetType == IMAGE) {
+                value = FileURLIO.readImage(file);
+            } else {
+                value = unbox(targetType, FileURLIO.readValueFromFile(file), source);
+            }
+        } else if (source.getType() == CONSOLE) {
+            String prompt = switch (targetType) {
+                case INT -> "integer";
+                case COLOR -> "colortuple";
+                default -> targetType.name().toLowerCase();
+            };
+            value = unbox(targetType, ConsoleIO.readValueFromConsole(targetType.name(), "Enter " + prompt + ":"), source);
+        } else {
+            throw unsupported(source);
+        }
+        variables.put(name, value);
+    }
+
+    // checks that a value read has the class of the given type, as the cast of the generated code
+    private Object unbox(Type type, Object value, Expr source) throws PLCException {
+        Class<?> valueClass = switch (type) {
+            case INT -> Integer.class;
+            case FLOAT -> Float.class;
+            case BOOLEAN -> Boolean.class;
+            case STRING -> String.class;
+            case COLOR -> ColorTuple.class;
+            default -> throw unsupported(source);
+        };
+        return valueClass.cast(value);
+    }
+
+    @Override
+    public Object visitWriteStatement(WriteStatement writeStatement, Object arg) throws Exception {
+        Expr source = writeStatement.getSource();
+        Type sourceType = source.getType();
+        Object value = value(source, sourceType);
+        if (writeStatement.getDest().getType() == STRING) {
+            String file = (String) value(writeStatement.getDest(), STRING);
+            if (sourceType == IMAGE) {
+                FileURLIO.writeImage((BufferedImage) value, file);
+            } else {
+                FileURLIO.writeValue((Serializable) value, file);
+            }
+        } else if (sourceType == IMAGE) {
+            ConsoleIO.displayImageOnScreen((BufferedImage) value);
+        } else {
+            ConsoleIO.console.println(value);
+        }
+        return null;
+    }
+
+    @Override
+    public Object visitReturnStatement(ReturnStatement returnStatement, Object arg) throws Exception {
+        throw unsupported(returnStatement);
+    }
+
+    /*
+     * Returns the value of expr converted to the given type.
+     */
+    Object value(Expr expr, Type type) throws Exception {
+        return convert(expr, expr.visit(this, null), type);
+    }
+
+    /*
+     * Converts a value of expr to the given type.  An int is a packed color if expr is a pixel
+     * read, and the same value for each component otherwise.
+     */
+    Object convert(Expr expr, Object value, Type type) throws Exception {
+        Type from = expr.getType();
+        if (expr instanceof UnaryExprPostfix && (type == COLOR || type == COLORFLOAT)) {
+            value = ColorTuple.unpack((int) value);
+            from = COLOR;
+        }
+        if (from == type) {
+            return value;
+        }
+        return switch (from) {
+            case INT -> switch (type) {
+                case FLOAT -> (float) (int) value;
+                case COLOR -> new ColorTuple((int) value);
+                case COLORFLOAT -> new ColorTupleFloat((float) (int) value);
+                default -> throw unsupported(expr);
+            };
+            case FLOAT -> switch (type) {
+                case INT -> (int) (float) value;
+                case COLORFLOAT -> new ColorTupleFloat((float) value);
+                case COLOR -> new ColorTuple(new ColorTupleFloat((float) value));
+                default -> throw unsupported(expr);
+            };
+            case COLOR -> switch (type) {
+                case INT -> ((ColorTuple) value).pack();
+                case COLORFLOAT -> new ColorTupleFloat((ColorTuple) value);
+                default -> throw unsupported(expr);
+            };
+            case COLORFLOAT -> switch (type) {
+                case INT -> ((ColorTupleFloat) value).pack();
+                case COLOR -> new ColorTuple((ColorTupleFloat) value);
+                default -> throw unsupported(expr);
+            };
+            default -> throw unsupported(expr);
+        };
+    }
+
+    private PLCException unsupported(ASTNode node) {
+        return new PLCException("cannot interpret " + node.getText(), node.getSourceLoc());
+    }
+
+    @Override
+    public Object visitBooleanLitExpr(BooleanLitExpr booleanLitExpr, Object arg) throws Exception {
+        return booleanLitExpr.getValue();
+    }
+
+    @Override
+    public Object visitStringLitExpr(StringLitExpr stringLitExpr, Object arg) throws Exception {
+        return stringLitExpr.getValue();
+    }
+
+    @Override
+    public Object visitIntLitExpr(IntLitExpr intLitExpr, Object arg) throws Exception {
+        return intLitExpr.getValue();
+    }
+
+    @Override
+    public Object visitFloatLitExpr(FloatLitExpr floatLitExpr, Object arg) throws Exception {
+        return floatLitExpr.getValue();
+    }
+
+    @Override
+    public Object visitColorConstExpr(ColorConstExpr colorConstExpr, Object arg) throws Exception {
+        Color color = (Color) Color.class.getField(colorConstExpr.getText()).get(null);
+        return ColorTuple.unpack(color.getRGB());
+    }
+
+    @Override
+    public Object visitConsoleExpr(ConsoleExpr consoleExpr, Object arg) throws Exception {
+        throw unsupported(consoleExpr);
+    }
+
+    @Override
+    public Object visitColorExpr(ColorExpr colorExpr, Object arg) throws Exception {
+        if (colorExpr.getType() == COLORFLOAT) {
+            return new ColorTupleFloat((float) value(colorExpr.getRed(), FLOAT), (float) value(colorExpr.getGreen(), FLOAT),
+                    (float) value(colorExpr.getBlue(), FLOAT));
+        }
+        return new ColorTuple((int) value(colorExpr.getRed(), INT), (int) value(colorExpr.getGreen(), INT),
+                (int) value(colorExpr.getBlue(), INT));
+    }
+
+    @Override
+    public Object visitUnaryExpr(UnaryExpr unaryExpression, Object arg) throws Exception {
+        Expr expr = unaryExpression.getExpr();
+        Type exprType = expr.getType();
+        String op = unaryExpression.getOp().getText();
+        return switch (unaryExpression.getOp().getKind()) {
+            case MINUS -> {
+                if (unaryExpression.getType() == FLOAT) {
+                    yield -(float) value(expr, FLOAT);
+                }
+                yield -(int) value(expr, INT);
+            }
+            case BANG -> !(boolean) value(expr, BOOLEAN);
+            case COLOR_OP -> {
+                Object value = expr.visit(this, arg);
+                if (exprType == IMAGE) {
+                    BufferedImage image = (BufferedImage) value;
+                    yield switch (op) {
+                        case "getRed" -> ImageOps.extractRed(image);
+                        case "getGreen" -> ImageOps.extractGreen(image);
+                        default -> ImageOps.extractBlue(image);
+                    };
+                } else if (exprType == INT) {
+                    int packed = (int) value;
+                    yield switch (op) {
+                        case "getRed" -> ColorTuple.getRed(packed);
+                        case "getGreen" -> ColorTuple.getGreen(packed);
+                        default -> ColorTuple.getBlue(packed);
+                    };
+                } else if (exprType == COLOR) {
+                    ColorTuple color = (ColorTuple) value;
+                    yield switch (op) {
+                        case "getRed" -> ColorTuple.getRed(color);
+                        case "getGreen" -> ColorTuple.getGreen(color);
+                        default -> ColorTuple.getBlue(color);
+                    };
+                }
+                throw unsupported(unaryExpression);
+            }
+            case IMAGE_OP -> {
+                BufferedImage image = (BufferedImage) value(expr, IMAGE);
+                yield op.equals("getWidth") ? image.getWidth() : image.getHeight();
+            }
+            default -> throw unsupported(unaryExpression);
+        };
+    }
+
+    @Override
+    public Object visitBinaryExpr(BinaryExpr binaryExpr, Object arg) throws Exception {
+        Expr left = binaryExpr.getLeft();
+        Expr right = binaryExpr.getRight();
+        IToken.Kind kind = binaryExpr.getOp().getKind();
+        return switch (kind) {
+            case AND -> (boolean) value(left, BOOLEAN) && (boolean) value(right, BOOLEAN);
+            case OR -> (boolean) value(left, BOOLEAN) || (boolean) value(right, BOOLEAN);
+            case EQUALS, NOT_EQUALS -> equality(binaryExpr, kind == IToken.Kind.EQUALS);
+            case LT, GT, LE, GE -> {
+                if (left.getType() == FLOAT || right.getType() == FLOAT) {
+                    float l = (float) value(left, FLOAT);
+                    float r = (float) value(right, FLOAT);
+                    yield switch (kind) {
+                        case LT -> l < r;
+                        case GT -> l > r;
+                        case LE -> l <= r;
+                        default -> l >= r;
+                    };
+                }
+                int l = (int) value(left, INT);
+                int r = (int) value(right, INT);
+                yield switch (kind) {
+                    case LT -> l < r;
+                    case GT -> l > r;
+                    case LE -> l <= r;
+                    default -> l >= r;
+                };
+            }
+            default -> arithmetic(binaryExpr, binaryExpr.getType(), kind);
+        };
+    }
+
+    private Object arithmetic(BinaryExpr binaryExpr, Type type, IToken.Kind kind) throws Exception {
+        Expr left = binaryExpr.getLeft();
+        Expr right = binaryExpr.getRight();
+        switch (type) {
+            case INT -> {
+                int l = (int) value(left, INT);
+                int r = (int) value(right, INT);
+                return switch (kind) {
+                    case PLUS -> l + r;
+                    case MINUS -> l - r;
+                    case TIMES -> l * r;
+                    case DIV -> l / r;
+                    default -> l % r;
+                };
+            }
+            case FLOAT -> {
+                float l = (float) value(left, FLOAT);
+                float r = (float) value(right, FLOAT);
+                return switch (kind) {
+                    case PLUS -> l + r;
+                    case MINUS -> l - r;
+                    case TIMES -> l * r;
+                    case DIV -> l / r;
+                    default -> l % r;
+                };
+            }
+            case COLOR -> {
+                return ImageOps.binaryTupleOp(ImageOps.OP.valueOf(kind.name()), (ColorTuple) value(left, COLOR),
+                        (ColorTuple) value(right, COLOR));
+            }
+            case COLORFLOAT -> {
+                return ImageOps.binaryTupleOp(ImageOps.OP.valueOf(kind.name()), (ColorTupleFloat) value(left, COLORFLOAT),
+                        (ColorTupleFloat) value(right, COLORFLOAT));
+            }
+            case IMAGE -> {
+                Type rightType = right.getType();
+                BufferedImage image = (BufferedImage) value(left, IMAGE);
+                if (rightType == IMAGE) {
+                    return ImageOps.binaryImageImageOp(ImageOps.OP.valueOf(kind.name()), image,
+                            (BufferedImage) value(right, IMAGE));
+                } else if (rightType == INT) {
+                    return ImageOps.binaryImageScalarOp(ImageOps.OP.valueOf(kind.name()), image, (int) value(right, INT));
+                }
+                throw unsupported(binaryExpr);
+            }
+            default -> throw unsupported(binaryExpr);
+        }
+    }
+
+    /*
+     * Compares the operands of binaryExpr.  Operands of the same type are compared as they are,
+     * so pixel reads are compared as packed colors, and a pixel read compared with a color is
+     * unpacked.
+     */
+    private boolean equality(BinaryExpr binaryExpr, boolean equals) throws Exception {
+        Type leftType = binaryExpr.getLeft().getType();
+        Type rightType = binaryExpr.getRight().getType();
+        Type type;
+        if (leftType == rightType) {
+            type = leftType;
+        } else if (leftType == COLORFLOAT || rightType == COLORFLOAT) {
+            type = COLORFLOAT;
+        } else if (leftType == COLOR || rightType == COLOR) {
+            type = COLOR;
+        } else if (leftType == FLOAT || rightType == FLOAT) {
+            type = FLOAT;
+        } else {
+            throw unsupported(binaryExpr);
+        }
+        Object left = value(binaryExpr.getLeft(), type);
+        Object right = value(binaryExpr.getRight(), type);
+        boolean equal = switch (type) {
+            case INT -> (int) left == (int) right;
+            case BOOLEAN -> (boolean) left == (boolean) right;
+            case FLOAT -> (float) left == (float) right;
+            case STRING, COLOR, COLORFLOAT -> left.equals(right);
+            default -> throw unsupported(binaryExpr);
+        };
+        return equals == equal;
+    }
+
+    @Override
+    public Object visitIdentExpr(IdentExpr identExpr, Object arg) throws Exception {
+        return variables.get(identExpr.getText());
+    }
+
+    @Override
+    public Object visitConditionalExpr(ConditionalExpr conditionalExpr, Object arg) throws Exception {
+        return (boolean) value(conditionalExpr.getCondition(), BOOLEAN)
+                ? value(conditionalExpr.getTrueCase(), conditionalExpr.getType())
+                : value(conditionalExpr.getFalseCase(), conditionalExpr.getType());
+    }
+
+    @Override
+    public Object visitDimension(Dimension dimension, Object arg) throws Exception {
+        throw unsupported(dimension);
+    }
+
+    @Override
+    public Object visitPixelSelector(PixelSelector pixelSelector, Object arg) throws Exception {
+        throw unsupported(pixelSelector);
+    }
+
+    @Override
+    public Object visitUnaryExprPostfix(UnaryExprPostfix unaryExprPostfix, Object arg) throws Exception {
+        BufferedImage image = (BufferedImage) value(unaryExprPostfix.getExpr(), IMAGE);
+        PixelSelector selector = unaryExprPostfix.getSelector();
+        return ImageOps.getPixel(image, (int) value(selector.getX(), INT), (int) value(selector.getY(), INT), edgePolicy);
+    }
+}
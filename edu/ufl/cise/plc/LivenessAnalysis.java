@@ -0,0 +1,133 @@
+package edu.ufl.cise.plc;
+
+import edu.ufl.cise.plc.ast.*;
+
+import java.util.*;
+
+import static edu.ufl.cise.plc.ast.Types.Type;
+import static edu.ufl.cise.plc.ast.Types.Type.*;
+
+/**
+ * Finds the image variables of a program whose values are no longer used.
+ *
+ * The statements of a program are executed in order, so the value of a variable is live
+ * after a statement if a later statement uses it before giving the variable a new value.  A
+ * pixel assignment uses the image it changes.  Images created by the program are only
+ * referenced by their own variable, since assigning an image variable to another copies it,
+ * so a dead image that is not a parameter can be released by the generated code, and its
+ * pixels can be overwritten with the result of the statement that used it last.  The value of
+ * a conditional is not copied, so the variables it is assigned to and the variables among its
+ * cases may share an image, and their pixels are never overwritten.
+ */
+public class LivenessAnalysis {
+
+    private final List<ASTNode> decsAndStatements;
+    private final Set<String> params = new HashSet<>();
+    // image variables that may share their image with another variable
+    private final Set<String> shared = new HashSet<>();
+    // the names whose values are live after each statement
+    private final List<Set<String>> liveAfter = new ArrayList<>();
+    // the image variables used or defined by each statement
+    private final List<Set<String>> images = new ArrayList<>();
+
+    public LivenessAnalysis(Program program) {
+        this.decsAndStatements = program.getDecsAndStatements();
+        for (NameDef param : program.getParams()) {
+            params.add(param.getName());
+        }
+
+        Set<String> live = new HashSet<>();
+        for (int i = decsAndStatements.size() - 1; i >= 0; i--) {
+            ASTNode node = decsAndStatements.get(i);
+            liveAfter.add(0, new HashSet<>(live));
+            live.remove(DataflowScheduler.definedName(node));
+            Map<String, Type> used = usedNames(node);
+            live.addAll(used.keySet());
+
+            Set<String> statementImages = new LinkedHashSet<>();
+            for (Map.Entry<String, Type> entry : used.entrySet()) {
+                if (entry.getValue() == IMAGE) statementImages.add(entry.getKey());
+            }
+            if (definedType(node) == IMAGE) statementImages.add(DataflowScheduler.definedName(node));
+            images.add(0, statementImages);
+
+            Set<String> aliases = new HashSet<>();
+            collectAliases(assignedImage(node), aliases);
+            if (!aliases.isEmpty()) {
+                shared.addAll(aliases);
+                shared.add(DataflowScheduler.definedName(node));
+            }
+        }
+    }
+
+    /**
+     * Returns the image variables created by the program that are used or defined by the
+     * statement at index i, and whose values are not used after it.
+     */
+    public List<String> deadImagesAfter(int i) {
+        List<String> dead = new ArrayList<>();
+        for (String name : images.get(i)) {
+            if (!params.contains(name) && !liveAfter.get(i).contains(name)) {
+                dead.add(name);
+            }
+        }
+        return dead;
+    }
+
+    /**
+     * Returns true if name is an image variable created by the program whose value before
+     * the statement at index i is not used after it, and that does not share its image with
+     * another variable, so that the statement may overwrite its pixels.
+     */
+    public boolean isReusable(String name, int i) {
+        return !params.contains(name) && !shared.contains(name) && images.get(i).contains(name)
+                && (!liveAfter.get(i).contains(name) || name.equals(DataflowScheduler.definedName(decsAndStatements.get(i))));
+    }
+
+    /**
+     * Returns the names, with their types, of the variables whose values are used by the node.
+     */
+    static Map<String, Type> usedNames(ASTNode node) {
+        Map<String, Type> names = DataflowScheduler.usedNames(node);
+        if (node instanceof AssignmentStatement statement && isPixelAssignment(statement)) {
+            names.putIfAbsent(statement.getName(), IMAGE);
+        }
+        return names;
+    }
+
+    // the image expression assigned to a whole image variable by node, or null
+    static Expr assignedImage(ASTNode node) {
+        if (node instanceof VarDeclaration declaration && declaration.getType() == IMAGE && declaration.getDim() == null
+                && declaration.getOp() != null && declaration.getOp().getKind() == IToken.Kind.ASSIGN) {
+            return declaration.getExpr();
+        } else if (node instanceof AssignmentStatement statement && statement.getTargetDec().getType() == IMAGE
+                && statement.getSelector() == null && statement.getExpr().getType() == IMAGE) {
+            return statement.getExpr();
+        }
+        return null;
+    }
+
+    // adds the variables whose image may be the value of a conditional expr
+    static void collectAliases(Expr expr, Set<String> aliases) {
+        if (expr instanceof ConditionalExpr conditionalExpr) {
+            for (Expr value : List.of(conditionalExpr.getTrueCase(), conditionalExpr.getFalseCase())) {
+                if (value instanceof IdentExpr) {
+                    aliases.add(value.getText());
+                } else {
+                    collectAliases(value, aliases);
+                }
+            }
+        }
+    }
+
+    static boolean isPixelAssignment(AssignmentStatement statement) {
+        return statement.getTargetDec().getType() == IMAGE && statement.getExpr().getType() != IMAGE;
+    }
+
+    static Type definedType(ASTNode node) {
+        if (node instanceof VarDeclaration declaration) return declaration.getType();
+        if (node instanceof AssignmentStatement statement) return statement.getTargetDec().getType();
+        if (node instanceof ReadStatement statement) return statement.getTargetDec().getType();
+        return null;
+    }
+}
@@ -0,0 +1,203 @@
+package edu.ufl.cise.plc;
+
+import edu.ufl.cise.plc.ast.*;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static edu.ufl.cise.plc.ast.Types.Type.*;
+
+/**
+ * Computes bounds of the int values of expressions, and of each component of their values as
+ * colors, so that the generated code packs colors whose components are in [0,255] without
+ * truncating them.
+ *
+ * The bounds of an int variable are those of its initializer if it is declared with one and
+ * never assigned again, since a program has no loops.  Pixel coordinates are never negative.
+ * The components of colors read from images, of color constants and those given by getRed,
+ * getGreen and getBlue of an int are in [0,255], but ColorTuples are not truncated, so a color
+ * variable may have any components.  An operation whose result may overflow has any value.
+ * Floats are not analyzed, so the bounds of an int converted from a float are unknown.
+ */
+public class RangeAnalysis {
+
+    /**
+     * The ints from min to max.
+     */
+    public record Range(long min, long max) {
+
+        public static final Range ALL = new Range(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        public static final Range COMPONENT = new Range(0, 255);
+
+        public boolean isComponent() {
+            return min >= 0 && max <= 255;
+        }
+
+        Range union(Range other) {
+            return new Range(Math.min(min, other.min), Math.max(max, other.max));
+        }
+
+        // the range itself if it has only ints, and ALL otherwise, as the result overflowed
+        Range orAll() {
+            return min >= Integer.MIN_VALUE && max <= Integer.MAX_VALUE ? this : ALL;
+        }
+    }
+
+    private final Map<String, Range> variables = new HashMap<>();
+    private final Set<String> coordinates = new HashSet<>();
+
+    public RangeAnalysis(Program program) {
+        Set<String> assigned = new HashSet<>();
+        for (ASTNode node : program.getDecsAndStatements()) {
+            if (node instanceof AssignmentStatement assignmentStatement) {
+                assigned.add(assignmentStatement.getName());
+            } else if (node instanceof ReadStatement readStatement) {
+                assigned.add(readStatement.getName());
+            }
+        }
+        for (ASTNode node : program.getDecsAndStatements()) {
+            if (node instanceof VarDeclaration declaration && declaration.getType() == INT
+                    && !assigned.contains(declaration.getName()) && declaration.getOp() != null
+                    && declaration.getOp().getKind() == IToken.Kind.ASSIGN) {
+                variables.put(declaration.getName(), range(declaration.getExpr()));
+            }
+        }
+    }
+
+    /**
+     * Sets the variables of the coordinates of the pixel being computed, or none.
+     */
+    public void setCoordinates(String... names) {
+        coordinates.clear();
+        coordinates.addAll(List.of(names));
+    }
+
+    /**
+     * Returns true if all three components of the value of expr, a color or an int used as a
+     * color operand, are in [0,255].
+     */
+    public boolean inComponentRange(Expr expr) {
+        for (Range range : components(expr)) {
+            if (!range.isComponent()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the bounds of the value of an int expression, before any coercion.
+     */
+    public Range range(Expr expr) {
+        if (expr.getType() != INT) {
+            return Range.ALL;
+        }
+        if (expr instanceof IntLitExpr intLitExpr) {
+            return new Range(intLitExpr.getValue(), intLitExpr.getValue());
+        } else if (expr instanceof IdentExpr) {
+            if (coordinates.contains(expr.getText())) {
+                return new Range(0, Integer.MAX_VALUE);
+            }
+            return variables.getOrDefault(expr.getText(), Range.ALL);
+        } else if (expr instanceof UnaryExpr unaryExpr) {
+            Expr operand = unaryExpr.getExpr();
+            if (unaryExpr.getOp().getKind() == IToken.Kind.MINUS) {
+                Range range = range(operand);
+                return new Range(-range.max(), -range.min()).orAll();
+            } else if (unaryExpr.getOp().getKind() == IToken.Kind.COLOR_OP) {
+                if (operand.getType() == INT) {
+                    return Range.COMPONENT;
+                } else if (operand.getType() == COLOR) {
+                    return components(operand)[component(unaryExpr.getOp().getText())];
+                }
+            }
+        } else if (expr instanceof BinaryExpr binaryExpr && binaryExpr.getLeft().getType() == INT
+                && binaryExpr.getRight().getType() == INT) {
+            return binary(binaryExpr.getOp().getKind(), range(binaryExpr.getLeft()), range(binaryExpr.getRight()));
+        } else if (expr instanceof ConditionalExpr conditionalExpr) {
+            return range(conditionalExpr.getTrueCase()).union(range(conditionalExpr.getFalseCase()));
+        }
+        return Range.ALL;
+    }
+
+    /**
+     * Returns the bounds of the red, green and blue components of the value of expr as a color.
+     * A pixel read is unpacked, and any other int is the value of all three components.
+     */
+    public Range[] components(Expr expr) {
+        if (expr.getType() == INT) {
+            Range range = expr instanceof UnaryExprPostfix ? Range.COMPONENT : range(expr);
+            return new Range[]{range, range, range};
+        } else if (expr.getType() != COLOR) {
+            return all();
+        }
+        if (expr instanceof ColorExpr colorExpr) {
+            List<Expr> children = Exprs.children(colorExpr);
+            return new Range[]{range(children.get(0)), range(children.get(1)), range(children.get(2))};
+        } else if (expr instanceof ColorConstExpr) {
+            return new Range[]{Range.COMPONENT, Range.COMPONENT, Range.COMPONENT};
+        } else if (expr instanceof BinaryExpr binaryExpr) {
+            Range[] left = components(binaryExpr.getLeft());
+            Range[] right = components(binaryExpr.getRight());
+            Range[] ranges = new Range[3];
+            for (int i = 0; i < 3; i++) {
+                ranges[i] = binary(binaryExpr.getOp().getKind(), left[i], right[i]);
+            }
+            return ranges;
+        } else if (expr instanceof ConditionalExpr conditionalExpr) {
+            Range[] trueCase = components(conditionalExpr.getTrueCase());
+            Range[] falseCase = components(conditionalExpr.getFalseCase());
+            return new Range[]{trueCase[0].union(falseCase[0]), trueCase[1].union(falseCase[1]),
+                    trueCase[2].union(falseCase[2])};
+        }
+        return all();
+    }
+
+    private Range[] all() {
+        return new Range[]{Range.ALL, Range.ALL, Range.ALL};
+    }
+
+    private int component(String colorOp) {
+        return switch (colorOp) {
+            case "getRed" -> 0;
+            case "getGreen" -> 1;
+            default -> 2;
+        };
+    }
+
+    // bounds of the result of an arithmetic operation on ints with the given bounds
+    private Range binary(IToken.Kind kind, Range left, Range right) {
+        return switch (kind) {
+            case PLUS -> new Range(left.min() + right.min(), left.max() + right.max()).orAll();
+            case MINUS -> new Range(left.min() - right.max(), left.max() - right.min()).orAll();
+            case TIMES -> corners(left, right, false);
+            // the quotient is monotonic in each operand if the divisor does not change sign
+            case DIV -> right.min() > 0 || right.max() < 0 ? corners(left, right, true) : Range.ALL;
+            case MOD -> {
+                if (right.min() <= 0 && right.max() >= 0) {
+                    yield Range.ALL;
+                }
+                long bound = Math.max(Math.abs(right.min()), Math.abs(right.max())) - 1;
+                yield new Range(left.min() >= 0 ? 0 : Math.max(left.min(), -bound),
+                        left.max() <= 0 ? 0 : Math.min(left.max(), bound));
+            }
+            default -> Range.ALL;
+        };
+    }
+
+    private Range corners(Range left, Range right, boolean divide) {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (long a : new long[]{left.min(), left.max()}) {
+            for (long b : new long[]{right.min(), right.max()}) {
+                long value = divide ? a / b : a * b;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        }
+        return new Range(min, max).orAll();
+    }
+}
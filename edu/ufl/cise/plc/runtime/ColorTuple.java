@@ -2,7 +2,6 @@ package edu.ufl.cise.plc.runtime;
 
 import java.awt.Color;
 import java.io.Serializable;
-import java.util.Objects;
 
 /**
  * This class implements the color type in PLCLang. It also provides routines
@@ -121,6 +120,15 @@ public class ColorTuple implements Serializable {
 		return pixel;
 	}
 
+	/*
+	 * create a packed color with the given color component values, which must be in [0,256).
+	 * Generated code calls this instead of makePackedColor when RangeAnalysis shows that the 
+	 * values need not be truncated.
+	 */
+	public static int makePackedColorUnchecked(int redVal, int grnVal, int bluVal) {
+		return (0xFF << SHIFT_ALPHA) | (redVal << SHIFT_RED) | (grnVal << SHIFT_GRN) | (bluVal << SHIFT_BLU);
+	}
+
 	/**
 	 * Interprets an int as a packed color and returns the equivalent ColorTuple
 	 * object. The alpha component is ignored.
@@ -222,7 +230,8 @@ public class ColorTuple implements Serializable {
 
 	@Override
 	public int hashCode() {
-		return Objects.hash(blue, green, red);
+		//same value as Objects.hash(blue, green, red), without allocating the varargs array
+		return 31 * (31 * (31 + blue) + green) + red;
 	}
 
 	@Override
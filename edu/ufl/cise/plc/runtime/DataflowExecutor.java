@@ -0,0 +1,50 @@
+package edu.ufl.cise.plc.runtime;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Runs the image statements of a program that were scheduled as concurrent tasks
+ * by edu.ufl.cise.plc.DataflowScheduler.
+ *
+ * Generated code starts a task with submit and obtains its image with join before the
+ * first statement that depends on it.
+ *
+ */
+public class DataflowExecutor {
+
+	/** Pool used to run tasks. Can be changed to use a dedicated pool. */
+	private static volatile ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	public static ForkJoinPool getPool() {
+		return pool;
+	}
+
+	public static void setPool(ForkJoinPool pool) {
+		DataflowExecutor.pool = pool;
+	}
+
+	/**
+	 * Starts computing an image on the pool.
+	 * 
+	 * @param task
+	 * @return
+	 */
+	public static ForkJoinTask<BufferedImage> submit(Callable<BufferedImage> task) {
+		return pool.submit(task);
+	}
+
+	/**
+	 * Waits for the task to complete and returns its image.  A RuntimeException or Error 
+	 * thrown by the task is rethrown.
+	 * 
+	 * @param task
+	 * @return
+	 */
+	public static BufferedImage join(ForkJoinTask<BufferedImage> task) {
+		return task.join();
+	}
+
+}
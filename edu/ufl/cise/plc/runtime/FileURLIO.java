@@ -174,6 +174,11 @@ public class FileURLIO {
 		catch (IOException e) {
 			e.printStackTrace();
 		}
+		finally {
+			//closed streams cannot be reused, so files used again are opened again
+			inputFiles.clear();
+			outputFiles.clear();
+		}
 	}
 	
 	private static ObjectInputStream getObjectInputStream(String filename) {
@@ -4,6 +4,10 @@ import java.awt.Graphics2D;
 import java.awt.geom.AffineTransform;
 import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 
 /**
  * An image is represented by a 2D array of pixels. An image is implemented 
@@ -24,6 +28,13 @@ import java.awt.image.BufferedImage;
  * class provides methods for converting between a ColorTuple and packed int 
  * representation. 
  * 
+ * Images of type BufferedImage.TYPE_INT_RGB store their pixels in an int[] in row-major 
+ * order.  The pixel kernels in this class work directly on that array when all images involved 
+ * have this layout, and use getRGB for all other image types.  
+ * 
+ * Large images are processed in parallel bands of rows using RowBandExecutor. The results 
+ * do not depend on how the image is split into bands.
+ * 
  */
 
 public class ImageOps {
@@ -78,25 +89,246 @@ public class ImageOps {
 	}
 	
 	/**
-	 * Returns a new image containing only the red component of the given image.  
-	 * This method can be used to implement the getRed operator applied to an image.
+	 * Mask applied to packed colors stored directly into the raster of a TYPE_INT_RGB image, 
+	 * by the kernels in this class and by generated code.  These images have no alpha component, 
+	 * so this matches what setRGB stores.
+	 */
+	public static final int RGB_MASK = 0x00ffffff;
+	
+	/**
+	 * Returns the int[] backing the raster of the given image if it is a TYPE_INT_RGB image
+	 * whose pixel at x,y is stored at index y * width + x, or null otherwise.  
+	 * 
+	 * Values in the array do not contain an alpha component.  When the array is null, 
+	 * the image must be accessed with getRGB and setRGB.
 	 * 
 	 * @param image
+	 * @return the backing array of the image, or null
+	 */
+	public static int[] getRasterData(BufferedImage image) {
+		if (image.getType() != BufferedImage.TYPE_INT_RGB) {
+			return null;
+		}
+		WritableRaster raster = image.getRaster();
+		DataBuffer buffer = raster.getDataBuffer();
+		if (!(buffer instanceof DataBufferInt) || buffer.getNumBanks() != 1 || buffer.getOffset() != 0
+				|| !(raster.getSampleModel() instanceof SinglePixelPackedSampleModel)
+				|| raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0) {
+			return null;
+		}
+		SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+		if (sampleModel.getScanlineStride() != image.getWidth()) {
+			return null;
+		}
+		return ((DataBufferInt) buffer).getData();
+	}
+	
+	/**
+	 * Returns reuse if it is an image with the given size whose raster data is available 
+	 * (see getRasterData), so that the result of an operation can be written into it without 
+	 * allocating, or a new TYPE_INT_RGB image otherwise.
+	 * 
+	 * @param reuse  an image whose pixels are no longer needed, or null
+	 * @param width
+	 * @param height
 	 * @return
 	 */
-	public static BufferedImage extractRed(BufferedImage image) {
+	static BufferedImage resultImage(BufferedImage reuse, int width, int height) {
+		if (reuse != null && reuse.getWidth() == width && reuse.getHeight() == height && getRasterData(reuse) != null) {
+			return reuse;
+		}
+		return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+	}
+	
+	/**
+	 * What reading a pixel outside an image gives.  ERROR throws a PLCRuntimeException, CLAMP 
+	 * reads the nearest pixel of the image, WRAP reads the image as if it were repeated in both 
+	 * directions, and CONSTANT reads EDGE_COLOR.
+	 */
+	public enum EdgePolicy {
+		ERROR, CLAMP, WRAP, CONSTANT
+	}
+
+	/**
+	 * The packed color of the pixels outside an image read with EdgePolicy.CONSTANT: opaque black.
+	 */
+	public static final int EDGE_COLOR = 0xff000000;
+
+	private static final int ALPHA = 0xff000000;
+
+	/**
+	 * Returns the packed color of the pixel at x,y of the given image, as getRGB, or as given by 
+	 * policy if x,y is outside the image.
+	 * 
+	 * @param image
+	 * @param x
+	 * @param y
+	 * @param policy
+	 * @return
+	 */
+	public static int getPixel(BufferedImage image, int x, int y, EdgePolicy policy) {
 		int width = image.getWidth();
 		int height = image.getHeight();
-		BufferedImage newImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				int pixel = getPackedColor(image, x, y);
-				int red = ColorTuple.getRed(pixel);
-				int redPixel = ColorTuple.makePackedColor(red, 0, 0);
-				newImage.setRGB(x, y, redPixel);
+		if (x < 0 || x >= width || y < 0 || y >= height) {
+			switch (policy) {
+			case CLAMP -> {
+				x = clamp(x, width);
+				y = clamp(y, height);
+			}
+			case WRAP -> {
+				x = wrap(x, width);
+				y = wrap(y, height);
+			}
+			case CONSTANT -> {
+				return EDGE_COLOR;
+			}
+			default -> throw pixelOutside(x, y, width, height);
 			}
 		}
-		return newImage;
+		return image.getRGB(x, y);
+	}
+
+	/**
+	 * Returns the pixels of the given image in row-major order: its raster data if it is 
+	 * available (see getRasterData), or a copy made with getRGB otherwise.  The getPixel methods 
+	 * below read pixels from this array, with the alpha component set as by getRGB.  There is a 
+	 * method for each edge policy, so that generated code can call the one of its policy, and the 
+	 * JIT compiler can inline it into the loop that reads the pixels.
+	 * 
+	 * @param image
+	 * @return
+	 */
+	public static int[] getPixels(BufferedImage image) {
+		int[] data = getRasterData(image);
+		return data != null ? data : getRGBPixels(image);
+	}
+
+	public static int getPixel(int[] pixels, int width, int height, int x, int y) {
+		if (x < 0 || x >= width || y < 0 || y >= height) {
+			throw pixelOutside(x, y, width, height);
+		}
+		return pixels[y * width + x] | ALPHA;
+	}
+
+	public static int getPixelClamped(int[] pixels, int width, int height, int x, int y) {
+		return pixels[clamp(y, height) * width + clamp(x, width)] | ALPHA;
+	}
+
+	public static int getPixelWrapped(int[] pixels, int width, int height, int x, int y) {
+		return pixels[wrap(y, height) * width + wrap(x, width)] | ALPHA;
+	}
+
+	public static int getPixelOrEdge(int[] pixels, int width, int height, int x, int y) {
+		if (x < 0 || x >= width || y < 0 || y >= height) {
+			return EDGE_COLOR;
+		}
+		return pixels[y * width + x] | ALPHA;
+	}
+
+	/**
+	 * Returns the pixel at the given index of pixels, which must be inside the image, as the 
+	 * getPixel methods.  The interior loop of a stencil, whose reads are all inside their images, 
+	 * reads pixels with this method, without any bounds check but that of the array.
+	 * 
+	 * @param pixels
+	 * @param index
+	 * @return
+	 */
+	public static int getPixelUnchecked(int[] pixels, int index) {
+		return pixels[index] | ALPHA;
+	}
+
+	/**
+	 * Returns the index of the first pixel of row y in the pixels of an image with the given size, 
+	 * or -1 if the row is outside the image.  A loop reading pixels of the same row computes this 
+	 * once for each row, and passes it to getPixelInRow.  The rows of the other policies are 
+	 * computed by the methods with the same suffix.
+	 * 
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public static int rowOffset(int y, int width, int height) {
+		return y >= 0 && y < height ? y * width : -1;
+	}
+
+	public static int rowOffsetClamped(int y, int width, int height) {
+		return clamp(y, height) * width;
+	}
+
+	public static int rowOffsetWrapped(int y, int width, int height) {
+		return wrap(y, height) * width;
+	}
+
+	public static int rowOffsetOrEdge(int y, int width, int height) {
+		return rowOffset(y, width, height);
+	}
+
+	public static int getPixelInRow(int[] pixels, int row, int width, int height, int x, int y) {
+		if (row < 0 || x < 0 || x >= width) {
+			throw pixelOutside(x, y, width, height);
+		}
+		return pixels[row + x] | ALPHA;
+	}
+
+	public static int getPixelInRowClamped(int[] pixels, int row, int width, int height, int x, int y) {
+		return pixels[row + clamp(x, width)] | ALPHA;
+	}
+
+	public static int getPixelInRowWrapped(int[] pixels, int row, int width, int height, int x, int y) {
+		return pixels[row + wrap(x, width)] | ALPHA;
+	}
+
+	public static int getPixelInRowOrEdge(int[] pixels, int row, int width, int height, int x, int y) {
+		if (row < 0 || x < 0 || x >= width) {
+			return EDGE_COLOR;
+		}
+		return pixels[row + x] | ALPHA;
+	}
+
+	/**
+	 * Sets the pixels of the given image to the packed colors in the given array, in row-major 
+	 * order, with an opaque alpha component, which is set in the array.
+	 * 
+	 * @param image
+	 * @param pixels
+	 */
+	public static void setRGBPixels(BufferedImage image, int[] pixels) {
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] |= ALPHA;
+		}
+		image.setRGB(0, 0, image.getWidth(), image.getHeight(), pixels, 0, image.getWidth());
+	}
+
+	// a coordinate clamped to [0,size)
+	private static int clamp(int i, int size) {
+		if (size == 0) {
+			throw new PLCRuntimeException("pixel read from an empty image");
+		}
+		return i < 0 ? 0 : i >= size ? size - 1 : i;
+	}
+
+	private static int wrap(int i, int size) {
+		if (size == 0) {
+			throw new PLCRuntimeException("pixel read from an empty image");
+		}
+		return Math.floorMod(i, size);
+	}
+
+	private static PLCRuntimeException pixelOutside(int x, int y, int width, int height) {
+		return new PLCRuntimeException("pixel (" + x + "," + y + ") is outside the " + width + "x" + height + " image");
+	}
+
+	/**
+	 * Returns a new image containing only the red component of the given image.  
+	 * This method can be used to implement the getRed operator applied to an image.
+	 * 
+	 * @param image
+	 * @return
+	 */
+	public static BufferedImage extractRed(BufferedImage image) {
+		return extractComponent(image, ColorTuple.SELECT_RED);
 	}
 
 	/**
@@ -107,18 +339,7 @@ public class ImageOps {
 	 * @return
 	 */
 	public static BufferedImage extractGreen(BufferedImage image) {
-		int width = image.getWidth();
-		int height = image.getHeight();
-		BufferedImage newImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				int pixel = getPackedColor(image, x, y);
-				int green = ColorTuple.getGreen(pixel);
-				int greenPixel = ColorTuple.makePackedColor(0, green, 0);
-				newImage.setRGB(x, y, greenPixel);
-			}
-		}
-		return newImage;
+		return extractComponent(image, ColorTuple.SELECT_GRN);
 	}
 
 	/**
@@ -129,20 +350,76 @@ public class ImageOps {
 	 * @return
 	 */	
 	public static BufferedImage extractBlue(BufferedImage image) {
+		return extractComponent(image, ColorTuple.SELECT_BLU);
+	}
+
+	
+	/**
+	 * Returns a new image whose pixels are the pixels of the given image with all bits 
+	 * outside of componentMask cleared.
+	 * 
+	 * @param image
+	 * @param componentMask
+	 * @return
+	 */
+	private static BufferedImage extractComponent(BufferedImage image, int componentMask) {
 		int width = image.getWidth();
 		int height = image.getHeight();
 		BufferedImage newImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				int pixel = getPackedColor(image, x, y);
-				int blue = ColorTuple.getBlue(pixel);
-				int bluePixel = ColorTuple.makePackedColor(0, 0, blue);
-				newImage.setRGB(x, y, bluePixel);
+		int[] source = getRasterData(image);
+		int[] target = getRasterData(newImage);
+		RowBandExecutor.forEachBand(width, height, (fromRow, toRow) -> {
+			int[] buffer = source != null ? null : new int[width];
+			for (int y = fromRow; y < toRow; y++) {
+				int[] sourceRow = rowPixels(image, source, y, buffer);
+				int sourceStart = rowStart(source, y, width);
+				int targetStart = y * width;
+				for (int x = 0; x < width; x++) {
+					target[targetStart + x] = sourceRow[sourceStart + x] & componentMask;
+				}
 			}
-		}
+		});
 		return newImage;
 	}
+	
+	/**
+	 * Returns an array containing the pixels of row y of the given image, starting at 
+	 * index rowStart(data, y, width).  If data is the raster data of the image, it is returned 
+	 * directly.  Otherwise, the row is copied into buffer using getRGB.
+	 * 
+	 * @param image
+	 * @param data  result of getRasterData(image)
+	 * @param y
+	 * @param buffer  array with length at least the width of the image, only used if data is null
+	 * @return
+	 */
+	private static int[] rowPixels(BufferedImage image, int[] data, int y, int[] buffer) {
+		if (data != null) {
+			return data;
+		}
+		int width = image.getWidth();
+		return image.getRGB(0, y, width, 1, buffer, 0, width);
+	}
+	
+	private static int rowStart(int[] data, int y, int width) {
+		return data != null ? y * width : 0;
+	}
+
+	/**
+	 * If true, operations supported by PackedLaneOps compute the three color components of 
+	 * each pixel together with long arithmetic.  If false, or for other operations, each component 
+	 * is computed separately with binaryPackedOp.  Both give the same results.  It is read once 
+	 * per operation.
+	 */
+	private static volatile boolean usePackedLanes = true;
 
+	public static boolean getUsePackedLanes() {
+		return usePackedLanes;
+	}
+	
+	public static void setUsePackedLanes(boolean usePackedLanes) {
+		ImageOps.usePackedLanes = usePackedLanes;
+	}
 
 	public enum OP {
 		PLUS, MINUS, TIMES, DIV, MOD
@@ -193,6 +470,56 @@ public class ImageOps {
 		};
 	}
 	
+	/**
+	 * Returns the packed color obtained by applying the given operator componentwise to the given 
+	 * packed colors.  The result is the same as binaryTupleOp(op, ColorTuple.unpack(left), 
+	 * ColorTuple.unpack(right)).pack(), but no ColorTuple objects are created.
+	 * 
+	 * @param op
+	 * @param left
+	 * @param right
+	 * @return
+	 */
+	public static int binaryPackedOp(OP op, int left, int right) {
+		return binaryPackedOp(op, left, ColorTuple.getRed(right), ColorTuple.getGreen(right), ColorTuple.getBlue(right));
+	}
+	
+	/**
+	 * Returns the packed color obtained by applying the given operator componentwise to the given 
+	 * packed color and a color with the given component values.  Component values are not required 
+	 * to be in [0,256); only the result is truncated.
+	 * 
+	 * @param op
+	 * @param left
+	 * @param rightRed
+	 * @param rightGreen
+	 * @param rightBlue
+	 * @return
+	 */
+	public static int binaryPackedOp(OP op, int left, int rightRed, int rightGreen, int rightBlue) {
+		return ColorTuple.makePackedColor(binaryComponentOp(op, ColorTuple.getRed(left), rightRed),
+				binaryComponentOp(op, ColorTuple.getGreen(left), rightGreen),
+				binaryComponentOp(op, ColorTuple.getBlue(left), rightBlue));
+	}
+	
+	/**
+	 * Applies the given operator to a single color component.
+	 * 
+	 * @param op
+	 * @param left
+	 * @param right
+	 * @return
+	 */
+	public static int binaryComponentOp(OP op, int left, int right) {
+		return switch(op) {
+		case PLUS -> left + right;
+		case MINUS -> left - right;
+		case TIMES -> left * right;
+		case DIV -> left / right;
+		case MOD -> left % right;
+		};
+	}
+	
 	/**
 	 * Applies operator to two ColorTuples and returns boolean value
 	 * 
@@ -222,6 +549,20 @@ public class ImageOps {
 	 */
 	
 	public static BufferedImage binaryImageImageOp(OP op, BufferedImage left, BufferedImage right) {
+		return binaryImageImageOp(op, left, right, null);
+	}
+	
+	/**
+	 * Like binaryImageImageOp(op, left, right), but writes the result into reuse instead of a 
+	 * new image when possible (see resultImage).  Reuse may be one of the operands.
+	 * 
+	 * @param op
+	 * @param left
+	 * @param right
+	 * @param reuse  an image whose pixels are no longer needed, or null
+	 * @return
+	 */
+	public static BufferedImage binaryImageImageOp(OP op, BufferedImage left, BufferedImage right, BufferedImage reuse) {
 		int lwidth = left.getWidth();
 		int rwidth = right.getWidth();
 		int lheight = left.getHeight();
@@ -229,15 +570,29 @@ public class ImageOps {
 		if (lwidth != rwidth || lheight != rheight) {
 			throw new PLCRuntimeException("Attempting binary operation on images with unequal sizes");
 		}
-		BufferedImage result = new BufferedImage(lwidth, lheight, BufferedImage.TYPE_INT_RGB);
-		for (int x = 0; x < lwidth; x++) {
-			for (int y = 0; y < lheight; y++) {
-				ColorTuple leftColor = ColorTuple.unpack(left.getRGB(x, y));
-				ColorTuple rightColor = ColorTuple.unpack(right.getRGB(x, y));
-				ColorTuple newColor = binaryTupleOp(op, leftColor, rightColor);
-				result.setRGB(x, y, newColor.pack());
+		BufferedImage result = resultImage(reuse, lwidth, lheight);
+		int[] leftData = getRasterData(left);
+		int[] rightData = getRasterData(right);
+		int[] resultData = getRasterData(result);
+		boolean lanes = usePackedLanes && PackedLaneOps.supportsImageImage(op);
+		RowBandExecutor.forEachBand(lwidth, lheight, (fromRow, toRow) -> {
+			int[] leftBuffer = leftData != null ? null : new int[lwidth];
+			int[] rightBuffer = rightData != null ? null : new int[lwidth];
+			for (int y = fromRow; y < toRow; y++) {
+				int[] leftRow = rowPixels(left, leftData, y, leftBuffer);
+				int leftStart = rowStart(leftData, y, lwidth);
+				int[] rightRow = rowPixels(right, rightData, y, rightBuffer);
+				int rightStart = rowStart(rightData, y, lwidth);
+				int resultStart = y * lwidth;
+				if (lanes) {
+					PackedLaneOps.imageImageRow(op, leftRow, leftStart, rightRow, rightStart, resultData, resultStart, lwidth);
+					continue;
+				}
+				for (int x = 0; x < lwidth; x++) {
+					resultData[resultStart + x] = binaryPackedOp(op, leftRow[leftStart + x], rightRow[rightStart + x]) & RGB_MASK;
+				}
 			}
-		}
+		});
 		return result;
 	}
 	
@@ -251,17 +606,125 @@ public class ImageOps {
 	 * @return
 	 */
 	public static BufferedImage binaryImageScalarOp(OP op, BufferedImage left, int right) {
+		return binaryImageScalarOp(op, left, right, null);
+	}
+	
+	/**
+	 * Like binaryImageScalarOp(op, left, right), but writes the result into reuse instead of a 
+	 * new image when possible (see resultImage).  Reuse may be left.
+	 * 
+	 * @param op
+	 * @param left
+	 * @param right
+	 * @param reuse  an image whose pixels are no longer needed, or null
+	 * @return
+	 */
+	public static BufferedImage binaryImageScalarOp(OP op, BufferedImage left, int right, BufferedImage reuse) {
 		int lwidth = left.getWidth();
 		int lheight = left.getHeight();
-		BufferedImage result = new BufferedImage(lwidth, lheight, BufferedImage.TYPE_INT_RGB);
-		ColorTuple rightColor = new ColorTuple(right);
-		for (int x = 0; x < lwidth; x++) {
-			for (int y = 0; y < lheight; y++) {
-				ColorTuple leftColor = ColorTuple.unpack(left.getRGB(x, y));
-				ColorTuple newColor = binaryTupleOp(op, leftColor, rightColor);
-				result.setRGB(x, y, newColor.pack());
+		BufferedImage result = resultImage(reuse, lwidth, lheight);
+		int[] leftData = getRasterData(left);
+		int[] resultData = getRasterData(result);
+		boolean lanes = usePackedLanes && PackedLaneOps.supportsImageScalar(op, right);
+		RowBandExecutor.forEachBand(lwidth, lheight, (fromRow, toRow) -> {
+			int[] leftBuffer = leftData != null ? null : new int[lwidth];
+			for (int y = fromRow; y < toRow; y++) {
+				int[] leftRow = rowPixels(left, leftData, y, leftBuffer);
+				int leftStart = rowStart(leftData, y, lwidth);
+				int resultStart = y * lwidth;
+				if (lanes) {
+					PackedLaneOps.imageScalarRow(op, leftRow, leftStart, right, resultData, resultStart, lwidth);
+					continue;
+				}
+				for (int x = 0; x < lwidth; x++) {
+					resultData[resultStart + x] = binaryPackedOp(op, leftRow[leftStart + x], right, right, right) & RGB_MASK;
+				}
+			}
+		});
+		return result;
+	}
+	
+	/**
+	 * Computes the packed color of one pixel of a fused image expression.
+	 */
+	@FunctionalInterface
+	public interface PixelFunction {
+		/**
+		 * @param pixels  the packed colors of the pixel in each source image
+		 * @param scalars  the values of the scalar operands of the expression
+		 * @return the packed color of the pixel in the result
+		 */
+		int apply(int[] pixels, int[] scalars);
+	}
+	
+	/**
+	 * Returns a new buffered image whose pixels are obtained by applying the given function to 
+	 * the corresponding pixels of all source images.  
+	 * 
+	 * This is used to compute a tree of image operations in a single pass.  Intermediate 
+	 * images are never created and each source image is read once.  Because the function 
+	 * computes each operation with binaryPackedOp, which truncates its result like the image 
+	 * kernels do, the result is the same as applying the operations one at a time.
+	 * 
+	 * If the source images do not have the same shape, a PLCRuntimeException is thrown.
+	 * 
+	 * @param function
+	 * @param scalars
+	 * @param sources
+	 * @return
+	 */
+	public static BufferedImage fusedImageOp(PixelFunction function, int[] scalars, BufferedImage... sources) {
+		return fusedImageOp(function, scalars, null, sources);
+	}
+	
+	/**
+	 * Like fusedImageOp(function, scalars, sources), but writes the result into reuse instead 
+	 * of a new image when possible (see resultImage).  Reuse may be one of the sources, since 
+	 * each pixel of the result only depends on the same pixel of the sources.
+	 * 
+	 * @param function
+	 * @param scalars
+	 * @param reuse  an image whose pixels are no longer needed, or null
+	 * @param sources
+	 * @return
+	 */
+	public static BufferedImage fusedImageOp(PixelFunction function, int[] scalars, BufferedImage reuse,
+			BufferedImage[] sources) {
+		int width = sources[0].getWidth();
+		int height = sources[0].getHeight();
+		for (BufferedImage source : sources) {
+			if (source.getWidth() != width || source.getHeight() != height) {
+				throw new PLCRuntimeException("Attempting binary operation on images with unequal sizes");
 			}
 		}
+		BufferedImage result = resultImage(reuse, width, height);
+		int[][] sourceData = new int[sources.length][];
+		for (int i = 0; i < sources.length; i++) {
+			sourceData[i] = getRasterData(sources[i]);
+		}
+		int[] resultData = getRasterData(result);
+		RowBandExecutor.forEachBand(width, height, (fromRow, toRow) -> {
+			int[][] buffers = new int[sources.length][];
+			int[][] rows = new int[sources.length][];
+			int[] starts = new int[sources.length];
+			int[] pixels = new int[sources.length];
+			for (int i = 0; i < sources.length; i++) {
+				buffers[i] = sourceData[i] != null ? null : new int[width];
+			}
+			for (int y = fromRow; y < toRow; y++) {
+				for (int i = 0; i < sources.length; i++) {
+					rows[i] = rowPixels(sources[i], sourceData[i], y, buffers[i]);
+					starts[i] = rowStart(sourceData[i], y, width);
+				}
+				int resultStart = y * width;
+				for (int x = 0; x < width; x++) {
+					for (int i = 0; i < pixels.length; i++) {
+						pixels[i] = rows[i][starts[i] + x];
+					}
+					resultData[resultStart + x] = function.apply(pixels, scalars) & RGB_MASK;
+				}
+			}
+		});
 		return result;
 	}
 	
@@ -314,6 +777,14 @@ public class ImageOps {
 	public static final BufferedImage clone(BufferedImage image) {
 	    BufferedImage clone = new BufferedImage(image.getWidth(),
 	            image.getHeight(), image.getType());
+	    int[] source = getRasterData(image);
+	    int[] target = getRasterData(clone);
+	    if (source != null && target != null) {
+	    	int width = image.getWidth();
+	    	RowBandExecutor.forEachBand(width, image.getHeight(), (fromRow, toRow) -> 
+	    		System.arraycopy(source, fromRow * width, target, fromRow * width, (toRow - fromRow) * width));
+	    	return clone;
+	    }
 	    Graphics2D g2d = clone.createGraphics();
 	    g2d.drawImage(image, 0, 0, null);
 	    g2d.dispose();
@@ -337,8 +808,15 @@ public class ImageOps {
 		at.scale(((float) maxX) / w, ((float) maxY) / h);
 		AffineTransformOp scaleOp = new AffineTransformOp(at,
 				AffineTransformOp.TYPE_BILINEAR);
-		BufferedImage newResizedImage= null;
-		newResizedImage = scaleOp.filter(image, newResizedImage);
+		BufferedImage newResizedImage = scaleOp.createCompatibleDestImage(image, null);
+		int newWidth = newResizedImage.getWidth();
+		//Each band is filtered into its own subimage, with the transform shifted up by the first row of the band.
+		RowBandExecutor.forEachBand(newWidth, newResizedImage.getHeight(), (fromRow, toRow) -> {
+			AffineTransform bandTransform = AffineTransform.getTranslateInstance(0, -fromRow);
+			bandTransform.concatenate(at);
+			AffineTransformOp bandOp = new AffineTransformOp(bandTransform, AffineTransformOp.TYPE_BILINEAR);
+			bandOp.filter(image, newResizedImage.getSubimage(0, fromRow, newWidth, toRow - fromRow));
+		});
 		return newResizedImage;
 	}
 	
@@ -0,0 +1,133 @@
+package edu.ufl.cise.plc.runtime;
+
+import edu.ufl.cise.plc.runtime.ImageOps.OP;
+
+/**
+ * Channel arithmetic on rows of packed pixels that computes all three color components
+ * of a pixel with single long operations.
+ *
+ * A packed color 0x??RRGGBB is spread into a long with each component in its own 16 bit
+ * lane (blue in bits 0-7, green in bits 16-23, red in bits 32-39). The unused bits of each
+ * lane absorb carries and borrows, so all lanes can be added, subtracted, or multiplied by a
+ * small factor at once and then clamped to [0,255]. The results are the same as applying
+ * ImageOps.binaryTupleOp to the unpacked ColorTuples and packing the result.
+ *
+ * Only the operations for which no lane can overflow into its neighbor are supported:
+ * PLUS and MINUS of two images, and PLUS, MINUS and TIMES of an image and a scalar whose
+ * magnitude is small enough that the int arithmetic of ColorTuple does not overflow.
+ *
+ */
+final class PackedLaneOps {
+
+	/** The low 8 bits of each lane */
+	static final long LANE_LOW = 0x0000_00ff_00ff_00ffL;
+
+	/** Bit 8 of each lane */
+	static final long LANE_BIT8 = 0x0000_0100_0100_0100L;
+
+	/** Largest magnitude of a scalar operand for which 255 * scalar fits in an int */
+	static final int MAX_SCALAR = 1 << 23;
+
+	private PackedLaneOps() {
+	}
+
+	static boolean supportsImageImage(OP op) {
+		return op == OP.PLUS || op == OP.MINUS;
+	}
+
+	static boolean supportsImageScalar(OP op, int right) {
+		return (op == OP.PLUS || op == OP.MINUS || op == OP.TIMES) && right >= -MAX_SCALAR && right <= MAX_SCALAR;
+	}
+
+	/**
+	 * Spreads the color components of a packed color into the lanes of a long. The alpha
+	 * component is ignored.
+	 */
+	static long spread(int packedColor) {
+		return (packedColor & ColorTuple.SELECT_BLU) | ((long) (packedColor & ColorTuple.SELECT_GRN) << 8)
+				| ((long) (packedColor & ColorTuple.SELECT_RED) << 16);
+	}
+
+	/**
+	 * Returns the packed color, without alpha component, with the color components given by
+	 * the low 8 bits of each lane.
+	 */
+	static int gather(long lanes) {
+		return (int) (lanes & ColorTuple.SELECT_BLU) | (int) ((lanes >>> 8) & ColorTuple.SELECT_GRN)
+				| (int) ((lanes >>> 16) & ColorTuple.SELECT_RED);
+	}
+
+	/** Returns 0xff in every lane where bit 8 of the given value is set, and 0 in the others. */
+	private static long laneMask(long bit8) {
+		return ((bit8 & LANE_BIT8) >>> 8) * 0xff;
+	}
+
+	/** Lane-wise min(a + b, 255) for lanes in [0,255] */
+	static long addSaturate(long a, long b) {
+		long sum = a + b;
+		return (sum | laneMask(sum)) & LANE_LOW;
+	}
+
+	/** Lane-wise max(a - b, 0) for lanes in [0,255] */
+	static long subtractSaturate(long a, long b) {
+		//each lane holds a + 256 - b, which has bit 8 set exactly when a >= b
+		long difference = (a | LANE_BIT8) - b;
+		return difference & laneMask(difference);
+	}
+
+	/** Lane-wise min(a * factor, 255) for lanes in [0,255] and factor in [0,256] */
+	static long multiplySaturate(long a, int factor) {
+		long product = a * factor;
+		//high byte of each lane plus 255 has bit 8 set exactly when the high byte is not zero
+		long high = ((product >>> 8) & LANE_LOW) + LANE_LOW;
+		return (product | laneMask(high)) & LANE_LOW;
+	}
+
+	/**
+	 * Sets width pixels of result, starting at resultStart, to the pixels of left and right
+	 * starting at leftStart and rightStart combined with op.
+	 */
+	static void imageImageRow(OP op, int[] left, int leftStart, int[] right, int rightStart, int[] result,
+			int resultStart, int width) {
+		if (op == OP.PLUS) {
+			for (int x = 0; x < width; x++) {
+				result[resultStart + x] = gather(addSaturate(spread(left[leftStart + x]), spread(right[rightStart + x])));
+			}
+		} else if (op == OP.MINUS) {
+			for (int x = 0; x < width; x++) {
+				result[resultStart + x] = gather(subtractSaturate(spread(left[leftStart + x]), spread(right[rightStart + x])));
+			}
+		} else {
+			throw new IllegalArgumentException("Compiler/runtime error Unexpected value: " + op);
+		}
+	}
+
+	/**
+	 * Sets width pixels of result, starting at resultStart, to the pixels of left starting at
+	 * leftStart combined with a ColorTuple having the given value in all components.
+	 */
+	static void imageScalarRow(OP op, int[] left, int leftStart, int right, int[] result, int resultStart,
+			int width) {
+		//Operands outside of these ranges give the same clamped results as the range limits.
+		int addend = Math.max(-255, Math.min(255, op == OP.MINUS ? -Math.max(right, -255) : right));
+		int factor = Math.max(0, Math.min(256, right));
+		if (op == OP.TIMES) {
+			for (int x = 0; x < width; x++) {
+				result[resultStart + x] = gather(multiplySaturate(spread(left[leftStart + x]), factor));
+			}
+		} else if ((op == OP.PLUS || op == OP.MINUS) && addend >= 0) {
+			long lanes = spread(ColorTuple.makePackedColor(addend, addend, addend));
+			for (int x = 0; x < width; x++) {
+				result[resultStart + x] = gather(addSaturate(spread(left[leftStart + x]), lanes));
+			}
+		} else if (op == OP.PLUS || op == OP.MINUS) {
+			long lanes = spread(ColorTuple.makePackedColor(-addend, -addend, -addend));
+			for (int x = 0; x < width; x++) {
+				result[resultStart + x] = gather(subtractSaturate(spread(left[leftStart + x]), lanes));
+			}
+		} else {
+			throw new IllegalArgumentException("Compiler/runtime error Unexpected value: " + op);
+		}
+	}
+
+}
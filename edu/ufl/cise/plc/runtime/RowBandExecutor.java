@@ -0,0 +1,164 @@
+package edu.ufl.cise.plc.runtime;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs image kernels in parallel by splitting an image into bands of consecutive rows.
+ *
+ * A kernel is given a range of rows and must only write pixels in those rows, so every
+ * band can be computed independently and the result is identical to running the kernel
+ * once over the whole image.
+ *
+ * Images with fewer pixels than serialThreshold are processed on the calling thread.
+ * The number of rows per band is given by bandRows, or chosen from the image size
+ * and the parallelism of the pool if bandRows is 0.  calibrate() finds a band size from
+ * timing runs on the current machine, which can then be passed to setBandRows.
+ *
+ * The settings are read once per call of forEachBand, so changing them concurrently only
+ * affects later calls.
+ *
+ */
+public class RowBandExecutor {
+
+	/**
+	 * A kernel computing the rows in [fromRow, toRow) of an image.
+	 */
+	@FunctionalInterface
+	public interface RowKernel {
+		void apply(int fromRow, int toRow);
+	}
+
+	/** Pool used to run bands in parallel. Can be changed to use a dedicated pool. */
+	private static volatile ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	/** Images with fewer pixels than this are processed by a single serial call of the kernel. */
+	private static volatile int serialThreshold = 1 << 16;
+
+	/** Number of rows in each band, or 0 to derive it from the image height and pool parallelism */
+	private static volatile int bandRows = 0;
+
+	/** Number of bands per worker thread used when bandRows is 0 */
+	static final int BANDS_PER_THREAD = 4;
+
+	public static ForkJoinPool getPool() {
+		return pool;
+	}
+
+	public static void setPool(ForkJoinPool pool) {
+		RowBandExecutor.pool = pool;
+	}
+
+	public static int getSerialThreshold() {
+		return serialThreshold;
+	}
+
+	public static void setSerialThreshold(int serialThreshold) {
+		RowBandExecutor.serialThreshold = serialThreshold;
+	}
+
+	public static int getBandRows() {
+		return bandRows;
+	}
+
+	public static void setBandRows(int bandRows) {
+		RowBandExecutor.bandRows = bandRows;
+	}
+
+	/**
+	 * Applies the kernel to every row of an image with the given size, in bands of rows.
+	 * Returns after all bands have been computed.  An exception thrown by the kernel
+	 * is rethrown to the caller.
+	 *
+	 * @param width
+	 * @param height
+	 * @param kernel
+	 */
+	public static void forEachBand(int width, int height, RowKernel kernel) {
+		forEachBand(pool, serialThreshold, bandRows, width, height, kernel);
+	}
+
+	static void forEachBand(ForkJoinPool pool, int serialThreshold, int bandRows, int width, int height,
+			RowKernel kernel) {
+		int rows = rowsPerBand(pool, bandRows, height);
+		if ((long) width * height < serialThreshold || pool.getParallelism() <= 1 || rows >= height) {
+			kernel.apply(0, height);
+			return;
+		}
+		pool.invoke(new Band(kernel, 0, height, rows));
+	}
+
+	static int rowsPerBand(ForkJoinPool pool, int bandRows, int height) {
+		if (bandRows > 0) {
+			return bandRows;
+		}
+		int bands = pool.getParallelism() * BANDS_PER_THREAD;
+		return Math.max(1, (height + bands - 1) / bands);
+	}
+
+	/**
+	 * Splits its range of rows in half until it is no larger than the band size,
+	 * then applies the kernel.
+	 */
+	@SuppressWarnings("serial")
+	static class Band extends RecursiveAction {
+		final RowKernel kernel;
+		final int fromRow;
+		final int toRow;
+		final int rows;
+
+		Band(RowKernel kernel, int fromRow, int toRow, int rows) {
+			this.kernel = kernel;
+			this.fromRow = fromRow;
+			this.toRow = toRow;
+			this.rows = rows;
+		}
+
+		@Override
+		protected void compute() {
+			if (toRow - fromRow <= rows) {
+				kernel.apply(fromRow, toRow);
+				return;
+			}
+			int mid = (fromRow + toRow) >>> 1;
+			invokeAll(new Band(kernel, fromRow, mid, rows), new Band(kernel, mid, toRow, rows));
+		}
+	}
+
+	/**
+	 * Returns the band size giving the shortest time for a typical kernel on an image of
+	 * the given size, run on the current pool.  Each candidate band size is timed over a
+	 * few runs after a warmup.  The settings are not changed; the result can be passed to
+	 * setBandRows.
+	 *
+	 * @param width
+	 * @param height
+	 * @return the selected number of rows per band
+	 */
+	public static int calibrate(int width, int height) {
+		ForkJoinPool pool = RowBandExecutor.pool;
+		int[] pixels = new int[width * height];
+		RowKernel kernel = (fromRow, toRow) -> {
+			for (int i = fromRow * width; i < toRow * width; i++) {
+				pixels[i] = ImageOps.binaryPackedOp(ImageOps.OP.PLUS, pixels[i], 1, 1, 1) & ImageOps.RGB_MASK;
+			}
+		};
+		int best = 0;
+		long bestTime = Long.MAX_VALUE;
+		for (int candidate = 1; candidate <= height; candidate *= 2) {
+			forEachBand(pool, 0, candidate, width, height, kernel);
+			long time = Long.MAX_VALUE;
+			for (int run = 0; run < 3; run++) {
+				long start = System.nanoTime();
+				forEachBand(pool, 0, candidate, width, height, kernel);
+				time = Math.min(time, System.nanoTime() - start);
+			}
+			if (time < bestTime) {
+				bestTime = time;
+				best = candidate;
+			}
+		}
+		return best;
+	}
+
+}
@@ -0,0 +1,201 @@
+package edu.ufl.cise.plc.runtime.javaCompilerClassLoader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the class files of compiled programs in a directory, so that they survive the JVM.
+ * 
+ * Each class file is stored in a file named after its key, see key, together with its class 
+ * name and a SHA-256 hash of its bytes.  Files are written to a temporary file that is then 
+ * renamed, so a reader never sees a partly written entry, and an entry that is truncated or 
+ * corrupted is deleted instead of loaded.  When the entries are 
+ * larger than maxBytes in total, the least recently used ones are deleted.
+ * 
+ * Failing to read or write the directory is not an error, the program is just compiled.
+ */
+public class BytecodeCache {
+
+	static final int MAGIC = 0x504c4342; // "PLCB"
+	static final int CLASS_FILE_MAGIC = 0xcafebabe;
+	static final String SUFFIX = ".plcclass";
+
+	/**
+	 * A class file and the name of its class.
+	 */
+	public record CachedClass(String className, byte[] bytecode) {
+	}
+
+	private record Entry(Path file, long lastUsed, long size) {
+	}
+
+	private final Path directory;
+	private final long maxBytes;
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger stores = new AtomicInteger();
+
+	public BytecodeCache(Path directory, long maxBytes) {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Returns a key for the class file compiled from the program with the given key, which 
+	 * also depends on the version of the PLC compiler and of the Java runtime compiling it.
+	 */
+	public static String key(String programKey, String compilerVersion) {
+		return CompiledProgramCache.key(programKey, compilerVersion, Runtime.version().toString());
+	}
+
+	/**
+	 * Returns the class file stored with key, or null if there is no valid entry.
+	 */
+	public CachedClass load(String key) {
+		Path file = directory.resolve(key + SUFFIX);
+		if (!Files.isRegularFile(file)) {
+			return null;
+		}
+		try {
+			CachedClass cachedClass;
+			try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+				cachedClass = read(in);
+			}
+			if (cachedClass == null) {
+				Files.deleteIfExists(file);
+				return null;
+			}
+			// the modification time orders entries for eviction
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+			hits.incrementAndGet();
+			return cachedClass;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	// returns the class file of an entry, or null if the entry is not valid
+	private static CachedClass read(DataInputStream in) throws IOException {
+		try {
+			if (in.readInt() != MAGIC) {
+				return null;
+			}
+			String className = in.readUTF();
+			int length = in.readInt();
+			if (length < 4 || length > in.available()) {
+				return null;
+			}
+			byte[] bytecode = in.readNBytes(length);
+			byte[] digest = in.readNBytes(32);
+			if (!Arrays.equals(digest, sha256(bytecode)) || in.read() != -1
+					|| ByteBuffer.wrap(bytecode).getInt() != CLASS_FILE_MAGIC) {
+				return null;
+			}
+			return new CachedClass(className, bytecode);
+		} catch (EOFException | UTFDataFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the class file of className with key, then evicts entries if the cache is too 
+	 * large.
+	 */
+	public void store(String key, String className, byte[] bytecode) {
+		try {
+			Files.createDirectories(directory);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(bytecode.length + 128);
+			try (DataOutputStream out = new DataOutputStream(bytes)) {
+				out.writeInt(MAGIC);
+				out.writeUTF(className);
+				out.writeInt(bytecode.length);
+				out.write(bytecode);
+				out.write(sha256(bytecode));
+			}
+			Path temp = Files.createTempFile(directory, key, ".tmp");
+			try {
+				Files.write(temp, bytes.toByteArray());
+				Path file = directory.resolve(key + SUFFIX);
+				try {
+					Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+				}
+			} finally {
+				Files.deleteIfExists(temp);
+			}
+			stores.incrementAndGet();
+			evict();
+		} catch (IOException e) {
+			// the entry is just not cached
+		}
+	}
+
+	/**
+	 * Deletes the least recently used entries until the remaining ones take at most maxBytes.
+	 */
+	synchronized void evict() throws IOException {
+		List<Path> files = new ArrayList<>();
+		try (Stream<Path> entries = Files.list(directory)) {
+			entries.filter(file -> file.getFileName().toString().endsWith(SUFFIX)).forEach(files::add);
+		}
+		long total = 0;
+		List<Entry> entries = new ArrayList<>();
+		for (Path file : files) {
+			Entry entry = new Entry(file, Files.getLastModifiedTime(file).toMillis(), Files.size(file));
+			entries.add(entry);
+			total += entry.size();
+		}
+		entries.sort(Comparator.comparingLong(Entry::lastUsed));
+		for (Entry entry : entries) {
+			if (total <= maxBytes) {
+				break;
+			}
+			Files.deleteIfExists(entry.file());
+			total -= entry.size();
+		}
+	}
+
+	/**
+	 * Returns the number of class files loaded from the directory, for monitoring and tests.
+	 */
+	public int hits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of class files written to the directory, for monitoring and tests.
+	 */
+	public int stores() {
+		return stores.get();
+	}
+
+	static byte[] sha256(byte[] bytes) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(bytes);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
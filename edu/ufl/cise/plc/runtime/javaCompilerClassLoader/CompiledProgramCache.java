@@ -0,0 +1,154 @@
+package edu.ufl.cise.plc.runtime.javaCompilerClassLoader;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds compiled programs, so a program that is executed again is not 
+ * compiled again.
+ * 
+ * Entries are keyed by a hash of everything the compiled class depends on, see key.  At most 
+ * maxEntries programs are kept, and the least recently used one is evicted first.  A program 
+ * requested by several threads at once is compiled by the first of them, and the others wait 
+ * for its result.  A compilation that fails is not cached, so each request for the program 
+ * gets the exception of a compilation.
+ */
+public class CompiledProgramCache {
+
+	/**
+	 * Compiles a program.
+	 */
+	public interface ProgramCompiler {
+		PreparedProgram compile() throws Exception;
+	}
+
+	private int maxEntries;
+	// entries in order of use, including programs still being compiled
+	private final LinkedHashMap<String, CompletableFuture<PreparedProgram>> entries = new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<PreparedProgram>> eldest) {
+			return size() > maxEntries;
+		}
+	};
+	private final AtomicInteger compilations = new AtomicInteger();
+
+	public CompiledProgramCache(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * Returns the program with the given key, compiling it with compiler if it is not 
+	 * cached.  If maxEntries is 0, the program is always compiled.
+	 */
+	public PreparedProgram get(String key, ProgramCompiler compiler) throws Exception {
+		CompletableFuture<PreparedProgram> future;
+		boolean compile = false;
+		synchronized (entries) {
+			future = entries.get(key);
+			if (future == null) {
+				future = new CompletableFuture<>();
+				compile = true;
+				if (maxEntries > 0) {
+					entries.put(key, future);
+				}
+			}
+		}
+		if (compile) {
+			compilations.incrementAndGet();
+			try {
+				future.complete(compiler.compile());
+			} catch (Throwable e) {
+				synchronized (entries) {
+					entries.remove(key, future);
+				}
+				future.completeExceptionally(e);
+			}
+		}
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof Exception exception) throw exception;
+			throw (Error) e.getCause();
+		}
+	}
+
+	/**
+	 * Returns true if the program with the given key is cached or being compiled.
+	 */
+	public boolean contains(String key) {
+		synchronized (entries) {
+			return entries.containsKey(key);
+		}
+	}
+
+	/**
+	 * Adds a program compiled elsewhere, unless the program is already cached or being 
+	 * compiled.
+	 */
+	public void put(String key, PreparedProgram program) {
+		synchronized (entries) {
+			if (maxEntries > 0) {
+				entries.putIfAbsent(key, CompletableFuture.completedFuture(program));
+			}
+		}
+	}
+
+	/**
+	 * Sets the number of programs kept, evicting the least recently used ones if there are 
+	 * more.  0 disables the cache.
+	 */
+	public void setMaxEntries(int maxEntries) {
+		synchronized (entries) {
+			this.maxEntries = maxEntries;
+			while (entries.size() > maxEntries) {
+				entries.remove(entries.keySet().iterator().next());
+			}
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Returns the number of programs compiled by this cache, for monitoring and tests.
+	 */
+	public int compilations() {
+		return compilations.get();
+	}
+
+	/**
+	 * Returns a SHA-256 hash of the given strings, which should be the source of a program and 
+	 * everything else its compiled class depends on.
+	 */
+	public static String key(String... parts) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (String part : parts) {
+				byte[] bytes = part.getBytes(StandardCharsets.UTF_8);
+				// the length separates the parts, so different parts never give the same bytes
+				digest.update(Integer.toString(bytes.length).getBytes(StandardCharsets.UTF_8));
+				digest.update((byte) ':');
+				digest.update(bytes);
+			}
+			return HexFormat.of().formatHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -28,6 +28,17 @@ public class DynamicClassLoader extends ClassLoader {
 		return runMethod(testClass,methodName, args);
 	}
 
+	/**
+	 * Loads the class defined in bytecode and returns its indicated method, which can be 
+	 * invoked any number of times.
+	 * 
+	 * Requires that the given method is not overloaded in the class file.
+	 */
+	public static Method loadMethod(byte[] bytecode, String className, String methodName) throws Exception {
+		Class<?> testClass = getClass(bytecode, className);
+		return findMethod(methodName, testClass.getDeclaredMethods());
+	}
+
 	private static Method findMethod(String name, Method[] methods) {
 		for (Method m : methods) {
 			String methodName = m.getName();
@@ -2,29 +2,72 @@ package edu.ufl.cise.plc.runtime.javaCompilerClassLoader;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import javax.tools.JavaCompiler;
 import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
 import javax.tools.ToolProvider;
 
 public class DynamicCompiler {
 	
+	/*
+	 * The compiler and its standard file manager are created once and shared by all 
+	 * compilations, which keeps the classes of javac loaded and the platform classes it has 
+	 * read cached.  The file manager is not thread safe, so compilations run one at a time.
+	 */
+	private static JavaCompiler compiler;
+	private static StandardJavaFileManager standardFileManager;
+	
+	private static synchronized InMemoryClassFileManager newFileManager() {
+		if (compiler == null) {
+			compiler = ToolProvider.getSystemJavaCompiler();
+			standardFileManager = compiler.getStandardFileManager(null, null, null);
+		}
+		return new InMemoryClassFileManager(standardFileManager);
+	}
 	
 	/** Compiles java source code provided in the form a  String and returns the class file in the form of a byte array. */
 	public static byte[] compile(String fullyQualifiedName, String sourceCode) throws Exception {
-		
-		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-		InMemoryClassFileManager fileManager = new InMemoryClassFileManager(compiler.getStandardFileManager(null, null, null));
+		return compileAll(Map.of(fullyQualifiedName, sourceCode)).get(fullyQualifiedName);
+	}
+	
+	/**
+	 * Compiles the java source code of several classes, given by fully qualified name, in one 
+	 * compilation and returns their class files by fully qualified name.
+	 */
+	public static synchronized Map<String, byte[]> compileAll(Map<String, String> sourceCodes) throws Exception {
+		InMemoryClassFileManager fileManager = newFileManager();
 		
 		List<JavaFileObject> sourceFiles = new ArrayList<>();
-		sourceFiles.add(new StringJavaFileObject(fullyQualifiedName, sourceCode));
+		for (Map.Entry<String, String> sourceCode : sourceCodes.entrySet()) {
+			sourceFiles.add(new StringJavaFileObject(sourceCode.getKey(), sourceCode.getValue()));
+		}
 		
 		boolean success = compiler.getTask(null, fileManager, null, null, null, sourceFiles).call();
 		if (success) {
-			return fileManager.byteCodeObject.getBytes();
+			return fileManager.getClassFiles();
 		}
 		else throw new Exception("error compiling generated code");
-		}
 	}
 	
-
+	/**
+	 * Compiles a small class in a background thread, so that javac is loaded and warmed up 
+	 * before the first program is compiled.  Call at startup in processes that will compile 
+	 * programs.
+	 */
+	public static CompletableFuture<Void> warmUp() {
+		return CompletableFuture.runAsync(() -> {
+			try {
+				compile("WarmUp", "class WarmUp { static int apply(int a) { return a + 1; } }");
+			} catch (Exception e) {
+				// the first program compiled will report the problem
+			}
+		}, runnable -> {
+			Thread thread = new Thread(runnable, "javac warm-up");
+			thread.setDaemon(true);
+			thread.start();
+		});
+	}
+}
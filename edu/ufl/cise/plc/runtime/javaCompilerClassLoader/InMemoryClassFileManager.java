@@ -4,6 +4,8 @@ package edu.ufl.cise.plc.runtime.javaCompilerClassLoader;
 
 import java.io.IOException;
 import java.security.SecureClassLoader;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.tools.FileObject;
 import javax.tools.ForwardingJavaFileManager;
@@ -13,7 +15,9 @@ import javax.tools.StandardJavaFileManager;
 
 public class InMemoryClassFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
 	
-	InMemoryBytecodeObject byteCodeObject;
+	InMemoryBytecodeObject byteCodeObject;  //the last class file written
+	
+	final Map<String, InMemoryBytecodeObject> byteCodeObjects = new LinkedHashMap<>();  //all class files written, by class name
 	
 	public InMemoryClassFileManager(StandardJavaFileManager standardManager) {
 		super(standardManager);
@@ -24,7 +28,9 @@ public class InMemoryClassFileManager extends ForwardingJavaFileManager<Standard
 		return new SecureClassLoader() {
 			@Override
 			protected Class<?> findClass(String name) throws ClassNotFoundException {
-				byte[] b = byteCodeObject.getBytes();
+				InMemoryBytecodeObject classFile = byteCodeObjects.get(name);
+				if (classFile == null) throw new ClassNotFoundException(name);
+				byte[] b = classFile.getBytes();
 				return super.defineClass(name, b, 0, b.length);
 			}
 		};
@@ -32,7 +38,22 @@ public class InMemoryClassFileManager extends ForwardingJavaFileManager<Standard
 	
 	public JavaFileObject getJavaFileForOutput(Location location, String name, Kind kind, FileObject sibling) throws IOException{
 		byteCodeObject = new InMemoryBytecodeObject(name, kind);
+		byteCodeObjects.put(name, byteCodeObject);
 		return byteCodeObject;
 	}
+	
+	/** Returns the class files written so far, by class name. */
+	public Map<String, byte[]> getClassFiles() {
+		Map<String, byte[]> classFiles = new LinkedHashMap<>();
+		for (Map.Entry<String, InMemoryBytecodeObject> entry : byteCodeObjects.entrySet()) {
+			classFiles.put(entry.getKey(), entry.getValue().getBytes());
+		}
+		return classFiles;
+	}
+	
+	/** Closes nothing, since the standard file manager is shared by all compilations of DynamicCompiler. */
+	@Override
+	public void close() {
+	}
 
 }
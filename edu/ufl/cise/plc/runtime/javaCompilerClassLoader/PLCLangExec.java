@@ -1,12 +1,54 @@
 package edu.ufl.cise.plc.runtime.javaCompilerClassLoader;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import edu.ufl.cise.plc.CompilerComponentFactory;
+import edu.ufl.cise.plc.CompilerComponentFactory.Settings;
 import edu.ufl.cise.plc.ast.ASTNode;
 import edu.ufl.cise.plc.ast.Program;
 
 public class PLCLangExec {
+
+	/**
+	 * The programs compiled so far, shared by all instances.  Programs are 
+	 * keyed by their source, the package name and the configuration of the 
+	 * CompilerComponentFactory.Settings they are compiled with.
+	 */
+	static final CompiledProgramCache programCache = new CompiledProgramCache(64);
+
+	/**
+	 * Sets the number of compiled programs kept for reuse.  0 disables caching.
+	 */
+	public static void setProgramCacheSize(int size) {
+		programCache.setMaxEntries(size);
+	}
+
+	public static CompiledProgramCache getProgramCache() {
+		return programCache;
+	}
+
+	/**
+	 * The class files of compiled programs kept on disk, or null.
+	 */
+	static volatile BytecodeCache bytecodeCache = null;
+
+	/**
+	 * Keeps the class files of compiled programs in directory, with at most maxBytes of 
+	 * entries, so that they are not compiled again by a later JVM.  A null directory disables 
+	 * the disk cache.
+	 */
+	public static void setBytecodeCache(Path directory, long maxBytes) {
+		bytecodeCache = directory != null ? new BytecodeCache(directory, maxBytes) : null;
+	}
+
+	public static BytecodeCache getBytecodeCache() {
+		return bytecodeCache;
+	}
 	
 	public final String packageName;
 	
@@ -24,20 +66,151 @@ public class PLCLangExec {
 	}
 	
 	public Object exec(String input, Object[] params) throws Exception {
+		return prepare(input).apply(params);
+	}
+
+	/**
+	 * Returns the compiled program, compiling it unless it is cached.  If 
+	 * CompilerComponentFactory.interpretFirst is set, a program that is not compiled yet is 
+	 * interpreted until it has been executed often enough, see TieredProgram.
+	 */
+	public PreparedProgram prepare(String input) throws Exception {
+		Settings settings = CompilerComponentFactory.settings();
+		String key = key(input, settings);
+		if (CompilerComponentFactory.getInterpretFirst() && !programCache.contains(key)) {
+			return programCache.get(CompiledProgramCache.key("tiered", key), () -> interpret(input, key, settings));
+		}
+		return programCache.get(key, () -> compile(input, key, settings));
+	}
+
+	// the program is interpreted and later compiled with the settings it was prepared with
+	private PreparedProgram interpret(String input, String key, Settings settings) throws Exception {
+		ASTNode ast = analyze(input, settings);
+		return new TieredProgram((Program) ast, fullyQualifiedName(ast), settings,
+				() -> programCache.get(key, () -> compile(input, key, settings)),
+				CompilerComponentFactory.getCompileAfterCalls(), CompilerComponentFactory.getCompileAfterMillis()).prepared();
+	}
+
+	/**
+	 * Compiles the programs that are not cached yet and adds them to the cache, so that 
+	 * executing them does not compile them.  The Java code of all the programs is compiled by a 
+	 * single javac task, except that programs with the same class name need separate tasks.
+	 */
+	public void compileAll(List<String> inputs) throws Exception {
+		Settings settings = CompilerComponentFactory.settings();
+		Map<String, String> programs = new LinkedHashMap<>();
+		for (String input : inputs) {
+			programs.putIfAbsent(key(input, settings), input);
+		}
+		List<GeneratedClass> pending = new ArrayList<>();
+		for (Map.Entry<String, String> program : programs.entrySet()) {
+			String key = program.getKey();
+			String input = program.getValue();
+			if (programCache.contains(key)) {
+				continue;
+			}
+			BytecodeCache.CachedClass compiled = loadCached(key);
+			if (compiled != null) {
+				programCache.put(key, PreparedProgram.load(compiled.bytecode(), compiled.className()));
+			} else if (settings.generateBytecode()) {
+				programCache.get(key, () -> compile(input, key, settings));
+			} else {
+				ASTNode ast = analyze(input, settings);
+				String javaCode = javaCode(ast, settings);
+				show(javaCode);
+				pending.add(new GeneratedClass(key, fullyQualifiedName(ast), javaCode));
+			}
+		}
+		while (!pending.isEmpty()) {
+			Map<String, String> sourceCodes = new LinkedHashMap<>();
+			List<GeneratedClass> task = new ArrayList<>();
+			List<GeneratedClass> later = new ArrayList<>();
+			for (GeneratedClass generated : pending) {
+				if (sourceCodes.putIfAbsent(generated.className(), generated.javaCode()) == null) {
+					task.add(generated);
+				} else {
+					later.add(generated);
+				}
+			}
+			Map<String, byte[]> classFiles = DynamicCompiler.compileAll(sourceCodes);
+			for (GeneratedClass generated : task) {
+				byte[] byteCode = classFiles.get(generated.className());
+				storeCached(generated.key(), new BytecodeCache.CachedClass(generated.className(), byteCode));
+				programCache.put(generated.key(), PreparedProgram.load(byteCode, generated.className()));
+			}
+			pending = later;
+		}
+	}
+
+	// the Java code generated for a program compiled by compileAll
+	private record GeneratedClass(String key, String className, String javaCode) {
+	}
+
+	private String key(String input, Settings settings) {
+		return CompiledProgramCache.key(packageName, settings.configuration(), input);
+	}
+
+	private PreparedProgram compile(String input, String key, Settings settings) throws Exception {
+		BytecodeCache.CachedClass compiled = loadCached(key);
+		if (compiled == null) {
+			compiled = generate(input, settings);
+			storeCached(key, compiled);
+		}
+		//Load classfile and prepare its apply method.
+		return PreparedProgram.load(compiled.bytecode(), compiled.className());
+	}
+
+	private BytecodeCache.CachedClass loadCached(String key) {
+		BytecodeCache diskCache = bytecodeCache;
+		return diskCache != null ? diskCache.load(BytecodeCache.key(key, CompilerComponentFactory.version())) : null;
+	}
+
+	private void storeCached(String key, BytecodeCache.CachedClass compiled) {
+		BytecodeCache diskCache = bytecodeCache;
+		if (diskCache != null) {
+			diskCache.store(BytecodeCache.key(key, CompilerComponentFactory.version()), compiled.className(), compiled.bytecode());
+		}
+	}
+
+	private String fullyQualifiedName(ASTNode ast) {
+		String className = ((Program) ast).getName();
+		return packageName != "" ? packageName + '.' + className : className;
+	}
+
+	private ASTNode analyze(String input, Settings settings) throws Exception {
 		//Lex and parse to obtain AST
 		ASTNode ast = CompilerComponentFactory.getParser(input).parse();
 		//Type check and decorate AST with declaration and type info
 		ast.visit(CompilerComponentFactory.getTypeChecker(), null);
-		//Generate Java code
-		String className = ((Program) ast).getName();
-		String fullyQualifiedName = packageName != "" ? packageName + '.' + className : className;
-		String javaCode = (String) ast.visit(CompilerComponentFactory.getCodeGenerator(packageName), null);
-		show(javaCode);
-		//Invoke Java compiler to obtain bytecode
-		byte[] byteCode = DynamicCompiler.compile(fullyQualifiedName, javaCode);
-		//Load generated classfile and execute its apply method.
-		Object result = DynamicClassLoader.loadClassAndRunMethod(byteCode, fullyQualifiedName, "apply", params);
-		return result;
+		//Simplify the decorated AST
+		if (settings.optimizeAST()) {
+			ast = (ASTNode) ast.visit(CompilerComponentFactory.getOptimizer(), null);
+		}
+		if (settings.eliminateCommonSubexpressions()) {
+			ast = CompilerComponentFactory.getCommonSubexpressionEliminator().eliminate((Program) ast);
+		}
+		return ast;
+	}
+
+	private BytecodeCache.CachedClass generate(String input, Settings settings) throws Exception {
+		ASTNode ast = analyze(input, settings);
+		String fullyQualifiedName = fullyQualifiedName(ast);
+		byte[] byteCode;
+		if (settings.generateBytecode()) {
+			//Generate bytecode directly
+			byteCode = (byte[]) ast.visit(CompilerComponentFactory.getBytecodeGenerator(packageName, settings), null);
+		} else {
+			//Generate Java code
+			String javaCode = javaCode(ast, settings);
+			show(javaCode);
+			//Invoke Java compiler to obtain bytecode
+			byteCode = DynamicCompiler.compile(fullyQualifiedName, javaCode);
+		}
+		return new BytecodeCache.CachedClass(fullyQualifiedName, byteCode);
+	}
+
+	private String javaCode(ASTNode ast, Settings settings) throws Exception {
+		return (String) ast.visit(CompilerComponentFactory.getCodeGenerator(packageName, settings), null);
 	}
 
 }
@@ -0,0 +1,99 @@
+package edu.ufl.cise.plc.runtime.javaCompilerClassLoader;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A compiled program, ready to be executed any number of times.
+ * 
+ * The apply method of the program is resolved once, when the program is prepared, into a 
+ * method handle.  Callers that know the parameter types of the program can invoke handle() 
+ * with invokeExact, which costs about as much as a direct static call.  apply(params) 
+ * converts boxed parameters instead, like Method.invoke.
+ * 
+ * A program executed by the interpreter first, see TieredProgram, is compiled later, and its 
+ * handle then switches to the compiled program.
+ */
+public final class PreparedProgram {
+
+	private final String className;
+	// the apply method of the program, with its exact type
+	private final MethodHandle handle;
+	// handle taking its parameters as an Object[] and returning an Object
+	private final MethodHandle invoker;
+	private final CompletableFuture<PreparedProgram> compiled;
+
+	PreparedProgram(String className, Method apply) throws IllegalAccessException {
+		this(className, MethodHandles.lookup().unreflect(apply), null);
+	}
+
+	/*
+	 * compiled is completed with the compiled program when handle switches to it, or is null 
+	 * if handle is a compiled program.
+	 */
+	PreparedProgram(String className, MethodHandle handle, CompletableFuture<PreparedProgram> compiled) {
+		this.className = className;
+		this.handle = handle;
+		this.invoker = handle.asSpreader(Object[].class, handle.type().parameterCount())
+				.asType(MethodType.methodType(Object.class, Object[].class));
+		this.compiled = compiled != null ? compiled : CompletableFuture.completedFuture(this);
+	}
+
+	/**
+	 * Loads the class defined in bytecode and prepares its apply method.
+	 */
+	static PreparedProgram load(byte[] bytecode, String className) throws Exception {
+		return new PreparedProgram(className, DynamicClassLoader.loadMethod(bytecode, className, "apply"));
+	}
+
+	public String getClassName() {
+		return className;
+	}
+
+	/**
+	 * Returns the type of the apply method of the program, i.e. its parameter types and 
+	 * return type.
+	 */
+	public MethodType type() {
+		return handle.type();
+	}
+
+	/**
+	 * Returns a handle of the apply method of the program, of type type().
+	 */
+	public MethodHandle handle() {
+		return handle;
+	}
+
+	/**
+	 * Returns a future that is completed with the compiled program once executions of this 
+	 * program run compiled code, or completed exceptionally if compiling it failed.  It is 
+	 * already completed with this program if the program was compiled when prepared.
+	 */
+	public CompletableFuture<PreparedProgram> compiled() {
+		return compiled;
+	}
+
+	/**
+	 * Executes the program and returns its result, boxed.  params holds the parameters of the 
+	 * program, or may be null if the program has none.  As with Method.invoke, an exception 
+	 * thrown by the program is wrapped in an InvocationTargetException; so is a 
+	 * ClassCastException or NullPointerException from a parameter of the wrong type.
+	 */
+	public Object apply(Object... params) throws InvocationTargetException {
+		Object[] args = params != null ? params : new Object[0];
+		if (args.length != handle.type().parameterCount()) {
+			throw new IllegalArgumentException("wrong number of arguments: " + args.length + " expected: "
+					+ handle.type().parameterCount());
+		}
+		try {
+			return invoker.invokeExact(args);
+		} catch (Throwable e) {
+			throw new InvocationTargetException(e);
+		}
+	}
+}
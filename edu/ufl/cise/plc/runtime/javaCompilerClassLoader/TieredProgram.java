@@ -0,0 +1,127 @@
+package edu.ufl.cise.plc.runtime.javaCompilerClassLoader;
+
+import java.awt.image.BufferedImage;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.ufl.cise.plc.CompilerComponentFactory;
+import edu.ufl.cise.plc.ast.NameDef;
+import edu.ufl.cise.plc.ast.Program;
+import edu.ufl.cise.plc.ast.Types.Type;
+import edu.ufl.cise.plc.runtime.ColorTuple;
+import edu.ufl.cise.plc.runtime.ColorTupleFloat;
+
+/**
+ * A program that is executed by the interpreter until it has been executed compileAfterCalls 
+ * times or has been interpreted for compileAfterNanos in total, and is then compiled in a 
+ * background thread.  Executions that start after the compiled program is loaded run it.
+ * 
+ * The handle of the prepared program invokes a MutableCallSite, whose target is changed from 
+ * the interpreter to the compiled apply method, so callers keep the same handle.  If the 
+ * program cannot be compiled, it stays interpreted.
+ */
+final class TieredProgram {
+
+	private static final MethodHandle INTERPRET;
+
+	static {
+		try {
+			INTERPRET = MethodHandles.lookup().findVirtual(TieredProgram.class, "interpret",
+					MethodType.methodType(Object.class, Object[].class));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final Program program;
+	private final String className;
+	private final CompilerComponentFactory.Settings settings;
+	private final CompiledProgramCache.ProgramCompiler compiler;
+	private final int compileAfterCalls;
+	private final long compileAfterNanos;
+	private final MutableCallSite site;
+	private final CompletableFuture<PreparedProgram> compiled = new CompletableFuture<>();
+	private final AtomicInteger calls = new AtomicInteger();
+	private final AtomicLong nanos = new AtomicLong();
+	private final AtomicBoolean compiling = new AtomicBoolean();
+
+	/*
+	 * program is the type checked AST of the program, and compiler compiles the same program 
+	 * with the same settings, which the interpreter uses too.
+	 */
+	TieredProgram(Program program, String className, CompilerComponentFactory.Settings settings,
+			CompiledProgramCache.ProgramCompiler compiler, int compileAfterCalls, long compileAfterMillis) {
+		this.program = program;
+		this.className = className;
+		this.settings = settings;
+		this.compiler = compiler;
+		this.compileAfterCalls = compileAfterCalls;
+		this.compileAfterNanos = compileAfterMillis >= Long.MAX_VALUE / 1_000_000 ? Long.MAX_VALUE
+				: compileAfterMillis * 1_000_000;
+		MethodType type = type(program);
+		this.site = new MutableCallSite(type);
+		site.setTarget(INTERPRET.bindTo(this).asCollector(Object[].class, type.parameterCount()).asType(type));
+	}
+
+	PreparedProgram prepared() {
+		return new PreparedProgram(className, site.dynamicInvoker(), compiled);
+	}
+
+	// executes the program with the interpreter, then compiles it if it is time to
+	private Object interpret(Object[] params) throws Exception {
+		long start = System.nanoTime();
+		try {
+			return program.visit(CompilerComponentFactory.getInterpreter(settings), params);
+		} finally {
+			int count = calls.incrementAndGet();
+			long total = nanos.addAndGet(System.nanoTime() - start);
+			if ((count >= compileAfterCalls || total >= compileAfterNanos) && compiling.compareAndSet(false, true)) {
+				compileInBackground();
+			}
+		}
+	}
+
+	private void compileInBackground() {
+		Thread thread = new Thread(() -> {
+			try {
+				PreparedProgram prepared = compiler.compile();
+				site.setTarget(prepared.handle().asType(site.type()));
+				MutableCallSite.syncAll(new MutableCallSite[] {site});
+				compiled.complete(prepared);
+			} catch (Throwable e) {
+				compiled.completeExceptionally(e);
+			}
+		}, "compile " + className);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	// the type of the apply method generated for program
+	static MethodType type(Program program) {
+		Class<?>[] parameterTypes = new Class<?>[program.getParams().size()];
+		for (int i = 0; i < parameterTypes.length; i++) {
+			NameDef param = program.getParams().get(i);
+			parameterTypes[i] = javaClass(param.getType());
+		}
+		return MethodType.methodType(javaClass(program.getReturnType()), parameterTypes);
+	}
+
+	static Class<?> javaClass(Type type) {
+		return switch (type) {
+			case INT -> int.class;
+			case FLOAT -> float.class;
+			case BOOLEAN -> boolean.class;
+			case VOID -> void.class;
+			case STRING -> String.class;
+			case COLOR -> ColorTuple.class;
+			case COLORFLOAT -> ColorTupleFloat.class;
+			default -> BufferedImage.class;
+		};
+	}
+}
@@ -0,0 +1,195 @@
+package edu.ufl.cise.plc.test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import edu.ufl.cise.plc.CompilerComponentFactory;
+import edu.ufl.cise.plc.ast.ASTNode;
+import edu.ufl.cise.plc.ast.BinaryExpr;
+import edu.ufl.cise.plc.ast.BooleanLitExpr;
+import edu.ufl.cise.plc.ast.ColorExpr;
+import edu.ufl.cise.plc.ast.ConditionalExpr;
+import edu.ufl.cise.plc.ast.Expr;
+import edu.ufl.cise.plc.ast.FloatLitExpr;
+import edu.ufl.cise.plc.ast.IdentExpr;
+import edu.ufl.cise.plc.ast.IntLitExpr;
+import edu.ufl.cise.plc.ast.Program;
+import edu.ufl.cise.plc.ast.ReturnStatement;
+import edu.ufl.cise.plc.ast.VarDeclaration;
+import edu.ufl.cise.plc.runtime.ColorTuple;
+import edu.ufl.cise.plc.runtime.ImageOps;
+import edu.ufl.cise.plc.runtime.javaCompilerClassLoader.PLCLangExec;
+
+/**
+ * Checks the expressions produced by ASTOptimizer and compares the results of programs
+ * compiled with and without it.
+ */
+public class ASTOptimizerTests {
+	String packageName = "cop4020sp22Package";
+
+	@AfterEach
+	void restoreDefaults() {
+		CompilerComponentFactory.setOptimizeAST(true);
+	}
+
+	List<ASTNode> optimize(String input) throws Exception {
+		ASTNode ast = CompilerComponentFactory.getParser(input).parse();
+		ast.visit(CompilerComponentFactory.getTypeChecker(), null);
+		Program program = (Program) ast.visit(CompilerComponentFactory.getOptimizer(), null);
+		return program.getDecsAndStatements();
+	}
+
+	Expr initializer(List<ASTNode> decsAndStatements, int i) {
+		return ((VarDeclaration) decsAndStatements.get(i)).getExpr();
+	}
+
+	Object exec(boolean optimize, String input, Object... params) throws Exception {
+		CompilerComponentFactory.setOptimizeAST(optimize);
+		return new PLCLangExec(packageName, false).exec(input, params);
+	}
+
+	@Test
+	void foldLiterals() throws Exception {
+		String input = """
+				int f()
+				int a = (3 + 4) * 2 - 1;
+				float b = (2 + 1) + 0.5;
+				boolean c = !(a > 3) | (1.5 < 2);
+				int d = 65536 * 65536;
+				color e = <<10, 20, 30>> + <<1, 2, 3>> * 2;
+				color g = RED + <<0, 0, 7>>;
+				int h = getGreen <<1, 2, 3>>;
+				int i = if (7 > 3) a else 0 fi;
+				^ i;
+				""";
+		List<ASTNode> decs = optimize(input);
+		assertEquals(13, assertInstanceOf(IntLitExpr.class, initializer(decs, 0)).getValue());
+		assertEquals(3.5f, assertInstanceOf(FloatLitExpr.class, initializer(decs, 1)).getValue());
+		assertEquals(true, assertInstanceOf(BooleanLitExpr.class, initializer(decs, 2)).getValue());
+		assertEquals(0, assertInstanceOf(IntLitExpr.class, initializer(decs, 3)).getValue());
+		ColorExpr e = assertInstanceOf(ColorExpr.class, initializer(decs, 4));
+		assertEquals(36, ((IntLitExpr) e.getBlue()).getValue());
+		ColorExpr g = assertInstanceOf(ColorExpr.class, initializer(decs, 5));
+		assertEquals(255, ((IntLitExpr) g.getRed()).getValue());
+		assertEquals(7, ((IntLitExpr) g.getBlue()).getValue());
+		assertEquals(2, assertInstanceOf(IntLitExpr.class, initializer(decs, 6)).getValue());
+		assertInstanceOf(IdentExpr.class, initializer(decs, 7));
+		assertEquals(13, exec(true, input));
+	}
+
+	@Test
+	void keepUnfoldableOperations() throws Exception {
+		String input = """
+				int f(int n)
+				int a = 1 / 0;
+				int b = 0 - 5;
+				float c = n + 0.0;
+				^ a + b;
+				""";
+		List<ASTNode> decs = optimize(input);
+		assertInstanceOf(BinaryExpr.class, initializer(decs, 0));
+		assertInstanceOf(BinaryExpr.class, initializer(decs, 1));
+		assertInstanceOf(BinaryExpr.class, initializer(decs, 2));
+		InvocationTargetException e = assertThrows(InvocationTargetException.class, () -> exec(true, input, 3));
+		assertInstanceOf(ArithmeticException.class, e.getCause());
+	}
+
+	@Test
+	void identities() throws Exception {
+		String input = """
+				image f(image a, int n, float x)
+				int b = (n * 1 + 0) / 1;
+				float c = x / 4.0;
+				image d = a * 1;
+				^ d / 1;
+				""";
+		List<ASTNode> decs = optimize(input);
+		assertInstanceOf(IdentExpr.class, initializer(decs, 0));
+		BinaryExpr c = assertInstanceOf(BinaryExpr.class, initializer(decs, 1));
+		assertEquals("*", c.getOp().getText());
+		assertEquals(0.25f, ((FloatLitExpr) c.getRight()).getValue());
+		assertInstanceOf(IdentExpr.class, initializer(decs, 2));
+		// a returned image is not the image of a variable
+		assertInstanceOf(BinaryExpr.class, ((ReturnStatement) decs.get(3)).getExpr());
+	}
+
+	@Test
+	void imageIdentitiesOnlyOnCopies() throws Exception {
+		String input = """
+				image f(image a)
+				image b = (a * 1) + a;
+				^ a * 1;
+				""";
+		List<ASTNode> decs = optimize(input);
+		BinaryExpr b = assertInstanceOf(BinaryExpr.class, initializer(decs, 0));
+		assertInstanceOf(IdentExpr.class, b.getLeft());
+		assertInstanceOf(BinaryExpr.class, ((ReturnStatement) decs.get(1)).getExpr());
+		BufferedImage a = new BufferedImage(8, 6, BufferedImage.TYPE_INT_RGB);
+		BufferedImage result = (BufferedImage) exec(true, input, a);
+		assertTrue(result != a);
+		assertArrayEquals(ImageOps.getRGBPixels(a), ImageOps.getRGBPixels(result));
+	}
+
+	@Test
+	void imageConditionalNotCopied() throws Exception {
+		String input = """
+				image f(image a, image b)
+				image e = if (true) a else b fi;
+				e[x,y] = BLUE;
+				^ a;
+				""";
+		assertInstanceOf(ConditionalExpr.class, initializer(optimize(input), 0));
+		for (boolean optimize : new boolean[] { false, true }) {
+			BufferedImage a = new BufferedImage(8, 6, BufferedImage.TYPE_INT_RGB);
+			BufferedImage b = new BufferedImage(8, 6, BufferedImage.TYPE_INT_RGB);
+			BufferedImage result = (BufferedImage) exec(optimize, input, a, b);
+			assertEquals(0xff0000ff, result.getRGB(0, 0));
+			assertEquals(0xff000000, b.getRGB(0, 0));
+		}
+	}
+
+	@Test
+	void sameResults() throws Exception {
+		String input = """
+				image f(image a, int n)
+				int k = (3 + 4) * 2 - n * 1;
+				float s = (n + 0.5) / 2.0 * 1;
+				color c = <<k, 0, 0>> + <<1, 2, 3>> * 2;
+				image[40,30] e = (1 + 2) * 5;
+				e[x,y] = <<getRed a[x + 0, y * 1], k * 1, y + 0>> + c;
+				image d = (e * 1) / 2 + a * 1;
+				^ if (k > 10 & true) d else (d + a) * 2 fi;
+				""";
+		Random random = new Random(1010);
+		BufferedImage a = new BufferedImage(40, 30, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < 30; y++) {
+			for (int x = 0; x < 40; x++) {
+				a.setRGB(x, y, random.nextInt());
+			}
+		}
+		for (int n : new int[] { 0, 3, 7 }) {
+			BufferedImage expected = (BufferedImage) exec(false, input, ImageOps.clone(a), n);
+			BufferedImage actual = (BufferedImage) exec(true, input, ImageOps.clone(a), n);
+			assertArrayEquals(ImageOps.getRGBPixels(expected), ImageOps.getRGBPixels(actual));
+		}
+		String colors = """
+				color f()
+				color c = (<<200, 100, 50>> * 2 - BLUE) / <<3, 3, 3>> % <<7, 7, 7>>;
+				^ c;
+				""";
+		assertEquals(exec(false, colors), exec(true, colors));
+		assertInstanceOf(ColorTuple.class, exec(true, colors));
+	}
+
+}
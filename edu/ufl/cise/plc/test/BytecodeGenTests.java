@@ -0,0 +1,316 @@
+package edu.ufl.cise.plc.test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import edu.ufl.cise.plc.CompilerComponentFactory;
+import edu.ufl.cise.plc.runtime.ColorTuple;
+import edu.ufl.cise.plc.runtime.ColorTupleFloat;
+import edu.ufl.cise.plc.runtime.ConsoleIO;
+import edu.ufl.cise.plc.runtime.FileURLIO;
+import edu.ufl.cise.plc.runtime.ImageOps;
+import edu.ufl.cise.plc.runtime.javaCompilerClassLoader.PLCLangExec;
+
+/**
+ * Compares the results of programs compiled by BytecodeGenVisitor with the results of the 
+ * same programs compiled from the Java code of CodeGenVisitor, and for some programs also with 
+ * the results of the Interpreter.
+ */
+public class BytecodeGenTests {
+	String packageName = "cop4020sp22Package";
+
+	@AfterEach
+	void restoreDefaults() {
+		CompilerComponentFactory.setGenerateBytecode(false);
+		ConsoleIO.setConsole(System.out);
+	}
+
+	Object exec(boolean bytecode, String input, Object... params) throws Exception {
+		CompilerComponentFactory.setGenerateBytecode(bytecode);
+		return new PLCLangExec(packageName, false).exec(input, params);
+	}
+
+	// images passed as parameters may be changed by the program, so each run gets copies
+	void assertSameResult(String input, Object... params) throws Exception {
+		Object expected = exec(false, input, copies(params));
+		Object actual = exec(true, input, copies(params));
+		if (expected instanceof BufferedImage image) {
+			assertArrayEquals(ImageOps.getRGBPixels(image), ImageOps.getRGBPixels((BufferedImage) actual));
+		} else {
+			assertEquals(expected, actual);
+		}
+	}
+
+	Object[] copies(Object[] params) {
+		Object[] copies = params.clone();
+		for (int i = 0; i < copies.length; i++) {
+			if (copies[i] instanceof BufferedImage image) {
+				copies[i] = ImageOps.clone(image);
+			}
+		}
+		return copies;
+	}
+
+	BufferedImage randomImage(int width, int height, Random random) {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				image.setRGB(x, y, random.nextInt());
+			}
+		}
+		return image;
+	}
+
+	@Test
+	void scalars() throws Exception {
+		String input = """
+				float f(int n, float g, boolean b, string s)
+				int k = n * 7 / 3 - n % 4 + -n;
+				float h = k / 2.0 + g * n - -g;
+				boolean c = (k < n | h >= g) & !b;
+				boolean d = s == "abc" & k != 3 & h <= 1.5 | k > n;
+				int i = if (c) k else n * 2 fi;
+				float j = if (d == c) h else i * 1.0 fi;
+				k = j;
+				^ k + j + (if (s != "abc") 0.5 else 1.5 fi);
+				""";
+		assertSameResult(input, 17, 2.5f, false, "abc");
+		assertSameResult(input, -4, -1.25f, true, "abd");
+		assertSameResult(input, 3, Float.NaN, false, "");
+	}
+
+	@Test
+	void colors() throws Exception {
+		String input = """
+				int f(color c, int n)
+				color d = <<n, 2, 3>> * 2 + c - RED;
+				color e = (c + d) / 3 + c * n;
+				color h = d * 2 - c % <<7, 5, 3>>;
+				boolean same = d == e | h != c;
+				int r = getRed (d + e) + getGreen h * getBlue c;
+				^ if (same) r else r * 2 fi;
+				""";
+		assertSameResult(input, new edu.ufl.cise.plc.runtime.ColorTuple(40, 200, 7), 3);
+		assertSameResult(input, new edu.ufl.cise.plc.runtime.ColorTuple(0, 0, 0), 0);
+	}
+
+	@Test
+	void images() throws Exception {
+		String input = """
+				image f(image a, image b, int k)
+				image c = a + b * k;
+				image[30, 20] d = BLUE;
+				d[x,y] = <<x * 8, y * 12, getBlue a[x,y] / 2>>;
+				c[x,y] = if (x > y) c[x,y] + d[x % 30, y % 20] else a[y % 40, x % 30] * 2 fi;
+				a[x,y] = a[x,y] - c[x,y] + <<x * 0.5, 1.5, 2.5>>;
+				b[i,j] = b[(i + 1) % getWidth b, j] / 2;
+				image e = getRed c + getGreen a;
+				image[20, 10] g = e;
+				e[x,y] = g[x % 20, y % 10];
+				^ e - b + a * getHeight d;
+				""";
+		Random random = new Random(1402);
+		BufferedImage a = randomImage(40, 30, random);
+		BufferedImage b = randomImage(40, 30, random);
+		assertSameResult(input, a, b, 3);
+	}
+
+	@Test
+	void console() throws Exception {
+		String input = """
+				void f(int n, string s)
+				write n * 2 -> console;
+				write n * 0.25 -> console;
+				write n > 3 -> console;
+				write s -> console;
+				write "line\\n" -> console;
+				write <<n, 2, 3>> -> console;
+				""";
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		ConsoleIO.setConsole(new PrintStream(expected));
+		exec(false, input, 5, "text");
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		ConsoleIO.setConsole(new PrintStream(actual));
+		exec(true, input, 5, "text");
+		assertEquals(expected.toString(), actual.toString());
+	}
+
+	enum Backend { SOURCE, BYTECODE, INTERPRETER }
+
+	Object exec(Backend backend, String input, Object... params) throws Exception {
+		CompilerComponentFactory.setGenerateBytecode(backend == Backend.BYTECODE);
+		CompilerComponentFactory.setInterpretFirst(backend == Backend.INTERPRETER);
+		CompilerComponentFactory.setCompileAfter(Integer.MAX_VALUE, Long.MAX_VALUE);
+		PLCLangExec.getProgramCache().clear();
+		try {
+			return new PLCLangExec(packageName, false).exec(input, params);
+		} finally {
+			CompilerComponentFactory.setInterpretFirst(false);
+			CompilerComponentFactory.setCompileAfter(2, 50);
+			PLCLangExec.getProgramCache().clear();
+		}
+	}
+
+	/*
+	 * Runs the program with the source and bytecode backends and the interpreter, and checks 
+	 * that they return the same value and leave the parameters the same.  Parameters that are 
+	 * the same image stay the same image in the copies each run gets.
+	 */
+	void assertSameResultInEveryBackend(String input, Object... params) throws Exception {
+		Object[] expectedParams = aliasedCopies(params);
+		Object expected = exec(Backend.SOURCE, input, expectedParams);
+		for (Backend backend : List.of(Backend.BYTECODE, Backend.INTERPRETER)) {
+			Object[] actualParams = aliasedCopies(params);
+			Object actual = exec(backend, input, actualParams);
+			assertSameValue(expected, actual, backend);
+			for (int i = 0; i < params.length; i++) {
+				assertSameValue(expectedParams[i], actualParams[i], backend);
+			}
+		}
+	}
+
+	void assertSameValue(Object expected, Object actual, Backend backend) {
+		if (expected instanceof BufferedImage image) {
+			assertTrue(Arrays.equals(ImageOps.getRGBPixels(image), ImageOps.getRGBPixels((BufferedImage) actual)),
+					backend.toString());
+		} else {
+			assertEquals(expected, actual, backend.toString());
+		}
+	}
+
+	Object[] aliasedCopies(Object[] params) {
+		Map<Object, Object> copied = new IdentityHashMap<>();
+		Object[] copies = params.clone();
+		for (int i = 0; i < copies.length; i++) {
+			if (copies[i] instanceof BufferedImage image) {
+				copies[i] = copied.computeIfAbsent(image, key -> ImageOps.clone(image));
+			}
+		}
+		return copies;
+	}
+
+	@Test
+	void aliasedParameters() throws Exception {
+		String input = """
+				image f(image a, image b)
+				a[x,y] = b[y % getHeight b, x % getWidth b];
+				^ a;
+				""";
+		Random random = new Random(2203);
+		BufferedImage a = randomImage(16, 16, random);
+		BufferedImage b = randomImage(16, 16, random);
+		assertSameResultInEveryBackend(input, a, b);
+		assertSameResultInEveryBackend(input, a, a);
+	}
+
+	@Test
+	void aliasedImageConditional() throws Exception {
+		String input = """
+				image f(image a, image b)
+				image e = if (getWidth a > 0) a else b fi;
+				e[x,y] = BLUE;
+				e[x,y] = e[x,y] + a[(x + 1) % getWidth a, y];
+				^ a;
+				""";
+		Random random = new Random(2204);
+		BufferedImage a = randomImage(20, 10, random);
+		assertSameResultInEveryBackend(input, a, randomImage(20, 10, random));
+		assertSameResultInEveryBackend(input, a, a);
+	}
+
+	// the value of the whole expression is resized
+	@Test
+	void resizedImageExpression() throws Exception {
+		String input = """
+				image f(image a, image b)
+				image[50, 40] c = a + b;
+				image[50, 40] d = if (getWidth a > 10) a * 2 else b fi;
+				^ c - d;
+				""";
+		Random random = new Random(2205);
+		BufferedImage a = randomImage(20, 10, random);
+		assertSameResultInEveryBackend(input, a, randomImage(20, 10, random));
+		assertSameResultInEveryBackend(input, a, a);
+	}
+
+	// the value of the whole expression is written
+	@Test
+	void writtenExpression() throws Exception {
+		String input = """
+				void f(color b, string file)
+				write (b / 1.0) -> file;
+				write getRed b + 1 -> file;
+				write b * 2 -> file;
+				""";
+		List<Object> expected = null;
+		for (Backend backend : Backend.values()) {
+			File file = File.createTempFile("written", null);
+			file.deleteOnExit();
+			exec(backend, input, new ColorTuple(40, 200, 7), file.getPath());
+			FileURLIO.closeFiles();
+			List<Object> values = new ArrayList<>();
+			for (int i = 0; i < 3; i++) {
+				values.add(FileURLIO.readValueFromFile(file.getPath()));
+			}
+			FileURLIO.closeFiles();
+			if (expected == null) {
+				expected = values;
+				assertEquals(new ColorTupleFloat(40, 200, 7), values.get(0));
+			} else {
+				assertEquals(expected, values, backend.toString());
+			}
+		}
+	}
+
+	// the median time to compile and run a program not compiled before, in nanoseconds, with 
+	// BytecodeGenVisitor or with javac and CodeGenVisitor
+	long medianTimeToFirstResult(boolean bytecode, int programs) throws Exception {
+		CompilerComponentFactory.setGenerateBytecode(bytecode);
+		long[] times = new long[programs];
+		for (int i = 0; i < programs; i++) {
+			String input = """
+					int f%d(int a)
+					int b = a * %d + 3;
+					float c = b / 2.0;
+					^ (if (c > 10.0) b else a - 1 fi);
+					""".formatted(i, System.nanoTime() & Integer.MAX_VALUE);
+			long start = System.nanoTime();
+			new PLCLangExec(packageName, false).exec(input, new Object[] { i });
+			times[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(times);
+		return times[programs / 2];
+	}
+
+	/*
+	 * A program compiled by BytecodeGenVisitor gives its first result several times sooner than 
+	 * the same program compiled with javac.  Absolute times depend on the machine, so only the 
+	 * ratio is checked.
+	 */
+	@Test
+	void timeToFirstResult() throws Exception {
+		PLCLangExec.setProgramCacheSize(0);
+		try {
+			long javac = medianTimeToFirstResult(false, 9);
+			long bytecode = medianTimeToFirstResult(true, 9);
+			assertTrue(bytecode * 5 < javac, "median " + bytecode + " ns, with javac " + javac + " ns");
+		} finally {
+			PLCLangExec.setProgramCacheSize(64);
+		}
+	}
+}
@@ -0,0 +1,615 @@
+package edu.ufl.cise.plc.test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import edu.ufl.cise.plc.CompilerComponentFactory;
+import edu.ufl.cise.plc.ast.ASTNode;
+import edu.ufl.cise.plc.runtime.ColorTuple;
+import edu.ufl.cise.plc.runtime.ColorTupleFloat;
+
+import edu.ufl.cise.plc.runtime.ImageOps;
+import edu.ufl.cise.plc.runtime.ImageOps.OP;
+import edu.ufl.cise.plc.runtime.PLCRuntimeException;
+import edu.ufl.cise.plc.runtime.RowBandExecutor;
+import edu.ufl.cise.plc.runtime.javaCompilerClassLoader.PLCLangExec;
+
+/**
+ * Runs programs whose generated code computes images with optimized loops and compares the
+ * results with the same computation done by the ImageOps kernels one operation at a time.
+ */
+public class CodeGenImageTests {
+	String packageName = "cop4020sp22Package";
+
+	@AfterEach
+	void restoreDefaults() {
+		CompilerComponentFactory.setScheduleImageStatements(false);
+		CompilerComponentFactory.setParallelPixelLoops(true);
+		CompilerComponentFactory.setReuseDeadImages(true);
+		CompilerComponentFactory.setPixelEdgePolicy(ImageOps.EdgePolicy.ERROR);
+		CompilerComponentFactory.setFusePixelLoops(true);
+		CompilerComponentFactory.setGenerateBytecode(false);
+	}
+
+	Object exec(String input, Object... params) throws Exception {
+		return new PLCLangExec(packageName, false).exec(input, params);
+	}
+
+	BufferedImage randomImage(int width, int height, int type, Random random) {
+		BufferedImage image = new BufferedImage(width, height, type);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				image.setRGB(x, y, random.nextInt());
+			}
+		}
+		return image;
+	}
+
+	void assertSameImage(BufferedImage expected, Object actual) {
+		assertArrayEquals(ImageOps.getRGBPixels(expected), ImageOps.getRGBPixels((BufferedImage) actual));
+	}
+
+	@Test
+	void fusedImageExpression() throws Exception {
+		String input = """
+				image f(image a, image b, image c)
+				image d = (a + b) * 2 - getRed c;
+				d = getGreen (d + a) / 3 + d;
+				^ d - a % 7;
+				""";
+		Random random = new Random(5005);
+		for (int type : new int[] { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR }) {
+			BufferedImage a = randomImage(67, 45, type, random);
+			BufferedImage b = randomImage(67, 45, type, random);
+			BufferedImage c = randomImage(67, 45, type, random);
+			BufferedImage d = ImageOps.binaryImageImageOp(OP.MINUS,
+					ImageOps.binaryImageScalarOp(OP.TIMES, ImageOps.binaryImageImageOp(OP.PLUS, a, b), 2),
+					ImageOps.extractRed(c));
+			d = ImageOps.binaryImageImageOp(OP.PLUS,
+					ImageOps.binaryImageScalarOp(OP.DIV, ImageOps.extractGreen(ImageOps.binaryImageImageOp(OP.PLUS, d, a)), 3),
+					d);
+			BufferedImage expected = ImageOps.binaryImageImageOp(OP.MINUS, d, ImageOps.binaryImageScalarOp(OP.MOD, a, 7));
+			assertSameImage(expected, exec(input, a, b, c));
+		}
+	}
+
+	@Test
+	void fusedImageExpressionUnequalSizes() throws Exception {
+		String input = """
+				image f(image a, image b)
+				^ (a + b) * 2;
+				""";
+		Random random = new Random(5006);
+		BufferedImage a = randomImage(20, 10, BufferedImage.TYPE_INT_RGB, random);
+		BufferedImage b = randomImage(10, 20, BufferedImage.TYPE_INT_RGB, random);
+		Exception e = assertThrows(InvocationTargetException.class, () -> exec(input, a, b));
+		assertInstanceOf(PLCRuntimeException.class, e.getCause());
+	}
+
+	@Test
+	void scheduledImageStatements() throws Exception {
+		String input = """
+				image f(image a, image b, int k)
+				image c = a * k + b;
+				image d = getRed b;
+				image e = (c - d) / 2;
+				b[x,y] = <<x, y, k>>;
+				c = getBlue (e + b);
+				^ c + d;
+				""";
+		Random random = new Random(5007);
+		BufferedImage a = randomImage(90, 70, BufferedImage.TYPE_INT_RGB, random);
+		BufferedImage b = randomImage(90, 70, BufferedImage.TYPE_INT_RGB, random);
+		BufferedImage expected = (BufferedImage) exec(input, ImageOps.clone(a), ImageOps.clone(b), 3);
+		CompilerComponentFactory.setScheduleImageStatements(true);
+		assertSameImage(expected, exec(input, ImageOps.clone(a), ImageOps.clone(b), 3));
+	}
+
+	@Test
+	void pixelLoops() throws Exception {
+		String input = """
+				image f(image a, image b, int k)
+				a[x,y] = <<x - y, k, y>>;
+				b[x,y] = a[x,y] + b[x,y];
+				image[40,40] c = 300;
+				c[x,y] = b[y,x];
+				c[x,y] = c[y,x] - a[x,y];
+				^ c;
+				""";
+		Random random = new Random(5008);
+		for (int type : new int[] { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR }) {
+			BufferedImage a = randomImage(40, 40, type, random);
+			BufferedImage b = randomImage(40, 40, type, random);
+			BufferedImage expectedA = ImageOps.clone(a);
+			BufferedImage expectedB = ImageOps.clone(b);
+			BufferedImage expected = new BufferedImage(40, 40, BufferedImage.TYPE_INT_RGB);
+			for (int x = 0; x < 40; x++) {
+				for (int y = 0; y < 40; y++) {
+					expectedA.setRGB(x, y, new ColorTuple(x - y, 7, y).pack());
+					int sum = ImageOps.binaryTupleOp(OP.PLUS, ColorTuple.unpack(expectedA.getRGB(x, y)),
+							ColorTuple.unpack(expectedB.getRGB(x, y))).pack();
+					expectedB.setRGB(x, y, sum);
+				}
+			}
+			for (int x = 0; x < 40; x++) {
+				for (int y = 0; y < 40; y++) {
+					expected.setRGB(x, y, expectedB.getRGB(y, x));
+				}
+			}
+			for (int x = 0; x < 40; x++) {
+				for (int y = 0; y < 40; y++) {
+					int difference = ImageOps.binaryTupleOp(OP.MINUS, ColorTuple.unpack(expected.getRGB(y, x)),
+							ColorTuple.unpack(expectedA.getRGB(x, y))).pack();
+					expected.setRGB(x, y, difference);
+				}
+			}
+			assertSameImage(expected, exec(input, a, b, 7));
+		}
+	}
+
+	@Test
+	void constantFill() throws Exception {
+		String input = """
+				image f(int w)
+				image[w,20] a = <<300, -5, 17>>;
+				a[x,y] = <<200, 100, 50>> * 2;
+				^ a;
+				""";
+		BufferedImage expected = new BufferedImage(30, 20, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < 20; y++) {
+			for (int x = 0; x < 30; x++) {
+				expected.setRGB(x, y, new ColorTuple(255, 200, 100).pack());
+			}
+		}
+		assertSameImage(expected, exec(input, 30));
+	}
+
+	@Test
+	void parallelPixelLoops() throws Exception {
+		String input = """
+				image f(image a, image b, int k)
+				a[x,y] = <<x * y, k, x + y>>;
+				b[x,y] = a[x,y] * b[x,y];
+				b[x,y] = b[y,x];
+				^ b;
+				""";
+		Random random = new Random(5009);
+		BufferedImage a = randomImage(64, 64, BufferedImage.TYPE_INT_RGB, random);
+		BufferedImage b = randomImage(64, 64, BufferedImage.TYPE_INT_RGB, random);
+		CompilerComponentFactory.setParallelPixelLoops(false);
+		BufferedImage expected = (BufferedImage) exec(input, ImageOps.clone(a), ImageOps.clone(b), 5);
+		CompilerComponentFactory.setParallelPixelLoops(true);
+		ForkJoinPool savedPool = RowBandExecutor.getPool();
+		int savedThreshold = RowBandExecutor.getSerialThreshold();
+		int savedBandRows = RowBandExecutor.getBandRows();
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			RowBandExecutor.setPool(pool);
+			RowBandExecutor.setSerialThreshold(0);
+			RowBandExecutor.setBandRows(3);
+			assertSameImage(expected, exec(input, ImageOps.clone(a), ImageOps.clone(b), 5));
+		} finally {
+			RowBandExecutor.setPool(savedPool);
+			RowBandExecutor.setSerialThreshold(savedThreshold);
+			RowBandExecutor.setBandRows(savedBandRows);
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	void calibrateKeepsSettings() {
+		int savedThreshold = RowBandExecutor.getSerialThreshold();
+		int savedBandRows = RowBandExecutor.getBandRows();
+		int rows = RowBandExecutor.calibrate(64, 48);
+		assertTrue(rows >= 1 && rows <= 48 && Integer.bitCount(rows) == 1);
+		assertEquals(savedThreshold, RowBandExecutor.getSerialThreshold());
+		assertEquals(savedBandRows, RowBandExecutor.getBandRows());
+	}
+
+	// a[x,y] = b[x + 1, y - 1] + <<1, 2, 3>>, wrapping around, for each column x and then row y
+	BufferedImage shifted(BufferedImage a, BufferedImage b) {
+		int width = a.getWidth();
+		int height = a.getHeight();
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				ColorTuple color = ColorTuple.unpack(b.getRGB((x + 1) % width, (y + height - 1) % height));
+				a.setRGB(x, y, ImageOps.binaryTupleOp(OP.PLUS, color, new ColorTuple(1, 2, 3)).pack());
+			}
+		}
+		return a;
+	}
+
+	@Test
+	void aliasedImageParameters() throws Exception {
+		String input = """
+				image f(image a, image b)
+				a[x,y] = b[(x + 1) % getWidth b, (y + getHeight b - 1) % getHeight b] + <<1, 2, 3>>;
+				^ a;
+				""";
+		BufferedImage a = randomImage(20, 15, BufferedImage.TYPE_INT_RGB, new Random(5025));
+		BufferedImage b = randomImage(20, 15, BufferedImage.TYPE_INT_RGB, new Random(5026));
+		assertSameImage(shifted(ImageOps.clone(a), b), exec(input, ImageOps.clone(a), b));
+		// with the same image, the pixels already assigned are read
+		BufferedImage expected = ImageOps.clone(a);
+		shifted(expected, expected);
+		BufferedImage image = ImageOps.clone(a);
+		assertSameImage(expected, exec(input, image, image));
+	}
+
+	@Test
+	void wholeImageAssignmentWithVariablesXY() throws Exception {
+		String input = """
+				image f(image a, int x)
+				color y = <<x, 2, 3>>;
+				a = y;
+				^ a;
+				""";
+		BufferedImage expected = new BufferedImage(6, 4, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < 4; y++) {
+			for (int x = 0; x < 6; x++) {
+				expected.setRGB(x, y, new ColorTuple(50, 2, 3).pack());
+			}
+		}
+		assertSameImage(expected, exec(input, new BufferedImage(6, 4, BufferedImage.TYPE_INT_RGB), 50));
+	}
+
+	@Test
+	void loopInvariants() throws Exception {
+		String input = """
+				image f(image b, int k)
+				image[40,30] a = RED;
+				a[x,y] = <<x - y, k * 2 + 1, getRed b[0,0]>> + BLUE;
+				a[x,y] = b[k,k] + a[x,y];
+				^ a;
+				""";
+		Random random = new Random(5010);
+		BufferedImage b = randomImage(40, 30, BufferedImage.TYPE_INT_RGB, random);
+		int k = 4;
+		BufferedImage expected = new BufferedImage(40, 30, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < 30; y++) {
+			for (int x = 0; x < 40; x++) {
+				ColorTuple value = new ColorTuple(x - y, k * 2 + 1, ColorTuple.getRed(b.getRGB(0, 0)));
+				int color = ImageOps.binaryTupleOp(OP.PLUS, value, ColorTuple.toColorTuple(Color.BLUE)).pack();
+				expected.setRGB(x, y, ImageOps.binaryPackedOp(OP.PLUS, b.getRGB(k, k), color));
+			}
+		}
+		assertSameImage(expected, exec(input, b, k));
+	}
+
+	@Test
+	void colorComponents() throws Exception {
+		String input = """
+				image f(image a, image b, int k)
+				color c = <<k, 2, 3>> * 2 + <<1, 1, 1>>;
+				color d = c + c * k;
+				a[x,y] = <<getRed a[x,y] * k, 3, 4>> * 2 + b[x,y] / (k + 1) + c;
+				a[x,y] = (a[x,y] + d) * 2 - (a[x,y] + d) / 3;
+				b[x,y] = if (x > y) a[x,y] else b[x,y] + c fi;
+				b[x,y] = <<x * 0.5, y * 1.5, 2.5>> + b[x,y];
+				int r = getRed (c + d);
+				boolean same = c == d;
+				^ if (same | r < 0) b else a + b fi;
+				""";
+		Random random = new Random(5012);
+		BufferedImage a = randomImage(41, 29, BufferedImage.TYPE_INT_RGB, random);
+		BufferedImage b = randomImage(41, 29, BufferedImage.TYPE_INT_RGB, random);
+		int k = 3;
+		ColorTuple c = new ColorTuple(k * 2 + 1, 5, 7);
+		ColorTuple d = new ColorTuple(c.red + c.red * k, c.green + c.green * k, c.blue + c.blue * k);
+		BufferedImage expectedA = ImageOps.clone(a);
+		BufferedImage expectedB = ImageOps.clone(b);
+		for (int y = 0; y < 29; y++) {
+			for (int x = 0; x < 41; x++) {
+				ColorTuple value = ImageOps.binaryTupleOp(OP.TIMES,
+						new ColorTuple(ColorTuple.getRed(a.getRGB(x, y)) * k, 3, 4), new ColorTuple(2));
+				value = ImageOps.binaryTupleOp(OP.PLUS, value,
+						ImageOps.binaryTupleOp(OP.DIV, ColorTuple.unpack(b.getRGB(x, y)), new ColorTuple(k + 1)));
+				value = ImageOps.binaryTupleOp(OP.PLUS, value, c);
+				ColorTuple sum = ImageOps.binaryTupleOp(OP.PLUS, ColorTuple.unpack(value.pack()), d);
+				value = ImageOps.binaryTupleOp(OP.MINUS, ImageOps.binaryTupleOp(OP.TIMES, sum, new ColorTuple(2)),
+						ImageOps.binaryTupleOp(OP.DIV, sum, new ColorTuple(3)));
+				expectedA.setRGB(x, y, value.pack());
+				value = x > y ? ColorTuple.unpack(expectedA.getRGB(x, y))
+						: ImageOps.binaryTupleOp(OP.PLUS, ColorTuple.unpack(b.getRGB(x, y)), c);
+				ColorTupleFloat floats = new ColorTupleFloat(x * 0.5f, y * 1.5f, 2.5f);
+				expectedB.setRGB(x, y, ImageOps.binaryTupleOp(OP.PLUS, floats, new ColorTupleFloat(value)).pack());
+			}
+		}
+		assertSameImage(ImageOps.binaryImageImageOp(OP.PLUS, expectedA, expectedB), exec(input, a, b, k));
+	}
+
+	@Test
+	void reuseDeadImages() throws Exception {
+		String input = """
+				image f(image a, image b, int n)
+				image c = a + b;
+				image d = c * n;
+				image e = d / 3 + getRed d;
+				e = e - a;
+				a = a * 2;
+				image g = getGreen e;
+				g[x,y] = g[x,y] + <<n, n, n>>;
+				^ g + a;
+				""";
+		Random random = new Random(5011);
+		for (int type : new int[] { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR }) {
+			BufferedImage a = randomImage(53, 37, type, random);
+			BufferedImage b = randomImage(53, 37, type, random);
+			int[] aPixels = ImageOps.getRGBPixels(a);
+			int[] bPixels = ImageOps.getRGBPixels(b);
+			int n = 3;
+			BufferedImage d = ImageOps.binaryImageScalarOp(OP.TIMES, ImageOps.binaryImageImageOp(OP.PLUS, a, b), n);
+			BufferedImage e = ImageOps.binaryImageImageOp(OP.PLUS, ImageOps.binaryImageScalarOp(OP.DIV, d, 3),
+					ImageOps.extractRed(d));
+			e = ImageOps.binaryImageImageOp(OP.MINUS, e, a);
+			BufferedImage g = ImageOps.extractGreen(e);
+			for (int y = 0; y < 37; y++) {
+				for (int x = 0; x < 53; x++) {
+					g.setRGB(x, y, ImageOps.binaryPackedOp(OP.PLUS, g.getRGB(x, y), n, n, n));
+				}
+			}
+			BufferedImage expected = ImageOps.binaryImageImageOp(OP.PLUS, g, ImageOps.binaryImageScalarOp(OP.TIMES, a, 2));
+			for (boolean reuse : new boolean[] { true, false }) {
+				CompilerComponentFactory.setReuseDeadImages(reuse);
+				assertSameImage(expected, exec(input, a, b, n));
+				// parameters are never overwritten
+				assertArrayEquals(aPixels, ImageOps.getRGBPixels(a));
+				assertArrayEquals(bPixels, ImageOps.getRGBPixels(b));
+			}
+		}
+	}
+
+	@Test
+	void conditionalImagesAreNotReused() throws Exception {
+		String input = """
+				image f(image a, image b, int n)
+				image c = a + b;
+				image d = if (n > 0) c else a fi;
+				image e = d * 2;
+				^ e - c;
+				""";
+		Random random = new Random(5013);
+		BufferedImage a = randomImage(31, 17, BufferedImage.TYPE_INT_RGB, random);
+		BufferedImage b = randomImage(31, 17, BufferedImage.TYPE_INT_RGB, random);
+		int[] aPixels = ImageOps.getRGBPixels(a);
+		BufferedImage c = ImageOps.binaryImageImageOp(OP.PLUS, a, b);
+		for (int n : new int[] { 1, 0 }) {
+			BufferedImage e = ImageOps.binaryImageScalarOp(OP.TIMES, n > 0 ? c : a, 2);
+			// d is the image of c or of the parameter a, so e is not computed in place
+			assertSameImage(ImageOps.binaryImageImageOp(OP.MINUS, e, c), exec(input, a, b, n));
+			assertArrayEquals(aPixels, ImageOps.getRGBPixels(a));
+		}
+	}
+
+	@Test
+	void largeProgramsSplit() throws Exception {
+		int n = 600;
+		StringBuilder input = new StringBuilder("image f(image a, int k)\n");
+		input.append("image b = a * 2;\n");
+		input.append("string s = \"k\";\n");
+		input.append("int k0 = k;\n");
+		for (int i = 1; i <= n; i++) {
+			input.append("int k" + i + " = (k" + (i - 1) + " * 7 + " + i + ") % 1000;\n");
+		}
+		input.append("int m = if (s == \"k\") k" + n + " % 256 else 0 fi;\n");
+		input.append("b[x,y] = <<m, x, y>> + b[x,y];\n");
+		input.append("^ b;\n");
+
+		ASTNode ast = CompilerComponentFactory.getParser(input.toString()).parse();
+		ast.visit(CompilerComponentFactory.getTypeChecker(), null);
+		String javaCode = (String) ast.visit(CompilerComponentFactory.getCodeGenerator(packageName), null);
+		assertTrue(javaCode.contains("$$segment1($$frame)"));
+
+		Random random = new Random(5014);
+		BufferedImage a = randomImage(40, 30, BufferedImage.TYPE_INT_RGB, random);
+		int k = 11;
+		for (int i = 1; i <= n; i++) {
+			k = (k * 7 + i) % 1000;
+		}
+		BufferedImage expected = ImageOps.binaryImageScalarOp(OP.TIMES, a, 2);
+		for (int y = 0; y < 30; y++) {
+			for (int x = 0; x < 40; x++) {
+				expected.setRGB(x, y, ImageOps.binaryTupleOp(OP.PLUS, new ColorTuple(k % 256, x, y),
+						ColorTuple.unpack(expected.getRGB(x, y))).pack());
+			}
+		}
+		assertSameImage(expected, exec(input.toString(), a, 11));
+	}
+
+	// the pixel of image at x and y, or the pixel given by policy if it is outside the image
+	int pixel(BufferedImage image, int x, int y, ImageOps.EdgePolicy policy) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		boolean inside = 0 <= x && x < width && 0 <= y && y < height;
+		return switch (policy) {
+			case CLAMP -> image.getRGB(Math.min(Math.max(x, 0), width - 1), Math.min(Math.max(y, 0), height - 1));
+			case WRAP -> image.getRGB(Math.floorMod(x, width), Math.floorMod(y, height));
+			case CONSTANT -> inside ? image.getRGB(x, y) : ImageOps.EDGE_COLOR;
+			default -> image.getRGB(x, y);
+		};
+	}
+
+	@Test
+	void pixelEdgePolicies() throws Exception {
+		String input = """
+				image f(image a, int k)
+				image[24,16] b = 0;
+				b[x,y] = a[x - k, y] + a[x + k, y + 1] - a[x, y - k];
+				b[x,y] = b[y + 1, x - 1] * 2;
+				^ b;
+				""";
+		Random random = new Random(5015);
+		int k = 3;
+		for (ImageOps.EdgePolicy policy : new ImageOps.EdgePolicy[] { ImageOps.EdgePolicy.CLAMP,
+				ImageOps.EdgePolicy.WRAP, ImageOps.EdgePolicy.CONSTANT }) {
+			CompilerComponentFactory.setPixelEdgePolicy(policy);
+			for (int type : new int[] { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR }) {
+				BufferedImage a = randomImage(24, 16, type, random);
+				BufferedImage expected = new BufferedImage(24, 16, BufferedImage.TYPE_INT_RGB);
+				for (int y = 0; y < 16; y++) {
+					for (int x = 0; x < 24; x++) {
+						ColorTuple sum = ImageOps.binaryTupleOp(OP.PLUS, ColorTuple.unpack(pixel(a, x - k, y, policy)),
+								ColorTuple.unpack(pixel(a, x + k, y + 1, policy)));
+						expected.setRGB(x, y, ImageOps.binaryTupleOp(OP.MINUS, sum,
+								ColorTuple.unpack(pixel(a, x, y - k, policy))).pack());
+					}
+				}
+				for (int x = 0; x < 24; x++) {
+					for (int y = 0; y < 16; y++) {
+						ColorTuple color = ColorTuple.unpack(pixel(expected, y + 1, x - 1, policy));
+						expected.setRGB(x, y, ImageOps.binaryTupleOp(OP.TIMES, color, new ColorTuple(2)).pack());
+					}
+				}
+				assertSameImage(expected, exec(input, a, k));
+				CompilerComponentFactory.setGenerateBytecode(true);
+				assertSameImage(expected, exec(input, a, k));
+				CompilerComponentFactory.setGenerateBytecode(false);
+			}
+		}
+	}
+
+	// the result of the program computed by Interpreter, one pixel at a time
+	Object interpret(String input, Object... params) throws Exception {
+		ASTNode ast = CompilerComponentFactory.getParser(input).parse();
+		ast.visit(CompilerComponentFactory.getTypeChecker(), null);
+		return ast.visit(CompilerComponentFactory.getInterpreter(), params);
+	}
+
+	@Test
+	void stencilLoops() throws Exception {
+		String input = """
+				image f(image a, image c, int w, int h)
+				image[w,h] b = 0;
+				b[x,y] = (a[x - 1, y] + a[x + 1, y] + a[x, y - 1] + a[x, 2 + y] + c[x, y]) / 4 + a[x * 2, y];
+				b[x,y] = b[x,y] - a[x + 3, y - 2] * 2;
+				^ b;
+				""";
+		Random random = new Random(5017);
+		int[][] sizes = { { 24, 16, 24, 16 }, { 9, 7, 12, 5 }, { 2, 3, 2, 3 }, { 1, 1, 5, 5 }, { 30, 4, 3, 40 } };
+		for (ImageOps.EdgePolicy policy : new ImageOps.EdgePolicy[] { ImageOps.EdgePolicy.CLAMP,
+				ImageOps.EdgePolicy.WRAP, ImageOps.EdgePolicy.CONSTANT }) {
+			CompilerComponentFactory.setPixelEdgePolicy(policy);
+			for (boolean parallel : new boolean[] { true, false }) {
+				CompilerComponentFactory.setParallelPixelLoops(parallel);
+				for (int[] size : sizes) {
+					BufferedImage a = randomImage(size[2], size[3], BufferedImage.TYPE_INT_RGB, random);
+					BufferedImage c = randomImage(size[2] + 1, size[3], BufferedImage.TYPE_3BYTE_BGR, random);
+					assertSameImage((BufferedImage) interpret(input, a, c, size[0], size[1]),
+							exec(input, a, c, size[0], size[1]));
+				}
+			}
+		}
+	}
+
+	@Test
+	void stencilInteriorUnchecked() throws Exception {
+		String input = """
+				image f(image a)
+				image[10,10] b = 0;
+				b[x,y] = a[x - 1, y + 1] + a[x + 1, y];
+				^ b;
+				""";
+		ASTNode ast = CompilerComponentFactory.getParser(input).parse();
+		ast.visit(CompilerComponentFactory.getTypeChecker(), null);
+		String javaCode = (String) ast.visit(CompilerComponentFactory.getCodeGenerator(packageName), null);
+		assertTrue(javaCode.contains("ImageOps.getPixelUnchecked($$pixels0, $$base0 + x - 1 + $$width0)"));
+		assertTrue(javaCode.contains("ImageOps.getPixelUnchecked($$pixels0, $$base0 + x + 1)"));
+
+		// the border still reads pixels outside the image with the edge policy
+		BufferedImage a = randomImage(10, 10, BufferedImage.TYPE_INT_RGB, new Random(5018));
+		Exception e = assertThrows(InvocationTargetException.class, () -> exec(input, a));
+		assertInstanceOf(PLCRuntimeException.class, e.getCause());
+	}
+
+	@Test
+	void fusedPixelLoops() throws Exception {
+		String input = """
+				image f(image a, image c, int w, int h, int k)
+				image[w,h] b = 0;
+				image[24,16] d = 0;
+				b[x,y] = a[x - 1, y] + c[x, y];
+				d[x,y] = b[x,y] * k;
+				b[x,y] = b[x,y] - d[x,y] + c[y, x];
+				b[x,y] = b[x,y] + d[x + 1, y];
+				^ b;
+				""";
+		ASTNode ast = CompilerComponentFactory.getParser(input).parse();
+		ast.visit(CompilerComponentFactory.getTypeChecker(), null);
+		String javaCode = (String) ast.visit(CompilerComponentFactory.getCodeGenerator(packageName), null);
+		// the first three statements are one loop, with a loop for each as a fallback, and each 
+		// statement reading another image at other pixels has a column-major loop too
+		assertTrue(javaCode.contains("$$raster1[$$index]"));
+		assertTrue(javaCode.contains("$$pixels9("));
+		assertTrue(!javaCode.contains("$$pixels10("));
+
+		Random random = new Random(5019);
+		for (int[] size : new int[][] { { 24, 16 }, { 16, 24 } }) {
+			for (boolean parallel : new boolean[] { true, false }) {
+				CompilerComponentFactory.setParallelPixelLoops(parallel);
+				CompilerComponentFactory.setPixelEdgePolicy(ImageOps.EdgePolicy.CLAMP);
+				BufferedImage a = randomImage(24, 16, BufferedImage.TYPE_3BYTE_BGR, random);
+				BufferedImage c = randomImage(24, 24, BufferedImage.TYPE_INT_RGB, random);
+				BufferedImage expected = (BufferedImage) interpret(input, a, c, size[0], size[1], 3);
+				assertSameImage(expected, exec(input, a, c, size[0], size[1], 3));
+				CompilerComponentFactory.setFusePixelLoops(false);
+				assertSameImage(expected, exec(input, a, c, size[0], size[1], 3));
+				CompilerComponentFactory.setFusePixelLoops(true);
+			}
+		}
+	}
+
+	@Test
+	void componentsInRangeNotTruncated() throws Exception {
+		String input = """
+				image f(image a, image c, int k)
+				int half = 128;
+				image[24,16] b = 0;
+				b[x,y] = (a[x,y] + c[x,y]) / 2;
+				b[x,y] = <<getRed(a[x,y]) / 2 + half - 1, x % 256, if (k > 0) 255 else y % 10 fi>>;
+				b[x,y] = b[x,y] + <<getGreen(c[x,y]) % 100, 0, 0>>;
+				b[x,y] = b[x,y] - a[x,y] * k;
+				^ b;
+				""";
+		ASTNode ast = CompilerComponentFactory.getParser(input).parse();
+		ast.visit(CompilerComponentFactory.getTypeChecker(), null);
+		CompilerComponentFactory.setFusePixelLoops(false);
+		String javaCode = (String) ast.visit(CompilerComponentFactory.getCodeGenerator(packageName), null);
+		// the first two values are in range, the last two may not be
+		assertTrue(javaCode.split("makePackedColorUnchecked\\(\\(").length == 3);
+		assertTrue(javaCode.split("makePackedColor\\(\\(").length == 3);
+
+		Random random = new Random(5020);
+		for (int k : new int[] { -2, 0, 3 }) {
+			BufferedImage a = randomImage(24, 16, BufferedImage.TYPE_INT_RGB, random);
+			BufferedImage c = randomImage(24, 16, BufferedImage.TYPE_INT_RGB, random);
+			assertSameImage((BufferedImage) interpret(input, a, c, k), exec(input, a, c, k));
+		}
+	}
+
+	@Test
+	void pixelReadsOutsideImages() throws Exception {
+		String input = """
+				image f(image a)
+				image[10,10] b = 0;
+				b[x,y] = a[x + 1, y];
+				^ b;
+				""";
+		BufferedImage a = randomImage(10, 10, BufferedImage.TYPE_INT_RGB, new Random(5016));
+		Exception e = assertThrows(InvocationTargetException.class, () -> exec(input, a));
+		assertInstanceOf(PLCRuntimeException.class, e.getCause());
+		assertTrue(e.getCause().getMessage().contains("(10,0)"));
+	}
+
+}
@@ -0,0 +1,131 @@
+package edu.ufl.cise.plc.test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import edu.ufl.cise.plc.CompilerComponentFactory;
+import edu.ufl.cise.plc.ast.ASTNode;
+import edu.ufl.cise.plc.ast.BinaryExpr;
+import edu.ufl.cise.plc.ast.Expr;
+import edu.ufl.cise.plc.ast.IdentExpr;
+import edu.ufl.cise.plc.ast.Program;
+import edu.ufl.cise.plc.ast.VarDeclaration;
+import edu.ufl.cise.plc.runtime.ImageOps;
+import edu.ufl.cise.plc.runtime.javaCompilerClassLoader.PLCLangExec;
+
+/**
+ * Checks the programs produced by CommonSubexpressionEliminator and compares the results of
+ * programs compiled with and without it.
+ */
+public class CommonSubexpressionTests {
+	String packageName = "cop4020sp22Package";
+
+	@AfterEach
+	void restoreDefaults() {
+		CompilerComponentFactory.setEliminateCommonSubexpressions(true);
+	}
+
+	List<ASTNode> eliminate(String input) throws Exception {
+		ASTNode ast = CompilerComponentFactory.getParser(input).parse();
+		ast.visit(CompilerComponentFactory.getTypeChecker(), null);
+		Program program = CompilerComponentFactory.getCommonSubexpressionEliminator().eliminate((Program) ast);
+		return program.getDecsAndStatements();
+	}
+
+	Expr initializer(List<ASTNode> decsAndStatements, int i) {
+		return ((VarDeclaration) decsAndStatements.get(i)).getExpr();
+	}
+
+	Object exec(boolean eliminate, String input, Object... params) throws Exception {
+		CompilerComponentFactory.setEliminateCommonSubexpressions(eliminate);
+		return new PLCLangExec(packageName, false).exec(input, params);
+	}
+
+	BufferedImage randomImage(int width, int height, Random random) {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				image.setRGB(x, y, random.nextInt());
+			}
+		}
+		return image;
+	}
+
+	@Test
+	void reuseVariables() throws Exception {
+		String input = """
+				int f(int n, int m)
+				int k = n * 3 + 1;
+				int j = (n * 3 + 1) * 2 + n * 3;
+				int i = m / 2 + m / 2;
+				^ i + j;
+				""";
+		List<ASTNode> decs = eliminate(input);
+		// n * 3 is computed once in a new variable, used by k and j
+		VarDeclaration temp = assertInstanceOf(VarDeclaration.class, decs.get(0));
+		assertEquals("$$cse0", temp.getName());
+		assertEquals("$$cse0", ((BinaryExpr) initializer(decs, 1)).getLeft().getText());
+		BinaryExpr j = assertInstanceOf(BinaryExpr.class, initializer(decs, 2));
+		assertEquals("k", ((BinaryExpr) j.getLeft()).getLeft().getText());
+		assertEquals("$$cse0", j.getRight().getText());
+		// m / 2 is computed once within a statement
+		assertEquals("$$cse1", ((VarDeclaration) decs.get(3)).getName());
+		BinaryExpr i = assertInstanceOf(BinaryExpr.class, initializer(decs, 4));
+		assertInstanceOf(IdentExpr.class, i.getLeft());
+		assertInstanceOf(IdentExpr.class, i.getRight());
+		assertEquals(exec(false, input, 5, 9), exec(true, input, 5, 9));
+	}
+
+	@Test
+	void redefinedVariables() throws Exception {
+		String input = """
+				int f(int n)
+				int k = n * 3;
+				n = n + 1;
+				int j = n * 3;
+				k = 2;
+				int i = n * 3 + k;
+				^ i + j;
+				""";
+		List<ASTNode> decs = eliminate(input);
+		// n changes before j, so n * 3 is computed again, and j holds it after k is reassigned
+		assertEquals(6, decs.size());
+		assertInstanceOf(BinaryExpr.class, initializer(decs, 2));
+		assertEquals("j", ((BinaryExpr) initializer(decs, 4)).getLeft().getText());
+		assertEquals(exec(false, input, 4), exec(true, input, 4));
+	}
+
+	@Test
+	void sameResults() throws Exception {
+		String input = """
+				image f(image a, image b, int n)
+				int k = n * 3 + 1;
+				image c = a + b;
+				image d = (a + b) * 2;
+				image e = (a + b) / 3 + getRed (a + b);
+				e[x,y] = <<getRed a[x,y] * k, getRed a[x,y] * k, getBlue b[x,y] + getRed a[x,y] * k>>;
+				d[x,y] = <<(getRed c[x,y] + k * 2), k * 2, k * 2 + 1>>;
+				image g = (a + b) * 2;
+				color h = <<k, k * 2, n>> + <<k, k * 2, n>> * 2;
+				write (k * 2) -> console;
+				^ e + g + d + c * getRed h;
+				""";
+		Random random = new Random(1111);
+		BufferedImage a = randomImage(40, 30, random);
+		BufferedImage b = randomImage(40, 30, random);
+		for (int n : new int[] { 0, 3, 7 }) {
+			BufferedImage expected = (BufferedImage) exec(false, input, ImageOps.clone(a), ImageOps.clone(b), n);
+			BufferedImage actual = (BufferedImage) exec(true, input, ImageOps.clone(a), ImageOps.clone(b), n);
+			assertArrayEquals(ImageOps.getRGBPixels(expected), ImageOps.getRGBPixels(actual));
+		}
+	}
+
+}
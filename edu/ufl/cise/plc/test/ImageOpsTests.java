@@ -0,0 +1,164 @@
+package edu.ufl.cise.plc.test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import edu.ufl.cise.plc.runtime.ColorTuple;
+import edu.ufl.cise.plc.runtime.ImageOps;
+import edu.ufl.cise.plc.runtime.ImageOps.OP;
+
+/**
+ * Compares the image kernels in ImageOps with a reference implementation that unpacks each
+ * pixel into a ColorTuple, applies binaryTupleOp, and packs the result.
+ */
+public class ImageOpsTests {
+
+	@AfterEach
+	void restoreDefaults() {
+		ImageOps.setUsePackedLanes(true);
+	}
+
+	// Image of the given type with size 256x256 where every pixel has value x in the red
+	// component, y in the green component, and x ^ y in the blue component, so that together
+	// with its transpose every pair of component values occurs.
+	BufferedImage allComponentPairs(int type, boolean transpose) {
+		BufferedImage image = new BufferedImage(256, 256, type);
+		for (int y = 0; y < 256; y++) {
+			for (int x = 0; x < 256; x++) {
+				int a = transpose ? y : x;
+				int b = transpose ? x : y;
+				image.setRGB(x, y, ColorTuple.makePackedColor(a, b, a ^ b));
+			}
+		}
+		return image;
+	}
+
+	BufferedImage randomImage(int width, int height, int type, Random random) {
+		BufferedImage image = new BufferedImage(width, height, type);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				image.setRGB(x, y, random.nextInt());
+			}
+		}
+		return image;
+	}
+
+	int[] referenceImageImageOp(OP op, BufferedImage left, BufferedImage right) {
+		int width = left.getWidth();
+		int[] pixels = new int[width * left.getHeight()];
+		for (int y = 0; y < left.getHeight(); y++) {
+			for (int x = 0; x < width; x++) {
+				ColorTuple leftColor = ColorTuple.unpack(left.getRGB(x, y));
+				ColorTuple rightColor = ColorTuple.unpack(right.getRGB(x, y));
+				pixels[y * width + x] = ImageOps.binaryTupleOp(op, leftColor, rightColor).pack();
+			}
+		}
+		return pixels;
+	}
+
+	int[] referenceImageScalarOp(OP op, BufferedImage left, int right) {
+		int width = left.getWidth();
+		int[] pixels = new int[width * left.getHeight()];
+		for (int y = 0; y < left.getHeight(); y++) {
+			for (int x = 0; x < width; x++) {
+				ColorTuple leftColor = ColorTuple.unpack(left.getRGB(x, y));
+				pixels[y * width + x] = ImageOps.binaryTupleOp(op, leftColor, new ColorTuple(right)).pack();
+			}
+		}
+		return pixels;
+	}
+
+	@Test
+	void binaryPackedOp() throws Exception {
+		Random random = new Random(4004);
+		for (int i = 0; i < 10000; i++) {
+			int left = random.nextInt();
+			int right = random.nextInt() | 0x00010101;
+			for (OP op : OP.values()) {
+				int expected = ImageOps.binaryTupleOp(op, ColorTuple.unpack(left), ColorTuple.unpack(right)).pack();
+				assertEquals(expected, ImageOps.binaryPackedOp(op, left, right));
+			}
+		}
+		assertThrows(ArithmeticException.class, () -> ImageOps.binaryPackedOp(OP.DIV, 0x00102030, 0x00010100));
+	}
+
+	@Test
+	void packedLanesImageImage() throws Exception {
+		BufferedImage left = allComponentPairs(BufferedImage.TYPE_INT_RGB, false);
+		BufferedImage right = allComponentPairs(BufferedImage.TYPE_INT_RGB, true);
+		for (OP op : new OP[] { OP.PLUS, OP.MINUS }) {
+			assertArrayEquals(referenceImageImageOp(op, left, right),
+					ImageOps.getRGBPixels(ImageOps.binaryImageImageOp(op, left, right)));
+		}
+	}
+
+	@Test
+	void packedLanesImageScalar() throws Exception {
+		BufferedImage left = allComponentPairs(BufferedImage.TYPE_INT_RGB, false);
+		int[] scalars = { 0, 1, 2, 3, 100, 128, 254, 255, 256, 257, 1000, -1, -255, -256, -1000, 1 << 23,
+				-(1 << 23), (1 << 23) + 1, Integer.MAX_VALUE, Integer.MIN_VALUE };
+		for (OP op : new OP[] { OP.PLUS, OP.MINUS, OP.TIMES }) {
+			for (int scalar : scalars) {
+				assertArrayEquals(referenceImageScalarOp(op, left, scalar),
+						ImageOps.getRGBPixels(ImageOps.binaryImageScalarOp(op, left, scalar)));
+			}
+		}
+	}
+
+	@Test
+	void reuseResultImage() throws Exception {
+		Random random = new Random(4030);
+		BufferedImage left = randomImage(101, 67, BufferedImage.TYPE_INT_RGB, random);
+		BufferedImage right = randomImage(101, 67, BufferedImage.TYPE_INT_RGB, random);
+		int[] expected = ImageOps.getRGBPixels(ImageOps.binaryImageImageOp(OP.MINUS, left, right));
+		BufferedImage result = ImageOps.binaryImageImageOp(OP.MINUS, left, right, right);
+		assertSame(right, result);
+		assertArrayEquals(expected, ImageOps.getRGBPixels(result));
+
+		expected = ImageOps.getRGBPixels(ImageOps.binaryImageScalarOp(OP.MOD, left, 7));
+		result = ImageOps.binaryImageScalarOp(OP.MOD, left, 7, left);
+		assertSame(left, result);
+		assertArrayEquals(expected, ImageOps.getRGBPixels(result));
+
+		// images without an int raster, or with another size, are not reused
+		BufferedImage bytes = randomImage(101, 67, BufferedImage.TYPE_3BYTE_BGR, random);
+		int[] bytePixels = ImageOps.getRGBPixels(bytes);
+		assertNotSame(bytes, ImageOps.binaryImageScalarOp(OP.PLUS, bytes, 3, bytes));
+		assertArrayEquals(bytePixels, ImageOps.getRGBPixels(bytes));
+		BufferedImage small = randomImage(10, 10, BufferedImage.TYPE_INT_RGB, random);
+		assertNotSame(small, ImageOps.binaryImageImageOp(OP.PLUS, left, right, small));
+	}
+
+	@Test
+	void packedLanesMatchComponentPath() throws Exception {
+		Random random = new Random(4020);
+		for (int type : new int[] { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR }) {
+			BufferedImage left = randomImage(301, 203, type, random);
+			BufferedImage right = randomImage(301, 203, type, random);
+			for (OP op : new OP[] { OP.PLUS, OP.MINUS, OP.TIMES }) {
+				ImageOps.setUsePackedLanes(true);
+				int[] lanes = ImageOps.getRGBPixels(ImageOps.binaryImageScalarOp(op, left, 3));
+				ImageOps.setUsePackedLanes(false);
+				int[] components = ImageOps.getRGBPixels(ImageOps.binaryImageScalarOp(op, left, 3));
+				assertArrayEquals(components, lanes);
+			}
+			for (OP op : new OP[] { OP.PLUS, OP.MINUS }) {
+				ImageOps.setUsePackedLanes(true);
+				int[] lanes = ImageOps.getRGBPixels(ImageOps.binaryImageImageOp(op, left, right));
+				ImageOps.setUsePackedLanes(false);
+				int[] components = ImageOps.getRGBPixels(ImageOps.binaryImageImageOp(op, left, right));
+				assertArrayEquals(components, lanes);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,27 @@
+package edu.ufl.cise.plc.test;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+
+import edu.ufl.cise.plc.CompilerComponentFactory;
+import edu.ufl.cise.plc.runtime.javaCompilerClassLoader.PLCLangExec;
+
+/**
+ * Runs the tests of Assignment6Tests with the interpreter instead of compiled code.
+ */
+public class InterpretedAssignment6Tests extends Assignment6Tests {
+
+	@BeforeEach
+	void interpretOnly() {
+		CompilerComponentFactory.setInterpretFirst(true);
+		CompilerComponentFactory.setCompileAfter(Integer.MAX_VALUE, Long.MAX_VALUE);
+		PLCLangExec.getProgramCache().clear();
+	}
+
+	@AfterEach
+	void restoreTiers() {
+		CompilerComponentFactory.setInterpretFirst(false);
+		CompilerComponentFactory.setCompileAfter(2, 50);
+		PLCLangExec.getProgramCache().clear();
+	}
+}
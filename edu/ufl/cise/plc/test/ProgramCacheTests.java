@@ -0,0 +1,273 @@
+package edu.ufl.cise.plc.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import edu.ufl.cise.plc.CompilerComponentFactory;
+import edu.ufl.cise.plc.TypeCheckException;
+import edu.ufl.cise.plc.runtime.javaCompilerClassLoader.BytecodeCache;
+import edu.ufl.cise.plc.runtime.javaCompilerClassLoader.CompiledProgramCache;
+import edu.ufl.cise.plc.runtime.javaCompilerClassLoader.DynamicCompiler;
+import edu.ufl.cise.plc.runtime.javaCompilerClassLoader.PLCLangExec;
+import edu.ufl.cise.plc.runtime.javaCompilerClassLoader.PreparedProgram;
+
+/**
+ * Checks that PLCLangExec compiles each program once and reuses the compiled program, in 
+ * memory and on disk.
+ */
+public class ProgramCacheTests {
+	String packageName = "cop4020sp22Package";
+	CompiledProgramCache cache = PLCLangExec.getProgramCache();
+
+	@BeforeEach
+	void clearCache() {
+		cache.clear();
+	}
+
+	@AfterEach
+	void restoreDefaults() throws IOException {
+		PLCLangExec.setProgramCacheSize(64);
+		CompilerComponentFactory.setOptimizeAST(true);
+		cache.clear();
+		BytecodeCache bytecodeCache = PLCLangExec.getBytecodeCache();
+		PLCLangExec.setBytecodeCache(null, 0);
+		if (bytecodeCache != null && Files.exists(bytecodeCache.getDirectory())) {
+			try (var files = Files.walk(bytecodeCache.getDirectory())) {
+				for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+					Files.delete(file);
+				}
+			}
+		}
+	}
+
+	BytecodeCache useBytecodeCache(long maxBytes) throws IOException {
+		PLCLangExec.setBytecodeCache(Files.createTempDirectory("plc"), maxBytes);
+		return PLCLangExec.getBytecodeCache();
+	}
+
+	Path entry(BytecodeCache bytecodeCache, String key) {
+		return bytecodeCache.getDirectory().resolve(key + ".plcclass");
+	}
+
+	Object exec(String input, Object... params) throws Exception {
+		return new PLCLangExec(packageName, false).exec(input, params);
+	}
+
+	String program(int n) {
+		return program("f", n);
+	}
+
+	String program(String name, int n) {
+		return """
+				int %s(int a)
+				^ a + %d;
+				""".formatted(name, n);
+	}
+
+	@Test
+	void sameProgramCompiledOnce() throws Exception {
+		int compilations = cache.compilations();
+		assertEquals(4, exec(program(1), 3));
+		assertEquals(6, exec(program(1), 5));
+		assertEquals(compilations + 1, cache.compilations());
+		assertEquals(1, cache.size());
+		assertEquals(5, exec(program(2), 3));
+		assertEquals(compilations + 2, cache.compilations());
+	}
+
+	@Test
+	void configurationChangeRecompiles() throws Exception {
+		int compilations = cache.compilations();
+		exec(program(1), 3);
+		CompilerComponentFactory.setOptimizeAST(false);
+		assertEquals(4, exec(program(1), 3));
+		assertEquals(compilations + 2, cache.compilations());
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	void versionIncludesCompilerHash() {
+		String version = CompilerComponentFactory.version();
+		assertTrue(version.startsWith(CompilerComponentFactory.VERSION + "-"));
+		assertFalse(version.contains("unhashed"));
+		assertEquals(version, CompilerComponentFactory.version());
+	}
+
+	@Test
+	void concurrentRequestsCompileOnce() throws Exception {
+		int compilations = cache.compilations();
+		int threads = 4;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		CountDownLatch start = new CountDownLatch(1);
+		try {
+			List<Future<Object>> results = new ArrayList<>();
+			for (int i = 0; i < threads; i++) {
+				int a = i;
+				results.add(executor.submit(() -> {
+					start.await();
+					return exec(program(7), a);
+				}));
+			}
+			start.countDown();
+			for (int i = 0; i < threads; i++) {
+				assertEquals(i + 7, results.get(i).get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(compilations + 1, cache.compilations());
+	}
+
+	@Test
+	void leastRecentlyUsedEvicted() throws Exception {
+		PLCLangExec.setProgramCacheSize(2);
+		int compilations = cache.compilations();
+		exec(program(1), 0);
+		exec(program(2), 0);
+		exec(program(1), 0);
+		exec(program(3), 0);
+		assertEquals(2, cache.size());
+		assertEquals(compilations + 3, cache.compilations());
+		exec(program(1), 0);
+		assertEquals(compilations + 3, cache.compilations());
+		exec(program(2), 0);
+		assertEquals(compilations + 4, cache.compilations());
+	}
+
+	@Test
+	void disabledCache() throws Exception {
+		PLCLangExec.setProgramCacheSize(0);
+		int compilations = cache.compilations();
+		exec(program(1), 0);
+		exec(program(1), 0);
+		assertEquals(compilations + 2, cache.compilations());
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	void failedCompilationNotCached() throws Exception {
+		String input = """
+				int f(int a)
+				^ a + b;
+				""";
+		int compilations = cache.compilations();
+		assertThrows(TypeCheckException.class, () -> exec(input, 0));
+		assertThrows(TypeCheckException.class, () -> exec(input, 0));
+		assertEquals(compilations + 2, cache.compilations());
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	void classFilesReusedFromDisk() throws Exception {
+		BytecodeCache bytecodeCache = useBytecodeCache(1 << 20);
+		int compilations = cache.compilations();
+		assertEquals(4, exec(program(1), 3));
+		assertEquals(1, bytecodeCache.stores());
+		// as if the JVM were restarted
+		cache.clear();
+		assertEquals(6, exec(program(1), 5));
+		assertEquals(1, bytecodeCache.hits());
+		assertEquals(1, bytecodeCache.stores());
+		assertEquals(compilations + 2, cache.compilations());
+	}
+
+	@Test
+	void corruptedEntryIgnored() throws Exception {
+		BytecodeCache bytecodeCache = useBytecodeCache(1 << 20);
+		byte[] bytecode = {(byte) 0xca, (byte) 0xfe, (byte) 0xba, (byte) 0xbe, 0, 0, 0, 49};
+		bytecodeCache.store("a", "A", bytecode);
+		BytecodeCache.CachedClass cached = bytecodeCache.load("a");
+		assertEquals("A", cached.className());
+		assertTrue(Arrays.equals(bytecode, cached.bytecode()));
+
+		Path file = entry(bytecodeCache, "a");
+		byte[] bytes = Files.readAllBytes(file);
+		bytes[bytes.length - 1] ^= 1;
+		Files.write(file, bytes);
+		assertNull(bytecodeCache.load("a"));
+		assertFalse(Files.exists(file));
+
+		bytecodeCache.store("b", "B", bytecode);
+		file = entry(bytecodeCache, "b");
+		bytes = Files.readAllBytes(file);
+		Files.write(file, Arrays.copyOf(bytes, bytes.length - 10));
+		assertNull(bytecodeCache.load("b"));
+		assertEquals(1, bytecodeCache.hits());
+	}
+
+	@Test
+	void leastRecentlyUsedEntriesDeleted() throws Exception {
+		byte[] bytecode = new byte[1000];
+		bytecode[0] = (byte) 0xca;
+		bytecode[1] = (byte) 0xfe;
+		bytecode[2] = (byte) 0xba;
+		bytecode[3] = (byte) 0xbe;
+		BytecodeCache bytecodeCache = useBytecodeCache(2500);
+		bytecodeCache.store("a", "A", bytecode);
+		bytecodeCache.store("b", "B", bytecode);
+		Files.setLastModifiedTime(entry(bytecodeCache, "a"), FileTime.fromMillis(1000));
+		Files.setLastModifiedTime(entry(bytecodeCache, "b"), FileTime.fromMillis(2000));
+		bytecodeCache.load("a");
+		bytecodeCache.store("c", "C", bytecode);
+		assertTrue(Files.exists(entry(bytecodeCache, "a")));
+		assertFalse(Files.exists(entry(bytecodeCache, "b")));
+		assertTrue(Files.exists(entry(bytecodeCache, "c")));
+	}
+
+	@Test
+	void severalClassesCompiledTogether() throws Exception {
+		DynamicCompiler.warmUp().get();
+		Map<String, byte[]> classFiles = DynamicCompiler.compileAll(Map.of(
+				"p.A", "package p; public class A { public static int apply() { return B.apply() + 1; } }",
+				"p.B", "package p; public class B { public static int apply() { return 1; } }"));
+		assertEquals(2, classFiles.size());
+		assertTrue(classFiles.containsKey("p.A"));
+		assertTrue(classFiles.containsKey("p.B"));
+	}
+
+	@Test
+	void programsCompiledTogether() throws Exception {
+		List<String> programs = List.of(program("g", 1), program("h", 2), program("g", 3), program("g", 1));
+		new PLCLangExec(packageName, false).compileAll(programs);
+		assertEquals(3, cache.size());
+		int compilations = cache.compilations();
+		assertEquals(11, exec(program("g", 1), 10));
+		assertEquals(12, exec(program("h", 2), 10));
+		assertEquals(13, exec(program("g", 3), 10));
+		assertEquals(compilations, cache.compilations());
+	}
+
+	@Test
+	void preparedProgram() throws Throwable {
+		PreparedProgram prepared = new PLCLangExec(packageName, false).prepare(program(1));
+		assertEquals(MethodType.methodType(int.class, int.class), prepared.type());
+		int result = (int) prepared.handle().invokeExact(3);
+		assertEquals(4, result);
+		assertEquals(5, prepared.apply(4));
+		assertThrows(IllegalArgumentException.class, () -> prepared.apply());
+		assertSame(prepared, new PLCLangExec(packageName, false).prepare(program(1)));
+	}
+}
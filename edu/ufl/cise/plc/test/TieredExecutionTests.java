@@ -0,0 +1,204 @@
+package edu.ufl.cise.plc.test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import edu.ufl.cise.plc.CompilerComponentFactory;
+import edu.ufl.cise.plc.runtime.ColorTuple;
+import edu.ufl.cise.plc.runtime.ImageOps;
+import edu.ufl.cise.plc.runtime.javaCompilerClassLoader.PLCLangExec;
+import edu.ufl.cise.plc.runtime.javaCompilerClassLoader.PreparedProgram;
+
+/**
+ * Compares the results of programs executed by the interpreter with the results of the 
+ * compiled programs, and checks that interpreted programs are compiled when executed often 
+ * enough.
+ */
+public class TieredExecutionTests {
+	String packageName = "cop4020sp22Package";
+
+	@AfterEach
+	void restoreDefaults() {
+		CompilerComponentFactory.setInterpretFirst(false);
+		CompilerComponentFactory.setCompileAfter(2, 50);
+		CompilerComponentFactory.setPixelEdgePolicy(ImageOps.EdgePolicy.ERROR);
+		PLCLangExec.getProgramCache().clear();
+	}
+
+	Object exec(boolean interpret, String input, Object... params) throws Exception {
+		CompilerComponentFactory.setInterpretFirst(interpret);
+		CompilerComponentFactory.setCompileAfter(Integer.MAX_VALUE, Long.MAX_VALUE);
+		return new PLCLangExec(packageName, false).exec(input, params);
+	}
+
+	// images passed as parameters may be changed by the program, so each run gets copies
+	void assertSameResult(String input, Object... params) throws Exception {
+		Object expected = exec(false, input, copies(params));
+		Object actual = exec(true, input, copies(params));
+		if (expected instanceof BufferedImage image) {
+			assertArrayEquals(ImageOps.getRGBPixels(image), ImageOps.getRGBPixels((BufferedImage) actual));
+		} else {
+			assertEquals(expected, actual);
+		}
+	}
+
+	Object[] copies(Object[] params) {
+		Object[] copies = params.clone();
+		for (int i = 0; i < copies.length; i++) {
+			if (copies[i] instanceof BufferedImage image) {
+				copies[i] = ImageOps.clone(image);
+			}
+		}
+		return copies;
+	}
+
+	BufferedImage randomImage(int width, int height, Random random) {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				image.setRGB(x, y, random.nextInt());
+			}
+		}
+		return image;
+	}
+
+	@Test
+	void scalars() throws Exception {
+		String input = """
+				float f(int a, float b, boolean c)
+				int d = a / 3 - -a % 4 * 2;
+				float e = d * b / 0.7 + a;
+				boolean g = !c | e > 1.5 & d != a;
+				^ (if (g) e - a else b * d fi);
+				""";
+		for (int a : new int[] { 0, 7, -23, Integer.MAX_VALUE }) {
+			assertSameResult(input, a, 2.25f, true);
+			assertSameResult(input, a, -0.5f, false);
+		}
+	}
+
+	@Test
+	void colors() throws Exception {
+		String input = """
+				color f(color a, int k)
+				color b = a * k - <<k, 300, -k>>;
+				int p = b;
+				color c = <<getRed p, getGreen b, getBlue a>> * p;
+				^ (if (c == a) BLUE else (c + b) / 2 fi);
+				""";
+		assertSameResult(input, new ColorTuple(10, 200, 30), 3);
+		assertSameResult(input, new ColorTuple(255, 0, 128), -2);
+	}
+
+	@Test
+	void images() throws Exception {
+		String input = """
+				image f(image a, image b, int k)
+				image c = a * k + getRed b;
+				image[30,20] d = c;
+				a[x,y] = <<x - y, k, y>> + b[x,y];
+				b[x,y] = b[y % getHeight b, x % getHeight b] / 2;
+				image[30,20] e;
+				e[x,y] = (if (k > 2) a[x,y] else d[x % 30,y % 20] fi);
+				^ (e + d) % (getWidth b / 3);
+				""";
+		Random random = new Random(1901);
+		assertSameResult(input, randomImage(40, 30, random), randomImage(40, 30, random), 3);
+		assertSameResult(input, randomImage(40, 30, random), randomImage(40, 30, random), 1);
+	}
+
+	@Test
+	void aliasedImages() throws Exception {
+		String input = """
+				image f(image a, image b)
+				a[x,y] = b[(x + 1) % getWidth b, (y + getHeight b - 1) % getHeight b] * 2;
+				^ a;
+				""";
+		BufferedImage image = randomImage(20, 15, new Random(1923));
+		BufferedImage expected = ImageOps.clone(image);
+		BufferedImage actual = ImageOps.clone(image);
+		exec(false, input, expected, expected);
+		exec(true, input, actual, actual);
+		assertArrayEquals(ImageOps.getRGBPixels(expected), ImageOps.getRGBPixels(actual));
+	}
+
+	@Test
+	void runtimeErrors() throws Exception {
+		String input = """
+				int f(int a)
+				^ 10 / a;
+				""";
+		Exception e = assertThrows(InvocationTargetException.class, () -> exec(true, input, 0));
+		assertInstanceOf(ArithmeticException.class, e.getCause());
+	}
+
+	@Test
+	void compiledAfterCalls() throws Exception {
+		CompilerComponentFactory.setInterpretFirst(true);
+		CompilerComponentFactory.setCompileAfter(3, Long.MAX_VALUE);
+		String input = """
+				int f(int a)
+				^ a * 2;
+				""";
+		PreparedProgram prepared = new PLCLangExec(packageName, false).prepare(input);
+		assertEquals(2, prepared.apply(1));
+		assertEquals(4, prepared.apply(2));
+		assertFalse(prepared.compiled().isDone());
+		assertEquals(6, prepared.apply(3));
+		PreparedProgram compiled = prepared.compiled().get(60, TimeUnit.SECONDS);
+		assertTrue(compiled.compiled().isDone());
+		assertEquals(8, prepared.apply(4));
+		// once compiled, the program is not interpreted any more
+		assertEquals(compiled, new PLCLangExec(packageName, false).prepare(input));
+	}
+
+	@Test
+	void compiledAfterTime() throws Exception {
+		CompilerComponentFactory.setInterpretFirst(true);
+		CompilerComponentFactory.setCompileAfter(Integer.MAX_VALUE, 0);
+		String input = """
+				int f(int a)
+				^ a + 1;
+				""";
+		PreparedProgram prepared = new PLCLangExec(packageName, false).prepare(input);
+		assertEquals(2, prepared.apply(1));
+		prepared.compiled().get(60, TimeUnit.SECONDS);
+		assertEquals(3, prepared.apply(2));
+	}
+
+	@Test
+	void compiledWithPreparedSettings() throws Exception {
+		CompilerComponentFactory.setInterpretFirst(true);
+		CompilerComponentFactory.setCompileAfter(1, Long.MAX_VALUE);
+		CompilerComponentFactory.setPixelEdgePolicy(ImageOps.EdgePolicy.CLAMP);
+		String input = """
+				image f(image a)
+				image[10,10] b = 0;
+				b[x,y] = a[x + 1, y];
+				^ b;
+				""";
+		BufferedImage a = randomImage(10, 10, new Random(1919));
+		PreparedProgram prepared = new PLCLangExec(packageName, false).prepare(input);
+		// settings changed after the program is prepared apply to programs prepared later only
+		CompilerComponentFactory.setPixelEdgePolicy(ImageOps.EdgePolicy.ERROR);
+		BufferedImage interpreted = (BufferedImage) prepared.apply(ImageOps.clone(a));
+		assertEquals(a.getRGB(9, 3), interpreted.getRGB(9, 3));
+		prepared.compiled().get(60, TimeUnit.SECONDS);
+		BufferedImage compiled = (BufferedImage) prepared.apply(ImageOps.clone(a));
+		assertArrayEquals(ImageOps.getRGBPixels(interpreted), ImageOps.getRGBPixels(compiled));
+		CompilerComponentFactory.setPixelEdgePolicy(ImageOps.EdgePolicy.CLAMP);
+		assertEquals(prepared.compiled().get(), new PLCLangExec(packageName, false).prepare(input));
+	}
+}